@@ -0,0 +1,559 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.saml20.adapter.conf.Configuration;
+import org.sourceid.saml20.adapter.conf.Row;
+import org.sourceid.saml20.adapter.conf.Table;
+
+import com.pingidentity.sdk.IdpAuthenticationAdapterV2;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * <p>
+ * Replays recorded sign-on traffic against a configured {@link SampleSubnetAdapter} from an increasing number of
+ * threads, to find how many <code>lookupAuthN</code> calls per second one server can take with a real traffic mix and
+ * where it stops scaling.
+ * </p>
+ * <p>
+ * The traffic is a CSV file with the columns <code>remoteAddr, forwarded, xForwardedFor, spEntityId,
+ * chainedUsername</code>, i.e. the client or proxy address, the <code>Forwarded</code> and
+ * <code>X-Forwarded-For</code> header values, the SP entity ID and the username of an adapter earlier in the chain.
+ * Only the address is required; fields containing commas or quotes are quoted as usual, and a first line starting with
+ * <code>remoteAddr</code> is skipped. An access log can be replayed once its fields are exported in this form. The
+ * adapter configuration is a properties file of field names and values, with table rows given as
+ * <code>&lt;table&gt;.&lt;row&gt;.&lt;column&gt;</code> and spaces in names escaped, e.g.
+ * <code>Trusted\ Proxies.1.Proxy\ CIDR=172.16.0.0/12</code>.
+ * </p>
+ * <p>
+ * Each worker walks the records from its own offset with a reused stub request, so the stubs add almost nothing to
+ * the measurement. After a warm-up, every thread count is run for the given duration and reported with its
+ * throughput, latency percentiles and allocation rate. With <code>--virtual</code> the workers are virtual threads,
+ * on a JDK that has them; allocation is only reported for platform threads. Run with e.g.
+ * </p>
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.pingidentity.adapter.idp.ReplayHarness \
+ *     -Dexec.args="--config adapter.properties --traffic traffic.csv --threads 1,2,4,8,16 --duration 10"
+ * </pre>
+ */
+public final class ReplayHarness
+{
+    private static final Pattern TABLE_FIELD = Pattern.compile("([^.]+)\\.(\\d+)\\.(.+)");
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final SampleSubnetAdapter adapter;
+    private final Record[] records;
+    private final HttpServletResponse response = new StubResponse();
+    private volatile boolean stopped;
+
+    private ReplayHarness(SampleSubnetAdapter adapter, Record[] records)
+    {
+        this.adapter = adapter;
+        this.records = records;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String config = null;
+        String traffic = null;
+        String threads = "1,2,4,8";
+        int duration = 10;
+        int warmup = 5;
+        boolean virtual = false;
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--config".equals(args[i]) && i + 1 < args.length)
+            {
+                config = args[++i];
+            }
+            else if ("--traffic".equals(args[i]) && i + 1 < args.length)
+            {
+                traffic = args[++i];
+            }
+            else if ("--threads".equals(args[i]) && i + 1 < args.length)
+            {
+                threads = args[++i];
+            }
+            else if ("--duration".equals(args[i]) && i + 1 < args.length)
+            {
+                duration = Integer.parseInt(args[++i]);
+            }
+            else if ("--warmup".equals(args[i]) && i + 1 < args.length)
+            {
+                warmup = Integer.parseInt(args[++i]);
+            }
+            else if ("--virtual".equals(args[i]))
+            {
+                virtual = true;
+            }
+            else
+            {
+                config = null;
+                break;
+            }
+        }
+        if (config == null || traffic == null)
+        {
+            System.err.println("Usage: ReplayHarness --config <adapter.properties> --traffic <traffic.csv>"
+                    + " [--threads 1,2,4,8] [--duration <seconds>] [--warmup <seconds>] [--virtual]");
+            System.exit(2);
+        }
+        if (virtual && startVirtualThread() == null)
+        {
+            System.err.println("This JDK has no virtual threads, using platform threads");
+            virtual = false;
+        }
+
+        SampleSubnetAdapter adapter = new SampleSubnetAdapter();
+        adapter.configure(loadConfiguration(config));
+        Record[] records = loadTraffic(traffic);
+        ReplayHarness harness = new ReplayHarness(adapter, records);
+        System.out.println("Replaying " + records.length + " records from " + traffic + " on "
+                + Runtime.getRuntime().availableProcessors() + " CPUs with " + (virtual ? "virtual" : "platform")
+                + " threads");
+
+        String[] counts = threads.split(",");
+        int maxThreads = 1;
+        for (String count : counts)
+        {
+            maxThreads = Math.max(maxThreads, Integer.parseInt(count.trim()));
+        }
+        harness.run(maxThreads, warmup, virtual);
+
+        System.out.println(String.format("%8s %12s %10s %10s %10s %10s %12s %10s %8s", "threads", "ops/s", "p50 us",
+                "p99 us", "p999 us", "max us", "alloc MB/s", "bytes/op", "errors"));
+        for (String count : counts)
+        {
+            System.out.println(harness.run(Integer.parseInt(count.trim()), duration, virtual));
+        }
+    }
+
+    /**
+     * Call the adapter from some threads for a while
+     */
+    private Result run(int threadCount, int seconds, boolean virtual) throws Exception
+    {
+        final Result result = new Result(threadCount);
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        stopped = false;
+        final int stride = Math.max(records.length / threadCount, 1);
+
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int first = (t * stride) % records.length;
+            Runnable worker = new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        replay(first, ready, start, result);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            };
+            if (virtual)
+            {
+                startVirtualThread().invoke(null, worker);
+            }
+            else
+            {
+                Thread thread = new Thread(worker, "replay-" + t);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        stopped = true;
+        done.await();
+        result.nanos = System.nanoTime() - begin;
+        return result;
+    }
+
+    /**
+     * Call the adapter with the records in turn, from the first given, until stopped
+     */
+    private void replay(int first, CountDownLatch ready, CountDownLatch start, Result result)
+    {
+        ReplayRequest request = new ReplayRequest();
+        int next = first;
+        long operations = 0;
+        ready.countDown();
+        try
+        {
+            start.await();
+        }
+        catch (InterruptedException e)
+        {
+            return;
+        }
+
+        long allocatedBefore = allocatedBytes();
+        while (!stopped)
+        {
+            Record record = records[next];
+            next = next + 1 == records.length ? 0 : next + 1;
+            request.record = record;
+            long begin = System.nanoTime();
+            try
+            {
+                adapter.lookupAuthN(request, response, record.inParameters);
+            }
+            catch (Exception e)
+            {
+                result.errors.increment();
+            }
+            result.latency.record(System.nanoTime() - begin);
+            operations++;
+        }
+        long allocatedAfter = allocatedBytes();
+
+        result.operations.add(operations);
+        if (allocatedBefore < 0 || allocatedAfter < 0)
+        {
+            result.allocationUnknown = true;
+        }
+        else
+        {
+            result.allocated.add(allocatedAfter - allocatedBefore);
+        }
+    }
+
+    /**
+     * @return The bytes allocated by the current thread so far, or -1 if the JVM cannot tell
+     */
+    private static long allocatedBytes()
+    {
+        if (THREADS instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @return <code>Thread.startVirtualThread(Runnable)</code>, or null if this JDK does not have it
+     */
+    private static Method startVirtualThread()
+    {
+        try
+        {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+
+    private static Configuration loadConfiguration(String path) throws IOException
+    {
+        final Properties properties = new Properties();
+        InputStream in = new FileInputStream(path);
+        try
+        {
+            properties.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // Group the table fields by table and row, in row order
+        Map<String, TreeMap<Integer, Map<String, String>>> tables =
+                new HashMap<String, TreeMap<Integer, Map<String, String>>>();
+        for (String name : properties.stringPropertyNames())
+        {
+            Matcher matcher = TABLE_FIELD.matcher(name);
+            if (matcher.matches())
+            {
+                TreeMap<Integer, Map<String, String>> rows = tables.get(matcher.group(1));
+                if (rows == null)
+                {
+                    rows = new TreeMap<Integer, Map<String, String>>();
+                    tables.put(matcher.group(1), rows);
+                }
+                Integer index = Integer.valueOf(matcher.group(2));
+                if (!rows.containsKey(index))
+                {
+                    rows.put(index, new HashMap<String, String>());
+                }
+                rows.get(index).put(matcher.group(3), properties.getProperty(name));
+            }
+        }
+
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.getFieldValue(anyString())).thenAnswer(new Answer<String>()
+        {
+            public String answer(InvocationOnMock invocation)
+            {
+                return properties.getProperty((String) invocation.getArguments()[0]);
+            }
+        });
+        for (Map.Entry<String, TreeMap<Integer, Map<String, String>>> table : tables.entrySet())
+        {
+            List<Row> rows = new ArrayList<Row>();
+            for (final Map<String, String> fields : table.getValue().values())
+            {
+                Row row = mock(Row.class);
+                when(row.getFieldValue(anyString())).thenAnswer(new Answer<String>()
+                {
+                    public String answer(InvocationOnMock invocation)
+                    {
+                        return fields.get(invocation.getArguments()[0]);
+                    }
+                });
+                rows.add(row);
+            }
+            Table mockTable = mock(Table.class);
+            when(mockTable.getRows()).thenReturn(rows);
+            when(configuration.getTable(table.getKey())).thenReturn(mockTable);
+        }
+        return configuration;
+    }
+
+    private static Record[] loadTraffic(String path) throws IOException
+    {
+        List<Record> records = new ArrayList<Record>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try
+        {
+            int line = 0;
+            for (String text = reader.readLine(); text != null; text = reader.readLine())
+            {
+                line++;
+                if (text.trim().length() == 0 || (line == 1 && text.startsWith("remoteAddr")))
+                {
+                    continue;
+                }
+                List<String> fields = parseCsv(text);
+                if (fields == null)
+                {
+                    throw new IOException("Bad CSV on line " + line + " of " + path);
+                }
+                records.add(new Record(field(fields, 0), field(fields, 1), field(fields, 2), field(fields, 3),
+                        field(fields, 4)));
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        if (records.isEmpty())
+        {
+            throw new IOException("No records in " + path);
+        }
+        return records.toArray(new Record[records.size()]);
+    }
+
+    private static String field(List<String> fields, int index)
+    {
+        return index < fields.size() && fields.get(index).length() > 0 ? fields.get(index) : null;
+    }
+
+    /**
+     * Split a CSV line, where fields may be quoted and quotes in them doubled
+     *
+     * @return The fields, or null if a quoted field is not closed
+     */
+    static List<String> parseCsv(String line)
+    {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (quoted)
+            {
+                if (c != '"')
+                {
+                    field.append(c);
+                }
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+                {
+                    field.append('"');
+                    i++;
+                }
+                else
+                {
+                    quoted = false;
+                }
+            }
+            else if (c == '"')
+            {
+                quoted = true;
+            }
+            else if (c == ',')
+            {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            }
+            else
+            {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return quoted ? null : fields;
+    }
+
+    /**
+     * One recorded sign-on, with the adapter input parameters built up front
+     */
+    private static final class Record
+    {
+        private final String remoteAddr;
+        private final List<String> forwarded;
+        private final List<String> xForwardedFor;
+        private final Map<String, Object> inParameters = new HashMap<String, Object>();
+
+        private Record(String remoteAddr, String forwarded, String xForwardedFor, String spEntityId,
+                String chainedUsername)
+        {
+            this.remoteAddr = remoteAddr;
+            this.forwarded = forwarded == null ? Collections.<String> emptyList()
+                    : Collections.singletonList(forwarded);
+            this.xForwardedFor = xForwardedFor == null ? Collections.<String> emptyList()
+                    : Collections.singletonList(xForwardedFor);
+            inParameters.put(IdpAuthenticationAdapterV2.IN_PARAMETER_NAME_PARTNER_ENTITYID, spEntityId);
+            if (chainedUsername != null)
+            {
+                Map<String, AttributeValue> chainedAttributes = new HashMap<String, AttributeValue>();
+                chainedAttributes.put("username", new AttributeValue(chainedUsername));
+                inParameters.put(IdpAuthenticationAdapterV2.IN_PARAMETER_NAME_CHAINED_ATTRIBUTES, chainedAttributes);
+            }
+        }
+    }
+
+    /**
+     * A request that answers what the adapter asks for from the current record
+     */
+    private static final class ReplayRequest extends HttpServletRequestWrapper
+    {
+        private Record record;
+
+        private ReplayRequest()
+        {
+            super(SampleSubnetAdapterBenchmark.unsupported(HttpServletRequest.class));
+        }
+
+        @Override
+        public String getRemoteAddr()
+        {
+            return record.remoteAddr;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name)
+        {
+            if (ForwardedHeaders.FORWARDED.equalsIgnoreCase(name))
+            {
+                return Collections.enumeration(record.forwarded);
+            }
+            if (ForwardedHeaders.X_FORWARDED_FOR.equalsIgnoreCase(name))
+            {
+                return Collections.enumeration(record.xForwardedFor);
+            }
+            return Collections.enumeration(Collections.<String> emptyList());
+        }
+
+        @Override
+        public Cookie[] getCookies()
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A response that drops the cookies the adapter sets
+     */
+    private static final class StubResponse extends HttpServletResponseWrapper
+    {
+        private StubResponse()
+        {
+            super(SampleSubnetAdapterBenchmark.unsupported(HttpServletResponse.class));
+        }
+
+        @Override
+        public void addCookie(Cookie cookie)
+        {
+        }
+    }
+
+    /**
+     * The measurements of one thread count
+     */
+    private static final class Result
+    {
+        private final int threads;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder operations = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private volatile boolean allocationUnknown = false;
+        private long nanos;
+
+        private Result(int threads)
+        {
+            this.threads = threads;
+        }
+
+        @Override
+        public String toString()
+        {
+            LatencyHistogram.Snapshot snapshot = latency.snapshot();
+            long count = operations.sum();
+            double seconds = nanos / 1e9;
+            String allocationRate = allocationUnknown ? "n/a" : String.format("%.1f", allocated.sum() / seconds / 1e6);
+            String bytesPerOperation = allocationUnknown || count == 0 ? "n/a" : String.valueOf(allocated.sum()
+                    / count);
+            return String.format("%8d %12.0f %10.1f %10.1f %10.1f %10.1f %12s %10s %8d", threads, count / seconds,
+                    snapshot.getValueAt(0.5) / 1e3, snapshot.getValueAt(0.99) / 1e3, snapshot.getValueAt(0.999) / 1e3,
+                    snapshot.getMax() / 1e3, allocationRate, bytesPerOperation, errors.sum());
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sourceid.saml20.adapter.conf.Configuration;
+import org.sourceid.saml20.adapter.conf.Field;
+import org.sourceid.saml20.adapter.gui.validation.ValidationException;
+
+import com.pingidentity.sdk.AuthnAdapterResponse;
+import com.pingidentity.sdk.IdpAuthenticationAdapterV2;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * <p>
+ * Benchmarks the per-SSO cost of {@link SampleSubnetAdapter}: {@link SampleSubnetAdapter#lookupAuthN} end to end, and
+ * the address parsing, range matching and configuration validation it is built from.
+ * </p>
+ * <p>
+ * The adapter is configured with a range file of <code>rangeCount</code> random ranges, of which
+ * <code>ipv6Percent</code> are IPv6, and is queried with client addresses of the same mix of which
+ * <code>hitPercent</code> fall in a range. Run with <code>mvn -Pjmh verify</code>, which adds <code>-prof gc</code> so
+ * the allocation rate per operation is reported next to the latency.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleSubnetAdapterBenchmark
+{
+    private static final int ADDRESS_COUNT = 4096;
+
+    /**
+     * The configured adapter and the client addresses to query it with
+     */
+    @State(Scope.Benchmark)
+    public static class AdapterState
+    {
+        @Param({ "16", "4096", "100000" })
+        int rangeCount;
+
+        @Param({ "0", "50" })
+        int ipv6Percent;
+
+        @Param({ "10", "90" })
+        int hitPercent;
+
+        SampleSubnetAdapter adapter;
+        SampleSubnetAdapter.IPv4FieldValidator validator;
+        HttpServletResponse response;
+        Map<String, Object> inParameters;
+
+        final String[] addresses = new String[ADDRESS_COUNT];
+        final long[] highs = new long[ADDRESS_COUNT];
+        final long[] lows = new long[ADDRESS_COUNT];
+        final String[] ipv4Addresses = new String[ADDRESS_COUNT];
+        final Field[] ipv4Fields = new Field[ADDRESS_COUNT];
+
+        private File rangeFile;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException
+        {
+            Random random = new Random(42);
+
+            // Write the ranges to a file, remembering them to pick addresses that hit
+            List<long[]> ranges4 = new ArrayList<long[]>();
+            List<long[]> ranges6 = new ArrayList<long[]>();
+            rangeFile = File.createTempFile("benchmark-ranges", ".txt");
+            Writer writer = new FileWriter(rangeFile);
+            try
+            {
+                for (int i = 0; i < rangeCount; i++)
+                {
+                    if (random.nextInt(100) < ipv6Percent)
+                    {
+                        int length = 32 + random.nextInt(33);
+                        long high = random.nextLong() & IpRangeSet.highMask(length);
+                        ranges6.add(new long[] { high, 0, length });
+                        writer.write(formatIPv6(high, 0) + "/" + length + "\n");
+                    }
+                    else
+                    {
+                        int length = 16 + random.nextInt(13);
+                        int address = random.nextInt() & IpRangeSet.mask(length);
+                        ranges4.add(new long[] { 0, IpAddresses.IPV4_MAPPED_PREFIX | (address & 0xFFFFFFFFL),
+                                length });
+                        writer.write(formatIPv4(address) + "/" + length + "\n");
+                    }
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+
+            Configuration configuration = mock(Configuration.class);
+            when(configuration.getFieldValue("Network Base Address")).thenReturn("192.168.1.0");
+            when(configuration.getFieldValue("Subnet Mask")).thenReturn("255.255.255.0");
+            when(configuration.getFieldValue("Range File")).thenReturn(rangeFile.getPath());
+            when(configuration.getFieldValue("Range File Check Interval")).thenReturn("3600");
+            adapter = new SampleSubnetAdapter();
+            adapter.configure(configuration);
+            validator = adapter.new IPv4FieldValidator();
+
+            response = new HttpServletResponseWrapper(unsupported(HttpServletResponse.class));
+            inParameters = new HashMap<String, Object>();
+            inParameters.put(IdpAuthenticationAdapterV2.IN_PARAMETER_NAME_PARTNER_ENTITYID, "https://sp.example.com");
+
+            for (int i = 0; i < ADDRESS_COUNT; i++)
+            {
+                boolean ipv6 = random.nextInt(100) < ipv6Percent;
+                List<long[]> ranges = ipv6 ? ranges6 : ranges4;
+                if (random.nextInt(100) < hitPercent && !ranges.isEmpty())
+                {
+                    // A random host in a random range
+                    long[] range = ranges.get(random.nextInt(ranges.size()));
+                    int length = (int) range[2] + (ipv6 ? 0 : 96);
+                    highs[i] = range[0] | (random.nextLong() & ~IpRangeSet.highMask(length));
+                    lows[i] = range[1] | (random.nextLong() & ~IpRangeSet.lowMask(length));
+                }
+                else
+                {
+                    do
+                    {
+                        highs[i] = ipv6 ? random.nextLong() : 0;
+                        lows[i] = ipv6 ? random.nextLong() : IpAddresses.IPV4_MAPPED_PREFIX | (random.nextInt()
+                                & 0xFFFFFFFFL);
+                    }
+                    while (adapter.isIpInSubnet(highs[i], lows[i]));
+                }
+                addresses[i] = ipv6 ? formatIPv6(highs[i], lows[i]) : formatIPv4((int) lows[i]);
+
+                ipv4Addresses[i] = formatIPv4(random.nextInt());
+                ipv4Fields[i] = new Field("Network Base Address", ipv4Addresses[i]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            rangeFile.delete();
+            new File(rangeFile.getPath() + ".snapshot").delete();
+        }
+    }
+
+    /**
+     * The position of each benchmark thread in the address list, and its request
+     */
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+        final StubRequest request = new StubRequest();
+        int next = 0;
+
+        int next()
+        {
+            next = (next + 1) & (ADDRESS_COUNT - 1);
+            return next;
+        }
+    }
+
+    /**
+     * A request that only answers what the adapter asks for, without the overhead of a mock
+     */
+    static class StubRequest extends HttpServletRequestWrapper
+    {
+        String remoteAddr;
+
+        StubRequest()
+        {
+            super(unsupported(HttpServletRequest.class));
+        }
+
+        @Override
+        public String getRemoteAddr()
+        {
+            return remoteAddr;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name)
+        {
+            return Collections.enumeration(Collections.<String> emptyList());
+        }
+    }
+
+    @Benchmark
+    public AuthnAdapterResponse lookupAuthN(AdapterState state, ThreadState thread) throws Exception
+    {
+        thread.request.remoteAddr = state.addresses[thread.next()];
+        return state.adapter.lookupAuthN(thread.request, state.response, state.inParameters);
+    }
+
+    @Benchmark
+    public int getIpAddress(AdapterState state, ThreadState thread)
+    {
+        return state.adapter.getIpAddress(state.ipv4Addresses[thread.next()]);
+    }
+
+    @Benchmark
+    public boolean isIpInSubnet(AdapterState state, ThreadState thread)
+    {
+        int i = thread.next();
+        return state.adapter.isIpInSubnet(state.highs[i], state.lows[i]);
+    }
+
+    @Benchmark
+    public Field ipv4FieldValidator(AdapterState state, ThreadState thread) throws ValidationException
+    {
+        Field field = state.ipv4Fields[thread.next()];
+        state.validator.validate(field);
+        return field;
+    }
+
+    /**
+     * Create an implementation of a servlet interface whose methods all throw, as the wrapped object of a stub
+     */
+    static <T> T unsupported(Class<T> type)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                }));
+    }
+
+    private static String formatIPv4(int address)
+    {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "."
+                + (address & 0xFF);
+    }
+
+    private static String formatIPv6(long high, long low)
+    {
+        StringBuilder s = new StringBuilder(39);
+        for (int group = 0; group < 8; group++)
+        {
+            long half = group < 4 ? high : low;
+            if (group > 0)
+            {
+                s.append(':');
+            }
+            s.append(Long.toHexString((half >>> (48 - (group % 4) * 16)) & 0xFFFF));
+        }
+        return s.toString();
+    }
+}
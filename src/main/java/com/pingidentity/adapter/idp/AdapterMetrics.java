@@ -0,0 +1,351 @@
+package com.pingidentity.adapter.idp;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pingidentity.sdk.AuthnAdapterResponse.AUTHN_STATUS;
+
+/**
+ * <p>
+ * Counts the decisions of a {@link SampleSubnetAdapter} instance and records how long they take.
+ * </p>
+ * <p>
+ * Counters are {@link LongAdder}s and latencies are {@link LatencyHistogram}s, both striped so request threads do not
+ * contend, and neither allocates, so recording stays in the tens of nanoseconds and can be left on in production. The
+ * values are read through JMX, see {@link AdapterMetricsMXBean}, and through the adapter's
+ * <code>getAdapterInfo()</code> map.
+ * </p>
+ */
+final class AdapterMetrics implements AdapterMetricsMXBean
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AdapterMetrics.class);
+
+    private static final String DOMAIN = "com.pingidentity.adapter.idp";
+    private static final String DEFAULT_NAME = "default";
+
+    private final LongAdder success = new LongAdder();
+    private final LongAdder failure = new LongAdder();
+    private final LongAdder ipv6Rejected = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder asserted = new LongAdder();
+    private final LongAdder denylisted = new LongAdder();
+    private final LongAdder riskDenied = new LongAdder();
+    private final LongAdder riskFallback = new LongAdder();
+    private final LongAdder guestRole = new LongAdder();
+    private final LongAdder corpUserRole = new LongAdder();
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final LatencyHistogram matchLatency = new LatencyHistogram();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    // The components that keep their own counts, replaced when the adapter is configured
+    private volatile AuditLog auditLog = null;
+    private volatile IpRateLimiter rateLimiter = null;
+    private volatile RiskServiceClient riskService = null;
+
+    /**
+     * Count a decision
+     *
+     * @param decision
+     *            The outcome
+     * @param ipv6
+     *            True if the client has an IPv6 address that is not IPv4-mapped
+     * @param role
+     *            The role given to the client, or null if it was not authenticated
+     */
+    void recordDecision(Decision decision, boolean ipv6, String role)
+    {
+        if (decision.getAuthnStatus() == AUTHN_STATUS.SUCCESS)
+        {
+            success.increment();
+        }
+        else
+        {
+            failure.increment();
+        }
+
+        if (decision == Decision.DENIED && ipv6)
+        {
+            ipv6Rejected.increment();
+        }
+        else if (decision == Decision.MALFORMED_ADDRESS)
+        {
+            malformed.increment();
+        }
+        else if (decision == Decision.RATE_LIMITED)
+        {
+            rateLimited.increment();
+        }
+        else if (decision == Decision.ASSERTED)
+        {
+            asserted.increment();
+        }
+        else if (decision == Decision.DENYLISTED)
+        {
+            denylisted.increment();
+        }
+        else if (decision == Decision.RISK_DENIED)
+        {
+            riskDenied.increment();
+        }
+
+        if (SampleSubnetAdapter.ROLE_GUEST.equals(role))
+        {
+            guestRole.increment();
+        }
+        else if (SampleSubnetAdapter.ROLE_CORP_USER.equals(role))
+        {
+            corpUserRole.increment();
+        }
+    }
+
+    /**
+     * Count a sign-on the networks decided because the risk service did not give a verdict in time
+     */
+    void recordRiskFallback()
+    {
+        riskFallback.increment();
+    }
+
+    /**
+     * Report the counts of the audit log the adapter records its decisions in
+     *
+     * @param log
+     *            The audit log, may be null
+     */
+    void setAuditLog(AuditLog log)
+    {
+        auditLog = log;
+    }
+
+    /**
+     * Report the counts of the rate limiter the adapter checks sources against
+     *
+     * @param limiter
+     *            The rate limiter, or null if there is no rate limit
+     */
+    void setRateLimiter(IpRateLimiter limiter)
+    {
+        rateLimiter = limiter;
+    }
+
+    /**
+     * Report the counts and circuit of the risk service client the adapter asks about clients
+     *
+     * @param client
+     *            The risk service client, or null if there is no risk service
+     */
+    void setRiskService(RiskServiceClient client)
+    {
+        riskService = client;
+    }
+
+    void recordParse(long nanos)
+    {
+        parseLatency.record(nanos);
+    }
+
+    void recordMatch(long nanos)
+    {
+        matchLatency.record(nanos);
+    }
+
+    void recordTotal(long nanos)
+    {
+        totalLatency.record(nanos);
+    }
+
+    public long getSuccessCount()
+    {
+        return success.sum();
+    }
+
+    public long getFailureCount()
+    {
+        return failure.sum();
+    }
+
+    public long getIPv6RejectedCount()
+    {
+        return ipv6Rejected.sum();
+    }
+
+    public long getMalformedCount()
+    {
+        return malformed.sum();
+    }
+
+    public long getRateLimitedCount()
+    {
+        return rateLimited.sum();
+    }
+
+    public long getAssertedCount()
+    {
+        return asserted.sum();
+    }
+
+    public long getDenylistedCount()
+    {
+        return denylisted.sum();
+    }
+
+    public long getRiskDeniedCount()
+    {
+        return riskDenied.sum();
+    }
+
+    public long getRiskFallbackCount()
+    {
+        return riskFallback.sum();
+    }
+
+    public long getGuestRoleCount()
+    {
+        return guestRole.sum();
+    }
+
+    public long getCorpUserRoleCount()
+    {
+        return corpUserRole.sum();
+    }
+
+    public long getAuditDroppedCount()
+    {
+        AuditLog log = auditLog;
+        return log == null ? 0 : log.getDropped();
+    }
+
+    public long getRateLimiterRefusedCount()
+    {
+        IpRateLimiter limiter = rateLimiter;
+        return limiter == null ? 0 : limiter.getLimited();
+    }
+
+    public long getRateLimiterEvictionCount()
+    {
+        IpRateLimiter limiter = rateLimiter;
+        return limiter == null ? 0 : limiter.getEvictions();
+    }
+
+    public long getRiskServiceCallCount()
+    {
+        RiskServiceClient client = riskService;
+        return client == null ? 0 : client.getCalls();
+    }
+
+    public long getRiskServiceCacheHitCount()
+    {
+        RiskServiceClient client = riskService;
+        return client == null ? 0 : client.getCacheHits();
+    }
+
+    public boolean isRiskServiceCircuitOpen()
+    {
+        RiskServiceClient client = riskService;
+        return client != null && client.isOpen();
+    }
+
+    public Map<String, Long> getParseLatency()
+    {
+        return toMap(parseLatency.snapshot());
+    }
+
+    public Map<String, Long> getMatchLatency()
+    {
+        return toMap(matchLatency.snapshot());
+    }
+
+    public Map<String, Long> getTotalLatency()
+    {
+        return toMap(totalLatency.snapshot());
+    }
+
+    /**
+     * @return Every metric in a flat map, latency keys are prefixed with their phase, e.g. <code>totalLatencyP99</code>
+     */
+    Map<String, Object> toAdapterInfo()
+    {
+        Map<String, Object> info = new LinkedHashMap<String, Object>();
+        info.put("successCount", getSuccessCount());
+        info.put("failureCount", getFailureCount());
+        info.put("ipv6RejectedCount", getIPv6RejectedCount());
+        info.put("malformedCount", getMalformedCount());
+        info.put("rateLimitedCount", getRateLimitedCount());
+        info.put("assertedCount", getAssertedCount());
+        info.put("denylistedCount", getDenylistedCount());
+        info.put("riskDeniedCount", getRiskDeniedCount());
+        info.put("riskFallbackCount", getRiskFallbackCount());
+        info.put("guestRoleCount", getGuestRoleCount());
+        info.put("corpUserRoleCount", getCorpUserRoleCount());
+        info.put("auditDroppedCount", getAuditDroppedCount());
+        info.put("rateLimiterRefusedCount", getRateLimiterRefusedCount());
+        info.put("rateLimiterEvictionCount", getRateLimiterEvictionCount());
+        info.put("riskServiceCallCount", getRiskServiceCallCount());
+        info.put("riskServiceCacheHitCount", getRiskServiceCacheHitCount());
+        info.put("riskServiceCircuitOpen", isRiskServiceCircuitOpen());
+        addLatency(info, "parseLatency", getParseLatency());
+        addLatency(info, "matchLatency", getMatchLatency());
+        addLatency(info, "totalLatency", getTotalLatency());
+        return info;
+    }
+
+    /**
+     * Register with the platform MBean server, replacing the metrics of an earlier instance with the same ID
+     *
+     * @param id
+     *            The adapter instance ID, may be null
+     */
+    void register(String id)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + SampleSubnetAdapter.class.getSimpleName()
+                    + ",name=" + ObjectName.quote(id == null ? DEFAULT_NAME : id));
+            synchronized (AdapterMetrics.class)
+            {
+                if (server.isRegistered(name))
+                {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(this, name);
+            }
+        }
+        catch (JMException e)
+        {
+            LOG.warn("Could not register the adapter metrics with JMX", e);
+        }
+    }
+
+    private static Map<String, Long> toMap(LatencyHistogram.Snapshot snapshot)
+    {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        map.put("count", snapshot.getCount());
+        map.put("mean", snapshot.getMean());
+        map.put("p50", snapshot.getValueAt(0.5));
+        map.put("p90", snapshot.getValueAt(0.9));
+        map.put("p99", snapshot.getValueAt(0.99));
+        map.put("p999", snapshot.getValueAt(0.999));
+        map.put("max", snapshot.getMax());
+        return map;
+    }
+
+    private static void addLatency(Map<String, Object> info, String prefix, Map<String, Long> latency)
+    {
+        for (Map.Entry<String, Long> entry : latency.entrySet())
+        {
+            String key = entry.getKey();
+            info.put(prefix + Character.toUpperCase(key.charAt(0)) + key.substring(1), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link SampleSubnetAdapter}'s metrics, registered with the platform MBean server as
+ * <code>com.pingidentity.adapter.idp:type=SampleSubnetAdapter,name=&lt;adapter instance ID&gt;</code>. Counts are
+ * totals since the adapter instance was created. Latencies are in nanoseconds and map <code>count</code>,
+ * <code>mean</code>, <code>p50</code>, <code>p90</code>, <code>p99</code>, <code>p999</code> and <code>max</code> to
+ * their values.
+ */
+public interface AdapterMetricsMXBean
+{
+    /**
+     * @return The number of sign-ons that succeeded
+     */
+    long getSuccessCount();
+
+    /**
+     * @return The number of sign-ons that failed, for any reason
+     */
+    long getFailureCount();
+
+    /**
+     * @return The number of IPv6 clients that were not on an authenticated network
+     */
+    long getIPv6RejectedCount();
+
+    /**
+     * @return The number of clients whose address was not an IP address literal
+     */
+    long getMalformedCount();
+
+    /**
+     * @return The number of clients refused by the rate limit
+     */
+    long getRateLimitedCount();
+
+    /**
+     * @return The number of sign-ons that succeeded on a network assertion cookie without being evaluated again
+     */
+    long getAssertedCount();
+
+    /**
+     * @return The number of clients refused because their address is on the denylist
+     */
+    long getDenylistedCount();
+
+    /**
+     * @return The number of clients on an authenticated network that the risk service refused
+     */
+    long getRiskDeniedCount();
+
+    /**
+     * @return The number of clients the risk service gave no verdict on in time, so the networks decided alone
+     */
+    long getRiskFallbackCount();
+
+    /**
+     * @return The number of successful sign-ons that were given the guest role
+     */
+    long getGuestRoleCount();
+
+    /**
+     * @return The number of successful sign-ons that were given the corporate user role
+     */
+    long getCorpUserRoleCount();
+
+    /**
+     * @return The number of audit events dropped because the buffer was full, since the audit log was started. The
+     *         log is shared by adapter instances with the same audit settings, so this counts their events too.
+     */
+    long getAuditDroppedCount();
+
+    /**
+     * @return The number of requests the rate limiter refused since the adapter instance was last configured, 0 if
+     *         there is no rate limit. Unlike {@link #getRateLimitedCount()}, this starts again from 0 when the rate
+     *         limiter is replaced.
+     */
+    long getRateLimiterRefusedCount();
+
+    /**
+     * @return The number of active sources the rate limiter forgot early because its table was full, since the
+     *         adapter instance was last configured. A steady rise means the Rate Limit Table Size is too small, and
+     *         sources are getting fresh bursts.
+     */
+    long getRateLimiterEvictionCount();
+
+    /**
+     * @return The number of calls made to the risk service since the adapter instance was last configured, 0 if there
+     *         is no risk service. Checks answered from the cache, joined to a call already under way or made while the
+     *         circuit is open are not calls.
+     */
+    long getRiskServiceCallCount();
+
+    /**
+     * @return The number of risk checks answered from the cache since the adapter instance was last configured
+     */
+    long getRiskServiceCacheHitCount();
+
+    /**
+     * @return True if the risk service failed several times in a row and is not being called for a while, so every
+     *         sign-on counts towards {@link #getRiskFallbackCount()}
+     */
+    boolean isRiskServiceCircuitOpen();
+
+    /**
+     * @return The time taken to find and parse the client address, including forwarding headers
+     */
+    Map<String, Long> getParseLatency();
+
+    /**
+     * @return The time taken to match the client address against the networks
+     */
+    Map<String, Long> getMatchLatency();
+
+    /**
+     * @return The time taken by the whole lookup
+     */
+    Map<String, Long> getTotalLatency();
+}
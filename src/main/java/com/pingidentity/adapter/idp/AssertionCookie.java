@@ -0,0 +1,211 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwa.AlgorithmConstraints.ConstraintType;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.jose4j.jwt.consumer.JwtConsumer;
+import org.jose4j.jwt.consumer.JwtConsumerBuilder;
+import org.jose4j.keys.HmacKey;
+import org.jose4j.lang.JoseException;
+
+/**
+ * <p>
+ * Issues and verifies a short-lived signed cookie that asserts a client was already found on an authenticated
+ * network, so later sign-ons in the same browser session can skip evaluating it again.
+ * </p>
+ * <p>
+ * The cookie is an HMAC SHA-256 signed JWT carrying the evaluated client address, the role given to it, the SP policy
+ * that was applied and the version of the ranges it was evaluated against. It is only accepted for the same client
+ * address, policy and role, and only while the ranges are unchanged, so editing the configuration or reloading a
+ * different range file invalidates every outstanding cookie. The signing key and the JWT consumer are built once per
+ * configuration.
+ * </p>
+ */
+final class AssertionCookie
+{
+    /**
+     * The name of the cookie
+     */
+    static final String NAME = "SubnetAdapterAssertion";
+
+    private static final String ISSUER = "SampleSubnetAdapter";
+    private static final String CLAIM_IP_ADDR = "ip_address";
+    private static final String CLAIM_ROLE = "role";
+    private static final String CLAIM_POLICY = "sp_policy";
+    private static final String CLAIM_VERSION = "ranges_version";
+    private static final int CLOCK_SKEW_SECONDS = 30;
+
+    private final HmacKey key;
+    private final JwtConsumer consumer;
+    private final int lifetimeSeconds;
+
+    /**
+     * @param secret
+     *            The secret the signing key is derived from, the same on every server of a cluster. If null or empty
+     *            a random key is used and cookies are only accepted by this server.
+     * @param lifetimeSeconds
+     *            How long a cookie is valid
+     */
+    AssertionCookie(String secret, int lifetimeSeconds)
+    {
+        this.key = new HmacKey(deriveKey(secret));
+        this.lifetimeSeconds = lifetimeSeconds;
+        this.consumer = new JwtConsumerBuilder()
+                .setRequireExpirationTime()
+                .setAllowedClockSkewInSeconds(CLOCK_SKEW_SECONDS)
+                .setExpectedIssuer(ISSUER)
+                .setVerificationKey(key)
+                .setJwsAlgorithmConstraints(new AlgorithmConstraints(ConstraintType.WHITELIST,
+                        AlgorithmIdentifiers.HMAC_SHA256))
+                .build();
+    }
+
+    /**
+     * Create a signed assertion
+     *
+     * @param ipAddress
+     *            The evaluated client address
+     * @param role
+     *            The role given to the client
+     * @param policy
+     *            The entity ID of the SP policy that was applied, or an empty string for the adapter's networks
+     * @param version
+     *            The version of the ranges the client was evaluated against
+     * @return The compact serialized JWT
+     * @throws JoseException
+     *             Thrown if the JWT cannot be signed
+     */
+    String issue(String ipAddress, String role, String policy, long version) throws JoseException
+    {
+        JwtClaims claims = new JwtClaims();
+        claims.setIssuer(ISSUER);
+        claims.setIssuedAtToNow();
+        claims.setExpirationTimeMinutesInTheFuture(lifetimeSeconds / 60f);
+        claims.setClaim(CLAIM_IP_ADDR, ipAddress);
+        claims.setClaim(CLAIM_ROLE, role);
+        claims.setClaim(CLAIM_POLICY, policy);
+        claims.setClaim(CLAIM_VERSION, Long.toHexString(version));
+
+        JsonWebSignature jws = new JsonWebSignature();
+        jws.setPayload(claims.toJson());
+        jws.setAlgorithmHeaderValue(AlgorithmIdentifiers.HMAC_SHA256);
+        jws.setKey(key);
+        return jws.getCompactSerialization();
+    }
+
+    /**
+     * Check whether an assertion still applies to a client
+     *
+     * @param token
+     *            The compact serialized JWT, may be null
+     * @param ipAddress
+     *            The client address as evaluated now
+     * @param role
+     *            The role the client would be given now
+     * @param policy
+     *            The entity ID of the SP policy that applies now, or an empty string for the adapter's networks
+     * @param version
+     *            The current version of the ranges
+     * @return True if the assertion is validly signed, unexpired and was issued for the same client, role, policy and
+     *         ranges
+     */
+    boolean verify(String token, String ipAddress, String role, String policy, long version)
+    {
+        if (token == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            JwtClaims claims = consumer.processToClaims(token);
+            return ipAddress.equals(claims.getStringClaimValue(CLAIM_IP_ADDR))
+                    && role.equals(claims.getStringClaimValue(CLAIM_ROLE))
+                    && policy.equals(claims.getStringClaimValue(CLAIM_POLICY))
+                    && Long.toHexString(version).equals(claims.getStringClaimValue(CLAIM_VERSION));
+        }
+        catch (InvalidJwtException e)
+        {
+            return false;
+        }
+        catch (MalformedClaimException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @param req
+     *            The request
+     * @return The value of the assertion cookie, or null if the request does not have one
+     */
+    static String find(HttpServletRequest req)
+    {
+        Cookie[] cookies = req.getCookies();
+        if (cookies != null)
+        {
+            for (Cookie cookie : cookies)
+            {
+                if (NAME.equals(cookie.getName()))
+                {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send an assertion to the browser, as a secure HTTP-only cookie that expires with it
+     *
+     * @param resp
+     *            The response
+     * @param token
+     *            The compact serialized JWT
+     */
+    void add(HttpServletResponse resp, String token)
+    {
+        Cookie cookie = new Cookie(NAME, token);
+        cookie.setPath("/");
+        cookie.setMaxAge(lifetimeSeconds);
+        cookie.setSecure(true);
+        cookie.setHttpOnly(true);
+        resp.addCookie(cookie);
+    }
+
+    private static byte[] deriveKey(String secret)
+    {
+        if (secret == null || secret.length() == 0)
+        {
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            return random;
+        }
+
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(secret.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
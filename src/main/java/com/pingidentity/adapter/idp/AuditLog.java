@@ -0,0 +1,367 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Records an audit event for every authentication decision without slowing down the request threads.
+ * </p>
+ * <p>
+ * Request threads claim a pre-allocated slot in a bounded ring buffer with a single compare-and-set and copy the event
+ * fields into it; nothing is formatted, concatenated or locked on the request path. A single background thread drains
+ * the buffer in batches and writes each event as its own record through this class's slf4j logger, which can be
+ * routed to its own file by the logging configuration. The thread sleeps while the buffer is empty and is woken by the
+ * first event recorded after it went to sleep.
+ * </p>
+ * <p>
+ * When the buffer is full, the {@link OverflowPolicy} decides whether the event is dropped (and counted, the count is
+ * logged periodically) or the request thread waits for space. A request thread never waits on a log that has been
+ * released, as nothing would make space. Audit logs are shared by configuration, so adapter instances that are
+ * reconfigured with the same settings do not start more threads, and the thread stops once every adapter using the
+ * log has released it.
+ * </p>
+ */
+final class AuditLog
+{
+    /**
+     * What to do with an event when the buffer is full
+     */
+    enum OverflowPolicy
+    {
+        /**
+         * Discard the event and count it, so auditing never slows down authentication
+         */
+        DROP,
+
+        /**
+         * Wait until the background thread makes space, so no event is lost
+         */
+        BLOCK
+    }
+
+    /**
+     * The buffer size used when none is configured
+     */
+    static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The message pattern of an audit event
+     */
+    static final String FORMAT = "decision={} client={} sp={} latencyMicros={} time={}";
+
+    private static final Logger LOG = LoggerFactory.getLogger(AuditLog.class);
+
+    private static final ConcurrentMap<String, AuditLog> LOGS = new ConcurrentHashMap<String, AuditLog>();
+
+    private static final int MAX_CAPACITY = 1 << 20;
+    private static final int BATCH_SIZE = 256;
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long DROP_REPORT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * A fixed-layout event, written by one request thread and then read by the background thread
+     */
+    private static final class Slot
+    {
+        private long time;
+        private long latencyNanos;
+        private Decision decision;
+        private String client;
+        private String spEntityId;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final OverflowPolicy policy;
+
+    // The sequence of each slot says whose turn it is: equal to the position when free, position + 1 when written
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    // Set by the background thread before it sleeps, cleared by the first request thread that wakes it
+    private final AtomicBoolean sleeping = new AtomicBoolean();
+    private volatile Thread consumer = null;
+    private volatile boolean stopped = false;
+
+    // The number of adapters using the log, guarded by LOGS
+    private int users = 0;
+
+    // Only touched by the thread that drains the buffer
+    private long head = 0;
+    private long reportedDrops = 0;
+    private long lastDropReport = 0;
+
+    /**
+     * Create an audit log without starting its background thread
+     *
+     * @param capacity
+     *            The number of events the buffer holds, rounded up to a power of two
+     * @param policy
+     *            What to do when the buffer is full
+     */
+    AuditLog(int capacity, OverflowPolicy policy)
+    {
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+        {
+            throw new IllegalArgumentException("Audit buffer size must be between 1 and " + MAX_CAPACITY);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        this.slots = new Slot[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.policy = policy;
+    }
+
+    /**
+     * Get the audit log for a configuration, starting its background thread the first time. Every call must be
+     * matched by a call to {@link #release()} once the caller no longer records events.
+     *
+     * @param capacity
+     *            The number of events the buffer holds, rounded up to a power of two
+     * @param policy
+     *            What to do when the buffer is full
+     * @return The shared audit log
+     */
+    static AuditLog get(int capacity, OverflowPolicy policy)
+    {
+        String key = capacity + "/" + policy;
+        synchronized (LOGS)
+        {
+            AuditLog log = LOGS.get(key);
+            if (log == null)
+            {
+                log = new AuditLog(capacity, policy);
+                log.start();
+                LOGS.put(key, log);
+            }
+            log.users++;
+            return log;
+        }
+    }
+
+    /**
+     * Stop using the log for one caller of {@link #get}. When no caller is left the background thread writes out the
+     * events already recorded and stops, and the next call to {@link #get} starts a new log.
+     */
+    void release()
+    {
+        synchronized (LOGS)
+        {
+            if (users == 0 || --users > 0)
+            {
+                return;
+            }
+            LOGS.values().remove(this);
+        }
+        stopped = true;
+        Thread thread = consumer;
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Record an authentication decision
+     *
+     * @param decision
+     *            The outcome
+     * @param client
+     *            The client address as evaluated
+     * @param spEntityId
+     *            The entity ID of the SP the client is signing on to
+     * @param latencyNanos
+     *            How long the decision took
+     * @return True if the event was recorded, false if it was dropped because the buffer was full and the log drops
+     *         events or has been released
+     */
+    boolean record(Decision decision, String client, String spEntityId, long latencyNanos)
+    {
+        long position;
+        int index;
+        while (true)
+        {
+            position = tail.get();
+            index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    break;
+                }
+            }
+            else if (sequence < position)
+            {
+                // The slot still holds the event from one lap ago, the buffer is full. Once the log is stopped the
+                // background thread may be gone, so waiting could last forever.
+                if (policy == OverflowPolicy.DROP || stopped)
+                {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+        }
+
+        Slot slot = slots[index];
+        slot.time = System.currentTimeMillis();
+        slot.latencyNanos = latencyNanos;
+        slot.decision = decision;
+        slot.client = client;
+        slot.spEntityId = spEntityId;
+
+        // A volatile write, so it cannot be reordered with the read of the sleeping flag that follows
+        sequences.set(index, position + 1);
+        if (sleeping.get() && sleeping.compareAndSet(true, false))
+        {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of events dropped because the buffer was full
+     */
+    long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of events the buffer holds
+     */
+    int capacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Write out the events recorded so far, up to a batch, one log record per event. Must only be called by one thread
+     * at a time.
+     *
+     * @return The number of events written
+     */
+    int drain()
+    {
+        boolean enabled = LOG.isInfoEnabled();
+        int count = 0;
+        while (count < BATCH_SIZE)
+        {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1)
+            {
+                break;
+            }
+
+            // Copy the event out and free the slot before writing, so a failing logger cannot stall the buffer
+            Slot slot = slots[index];
+            long time = slot.time;
+            long latencyNanos = slot.latencyNanos;
+            Decision decision = slot.decision;
+            String client = slot.client;
+            String spEntityId = slot.spEntityId;
+            slot.client = null;
+            slot.spEntityId = null;
+            sequences.lazySet(index, head + slots.length);
+            head++;
+            count++;
+
+            if (enabled)
+            {
+                LOG.info(FORMAT, decision, client, spEntityId, TimeUnit.NANOSECONDS.toMicros(latencyNanos), time);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return True if the next event to write has been recorded
+     */
+    private boolean hasEvent()
+    {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    private void start()
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        // Drops happen under sustained load, when the buffer may never empty, so check on every pass
+                        int count = drain();
+                        reportDrops();
+                        if (count > 0)
+                        {
+                            continue;
+                        }
+                        if (stopped)
+                        {
+                            return;
+                        }
+
+                        // Announce the sleep before the last look at the buffer, so an event recorded after it wakes
+                        // this thread. The timeout only bounds how late the final drop count is reported.
+                        sleeping.set(true);
+                        if (!hasEvent() && !stopped)
+                        {
+                            LockSupport.parkNanos(AuditLog.this, TimeUnit.MILLISECONDS.toNanos(DROP_REPORT_MILLIS));
+                        }
+                        sleeping.set(false);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        LOG.error("Could not write audit events", e);
+                    }
+                }
+            }
+        }, "audit-log");
+        thread.setDaemon(true);
+        consumer = thread;
+        thread.start();
+    }
+
+    private void reportDrops()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastDropReport < DROP_REPORT_MILLIS)
+        {
+            return;
+        }
+
+        long total = dropped.sum();
+        if (total != reportedDrops)
+        {
+            LOG.warn("{} audit events were dropped because the buffer of {} was full", total - reportedDrops,
+                    slots.length);
+            reportedDrops = total;
+        }
+        lastDropReport = now;
+    }
+}
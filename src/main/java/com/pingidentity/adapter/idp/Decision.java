@@ -0,0 +1,60 @@
+package com.pingidentity.adapter.idp;
+
+import com.pingidentity.sdk.AuthnAdapterResponse.AUTHN_STATUS;
+
+/**
+ * The outcome of evaluating a client in {@link SampleSubnetAdapter#lookupAuthN}. Several outcomes can map to the same
+ * {@link AUTHN_STATUS}, the distinct values let logging and monitoring tell them apart.
+ */
+enum Decision
+{
+    /**
+     * The client address is in one of the authenticated networks
+     */
+    ALLOWED(AUTHN_STATUS.SUCCESS),
+
+    /**
+     * The client presented a valid network assertion cookie for its address, so it was not evaluated again
+     */
+    ASSERTED(AUTHN_STATUS.SUCCESS),
+
+    /**
+     * The client address is not in any authenticated network
+     */
+    DENIED(AUTHN_STATUS.FAILURE),
+
+    /**
+     * The container did not report an IP address literal for the client, so it could not be evaluated
+     */
+    MALFORMED_ADDRESS(AUTHN_STATUS.FAILURE),
+
+    /**
+     * The client's source sent more requests than the configured rate limit allows, so it was not evaluated
+     */
+    RATE_LIMITED(AUTHN_STATUS.FAILURE),
+
+    /**
+     * The client address is on the denylist, so it was not evaluated
+     */
+    DENYLISTED(AUTHN_STATUS.FAILURE),
+
+    /**
+     * The client address is in an authenticated network, but the risk service refused it
+     */
+    RISK_DENIED(AUTHN_STATUS.FAILURE);
+
+    private final AUTHN_STATUS authnStatus;
+
+    private Decision(AUTHN_STATUS authnStatus)
+    {
+        this.authnStatus = authnStatus;
+    }
+
+    /**
+     * @return The authentication status reported to PingFederate for this outcome
+     */
+    AUTHN_STATUS getAuthnStatus()
+    {
+        return authnStatus;
+    }
+}
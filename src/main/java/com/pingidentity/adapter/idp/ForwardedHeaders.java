@@ -0,0 +1,226 @@
+package com.pingidentity.adapter.idp;
+
+/**
+ * <p>
+ * Finds the client address in an <code>X-Forwarded-For</code> or RFC 7239 <code>Forwarded</code> header.
+ * </p>
+ * <p>
+ * Each proxy appends the address it received the request from, so the header is walked from right to left, skipping
+ * hops that are trusted proxies, until the first untrusted hop is found; that hop is the client. If every hop is
+ * trusted the leftmost one is the client. The walk works on indexes into the header value and never splits it,
+ * creates substrings or uses regular expressions.
+ * </p>
+ * <p>
+ * Commas are treated as hop separators even inside quoted strings, which RFC 7239 allows but proxies do not produce
+ * in practice for the <code>for</code> parameter.
+ * </p>
+ */
+public final class ForwardedHeaders
+{
+    /**
+     * The de facto standard header, a comma separated list of addresses
+     */
+    public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    /**
+     * The RFC 7239 header, a comma separated list of elements whose <code>for</code> parameter holds the address
+     */
+    public static final String FORWARDED = "Forwarded";
+
+    /**
+     * Returned by {@link #findClient} when the header has no hops
+     */
+    public static final long NO_HOP = -1L;
+
+    /**
+     * Returned by {@link #findClient} when a hop that had to be evaluated is not an IP address literal, e.g.
+     * <code>unknown</code> or an obfuscated RFC 7239 identifier, or is an IPv6 address with a zone ID
+     */
+    public static final long MALFORMED = -2L;
+
+    private ForwardedHeaders()
+    {
+    }
+
+    /**
+     * Find the client address in a forwarding header
+     *
+     * @param header
+     *            The header value, multiple header lines joined with commas in the order received
+     * @param rfc7239
+     *            True if the value is a <code>Forwarded</code> header, false for <code>X-Forwarded-For</code>
+     * @param trustedProxies
+     *            The ranges of proxies whose hops are skipped
+     * @param out
+     *            Receives the client address as two longs, see {@link IpAddresses#parse}
+     * @return The position of the client address in the header, to be decoded with {@link #start(long)} and
+     *         {@link #end(long)}, or {@link #NO_HOP} or {@link #MALFORMED}
+     */
+    public static long findClient(String header, boolean rfc7239, IpRangeSet trustedProxies, long[] out)
+    {
+        long client = NO_HOP;
+        int end = header.length();
+        while (true)
+        {
+            int comma = end - 1;
+            while (comma >= 0 && header.charAt(comma) != ',')
+            {
+                comma--;
+            }
+
+            int from = skipWhitespace(header, comma + 1, end);
+            int to = trimWhitespace(header, from, end);
+            if (from == to)
+            {
+                // A completely empty header has no hops, which is for the caller to judge, but an empty hop in a
+                // chain is malformed
+                if (comma < 0 && client == NO_HOP)
+                {
+                    return NO_HOP;
+                }
+                return MALFORMED;
+            }
+
+            long hop = rfc7239 ? forParameter(header, from, to) : position(from, to);
+            if (hop == MALFORMED)
+            {
+                return MALFORMED;
+            }
+            hop = stripPort(header, start(hop), end(hop));
+            if (hasZoneId(header, start(hop), end(hop))
+                    || IpAddresses.parse(header, start(hop), end(hop), out) == IpAddresses.MALFORMED)
+            {
+                return MALFORMED;
+            }
+
+            client = hop;
+            if (!trustedProxies.contains(out[0], out[1]) || comma < 0)
+            {
+                return client;
+            }
+            end = comma;
+        }
+    }
+
+    /**
+     * @param position
+     *            A position returned by {@link #findClient}
+     * @return The index of the first character of the address
+     */
+    public static int start(long position)
+    {
+        return (int) (position >>> 32);
+    }
+
+    /**
+     * @param position
+     *            A position returned by {@link #findClient}
+     * @return The index after the last character of the address
+     */
+    public static int end(long position)
+    {
+        return (int) position;
+    }
+
+    private static long position(int from, int to)
+    {
+        return ((long) from << 32) | to;
+    }
+
+    /**
+     * Locate the value of the <code>for</code> parameter in a <code>Forwarded</code> element, without its quotes
+     */
+    private static long forParameter(String header, int from, int to)
+    {
+        int pair = from;
+        while (pair < to)
+        {
+            int semicolon = pair;
+            while (semicolon < to && header.charAt(semicolon) != ';')
+            {
+                semicolon++;
+            }
+
+            int name = skipWhitespace(header, pair, semicolon);
+            if (semicolon - name > 4 && header.regionMatches(true, name, "for=", 0, 4))
+            {
+                int valueFrom = name + 4;
+                int valueTo = trimWhitespace(header, valueFrom, semicolon);
+                if (valueTo - valueFrom >= 2 && header.charAt(valueFrom) == '"' && header.charAt(valueTo - 1) == '"')
+                {
+                    valueFrom++;
+                    valueTo--;
+                }
+                return valueFrom < valueTo ? position(valueFrom, valueTo) : MALFORMED;
+            }
+            pair = semicolon + 1;
+        }
+        return MALFORMED;
+    }
+
+    /**
+     * Drop a port from <code>a.b.c.d:port</code> or <code>[v6]:port</code>, and the brackets from <code>[v6]</code>
+     */
+    private static long stripPort(String header, int from, int to)
+    {
+        if (header.charAt(from) == '[')
+        {
+            for (int i = from + 1; i < to; i++)
+            {
+                if (header.charAt(i) == ']')
+                {
+                    return position(from + 1, i);
+                }
+            }
+            return position(from, to);
+        }
+
+        // An unbracketed address with a single colon is IPv4 with a port, IPv6 has at least two
+        int colon = -1;
+        for (int i = from; i < to; i++)
+        {
+            if (header.charAt(i) == ':')
+            {
+                if (colon >= 0)
+                {
+                    return position(from, to);
+                }
+                colon = i;
+            }
+        }
+        return colon < 0 ? position(from, to) : position(from, colon);
+    }
+
+    /**
+     * A zone ID only means something on the host that wrote it, so a hop that has one is not a usable client address
+     */
+    private static boolean hasZoneId(String header, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (header.charAt(i) == '%')
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int skipWhitespace(String s, int from, int to)
+    {
+        while (from < to && (s.charAt(from) == ' ' || s.charAt(from) == '\t'))
+        {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimWhitespace(String s, int from, int to)
+    {
+        while (to > from && (s.charAt(to - 1) == ' ' || s.charAt(to - 1) == '\t'))
+        {
+            to--;
+        }
+        return to;
+    }
+}
@@ -0,0 +1,408 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * A read-only binary database of IP ranges and the country and autonomous system (ASN) they belong to.
+ * </p>
+ * <p>
+ * The file is memory mapped rather than read, so opening it costs the same whatever its size, its contents stay out
+ * of the Java heap and are shared through the page cache by every adapter instance on the server. It holds sorted,
+ * non-overlapping ranges in columns of primitives: the IPv6 range starts and ends, the IPv4 range starts and ends,
+ * then the ASN and the country of every range, IPv4 ranges first. A lookup is a binary search of the start column
+ * read in place, and creates no objects. Files are written with a {@link Builder}, or converted from CSV exports
+ * with {@link GeoIpImporter}.
+ * </p>
+ * <p>
+ * All values are big-endian. The 16 byte header holds a magic number, the format version and the number of IPv4 and
+ * IPv6 ranges. Countries are ISO 3166 alpha-2 codes, stored as two ASCII bytes, or zero if unknown. Since a mapping is
+ * limited to 2GB, so is the file, about 50 million IPv6 ranges.
+ * </p>
+ */
+public final class GeoIpDatabase
+{
+    /**
+     * Returned by {@link #lookup(long, long)} when the address is not in any range
+     */
+    public static final int NOT_FOUND = -1;
+
+    private static final int MAGIC = 0x47454F49;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int IPV4_RANGE_SIZE = 2 * 4 + 4 + 2;
+    private static final int IPV6_RANGE_SIZE = 4 * 8 + 4 + 2;
+
+    // Every two letter code, so reading a country does not allocate
+    private static final String[] COUNTRY_CODES = new String[26 * 26];
+
+    static
+    {
+        for (int i = 0; i < COUNTRY_CODES.length; i++)
+        {
+            COUNTRY_CODES[i] = new String(new char[] { (char) ('A' + i / 26), (char) ('A' + i % 26) });
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int ipv4Count;
+    private final int ipv6Count;
+    private final int ipv6Starts;
+    private final int ipv6Ends;
+    private final int ipv4Starts;
+    private final int ipv4Ends;
+    private final int asns;
+    private final int countries;
+
+    private GeoIpDatabase(MappedByteBuffer buffer, int ipv4Count, int ipv6Count)
+    {
+        this.buffer = buffer;
+        this.ipv4Count = ipv4Count;
+        this.ipv6Count = ipv6Count;
+        this.ipv6Starts = HEADER_SIZE;
+        this.ipv6Ends = ipv6Starts + ipv6Count * 16;
+        this.ipv4Starts = ipv6Ends + ipv6Count * 16;
+        this.ipv4Ends = ipv4Starts + ipv4Count * 4;
+        this.asns = ipv4Ends + ipv4Count * 4;
+        this.countries = asns + (ipv4Count + ipv6Count) * 4;
+    }
+
+    /**
+     * Map a database file. Only the header is read.
+     *
+     * @param file
+     *            The database file
+     * @return The database
+     * @throws IOException
+     *             Thrown if the file cannot be mapped, or is not a database in this format
+     */
+    public static GeoIpDatabase open(File file) throws IOException
+    {
+        if (!file.isFile())
+        {
+            throw new FileNotFoundException(file.getPath());
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try
+        {
+            long length = in.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+            {
+                throw new IOException("Not a GeoIP database: " + file);
+            }
+
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int ipv4Count = buffer.getInt(8);
+            int ipv6Count = buffer.getInt(12);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || ipv4Count < 0 || ipv6Count < 0
+                    || length != HEADER_SIZE + (long) ipv4Count * IPV4_RANGE_SIZE
+                            + (long) ipv6Count * IPV6_RANGE_SIZE)
+            {
+                throw new IOException("Not a GeoIP database: " + file);
+            }
+            return new GeoIpDatabase(buffer, ipv4Count, ipv6Count);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Find the range that holds an address
+     *
+     * @param high
+     *            The high 64 bits of the address, IPv4 addresses are in IPv4-mapped form
+     * @param low
+     *            The low 64 bits of the address
+     * @return The index of the range, or {@link #NOT_FOUND}
+     */
+    public int lookup(long high, long low)
+    {
+        if (IpRangeSet.isIPv4Mapped(high, low))
+        {
+            int address = (int) low;
+            int lo = 0;
+            int hi = ipv4Count - 1;
+            while (lo <= hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (Integer.compareUnsigned(buffer.getInt(ipv4Starts + mid * 4), address) <= 0)
+                {
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid - 1;
+                }
+            }
+            return hi >= 0 && Integer.compareUnsigned(address, buffer.getInt(ipv4Ends + hi * 4)) <= 0 ? hi
+                    : NOT_FOUND;
+        }
+
+        int lo = 0;
+        int hi = ipv6Count - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (compare(ipv6Starts + mid * 16, high, low) <= 0)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+        return hi >= 0 && compare(ipv6Ends + hi * 16, high, low) >= 0 ? ipv4Count + hi : NOT_FOUND;
+    }
+
+    /**
+     * @param range
+     *            A range index returned by {@link #lookup(long, long)}
+     * @return The two letter country code of the range, or null if it is unknown
+     */
+    public String getCountry(int range)
+    {
+        int code = buffer.getShort(countries + range * 2);
+        int first = ((code >>> 8) & 0xFF) - 'A';
+        int second = (code & 0xFF) - 'A';
+        return first < 0 || first >= 26 || second < 0 || second >= 26 ? null : COUNTRY_CODES[first * 26 + second];
+    }
+
+    /**
+     * @param range
+     *            A range index returned by {@link #lookup(long, long)}
+     * @return The autonomous system number of the range, or 0 if it is unknown
+     */
+    public long getAsn(int range)
+    {
+        return buffer.getInt(asns + range * 4) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return The number of ranges in the database
+     */
+    public int size()
+    {
+        return ipv4Count + ipv6Count;
+    }
+
+    /**
+     * Parse a CIDR range into its first and last address
+     *
+     * @param cidr
+     *            The range, e.g. 192.0.2.0/24 or 2001:db8::/32, a bare address is a single host range
+     * @param range
+     *            Receives the high and low 64 bits of the first address at indexes 0 and 1 and of the last address at
+     *            indexes 2 and 3, IPv4 addresses in IPv4-mapped form
+     * @throws IllegalArgumentException
+     *             Thrown if the range is not valid
+     */
+    static void parseCidr(String cidr, long[] range)
+    {
+        int slash = cidr.indexOf('/');
+        long[] address = new long[2];
+        int type = IpAddresses.parse(cidr, 0, slash < 0 ? cidr.length() : slash, address);
+        int bits = type == IpAddresses.IPV4 ? 32 : 128;
+        int prefixLength = slash < 0 ? bits : IpAddresses.parsePrefixLength(cidr, slash + 1, cidr.length(), bits);
+        if (type == IpAddresses.MALFORMED || prefixLength < 0)
+        {
+            throw new IllegalArgumentException("Bad CIDR " + cidr);
+        }
+
+        int mappedLength = prefixLength + 128 - bits;
+        long highMask = IpRangeSet.highMask(mappedLength);
+        long lowMask = IpRangeSet.lowMask(mappedLength);
+        range[0] = address[0] & highMask;
+        range[1] = address[1] & lowMask;
+        range[2] = address[0] | ~highMask;
+        range[3] = address[1] | ~lowMask;
+    }
+
+    /**
+     * Compare the 128-bit address at an offset with another, as unsigned numbers
+     */
+    private int compare(int offset, long high, long low)
+    {
+        int result = Long.compareUnsigned(buffer.getLong(offset), high);
+        return result != 0 ? result : Long.compareUnsigned(buffer.getLong(offset + 8), low);
+    }
+
+    /**
+     * Collects ranges and writes them as a database file. Builders are not thread safe.
+     */
+    public static final class Builder
+    {
+        private final List<long[]> ranges = new ArrayList<long[]>();
+
+        /**
+         * Add a CIDR range
+         *
+         * @param cidr
+         *            The range, e.g. 192.0.2.0/24 or 2001:db8::/32
+         * @param country
+         *            The two letter country code, or null if unknown
+         * @param asn
+         *            The autonomous system number, or 0 if unknown
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if the range, country or ASN is not valid
+         */
+        public Builder add(String cidr, String country, long asn)
+        {
+            long[] range = new long[4];
+            parseCidr(cidr, range);
+            return add(range[0], range[1], range[2], range[3], country, asn);
+        }
+
+        /**
+         * Add a range of addresses
+         *
+         * @param startHigh
+         *            The high 64 bits of the first address, IPv4 addresses are in IPv4-mapped form
+         * @param startLow
+         *            The low 64 bits of the first address
+         * @param endHigh
+         *            The high 64 bits of the last address
+         * @param endLow
+         *            The low 64 bits of the last address
+         * @param country
+         *            The two letter country code, or null if unknown
+         * @param asn
+         *            The autonomous system number, or 0 if unknown
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if the range, country or ASN is not valid
+         */
+        public Builder add(long startHigh, long startLow, long endHigh, long endLow, String country, long asn)
+        {
+            boolean ipv4 = IpRangeSet.isIPv4Mapped(startHigh, startLow);
+            if (ipv4 != IpRangeSet.isIPv4Mapped(endHigh, endLow) || compare(startHigh, startLow, endHigh, endLow) > 0)
+            {
+                throw new IllegalArgumentException("Bad range");
+            }
+            if (country != null && (country.length() != 2 || country.charAt(0) < 'A' || country.charAt(0) > 'Z'
+                    || country.charAt(1) < 'A' || country.charAt(1) > 'Z'))
+            {
+                throw new IllegalArgumentException("Bad country code " + country);
+            }
+            if (asn < 0 || asn > 0xFFFFFFFFL)
+            {
+                throw new IllegalArgumentException("Bad ASN " + asn);
+            }
+
+            int code = country == null ? 0 : (country.charAt(0) << 8) | country.charAt(1);
+            ranges.add(new long[] { ipv4 ? 4 : 6, startHigh, startLow, endHigh, endLow, asn, code });
+            return this;
+        }
+
+        /**
+         * Write the collected ranges, replacing the file atomically so readers never see a partial database
+         *
+         * @param file
+         *            The database file
+         * @throws IOException
+         *             Thrown if the file cannot be written
+         * @throws IllegalArgumentException
+         *             Thrown if two ranges overlap
+         */
+        public void write(File file) throws IOException
+        {
+            // IPv4 ranges sort first, then both families by start address
+            List<long[]> sorted = new ArrayList<long[]>(ranges);
+            Collections.sort(sorted, new Comparator<long[]>()
+            {
+                public int compare(long[] a, long[] b)
+                {
+                    return a[0] != b[0] ? Long.compare(a[0], b[0]) : Builder.compare(a[1], a[2], b[1], b[2]);
+                }
+            });
+
+            int ipv4Count = 0;
+            for (int i = 0; i < sorted.size(); i++)
+            {
+                long[] range = sorted.get(i);
+                if (range[0] == 4)
+                {
+                    ipv4Count++;
+                }
+                if (i > 0 && sorted.get(i - 1)[0] == range[0]
+                        && compare(sorted.get(i - 1)[3], sorted.get(i - 1)[4], range[1], range[2]) >= 0)
+                {
+                    throw new IllegalArgumentException("Overlapping ranges");
+                }
+            }
+            int ipv6Count = sorted.size() - ipv4Count;
+
+            File temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            try
+            {
+                RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+                try
+                {
+                    MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                            HEADER_SIZE + (long) ipv4Count * IPV4_RANGE_SIZE + (long) ipv6Count * IPV6_RANGE_SIZE);
+                    buffer.putInt(MAGIC).putInt(VERSION).putInt(ipv4Count).putInt(ipv6Count);
+                    for (int i = ipv4Count; i < sorted.size(); i++)
+                    {
+                        buffer.putLong(sorted.get(i)[1]).putLong(sorted.get(i)[2]);
+                    }
+                    for (int i = ipv4Count; i < sorted.size(); i++)
+                    {
+                        buffer.putLong(sorted.get(i)[3]).putLong(sorted.get(i)[4]);
+                    }
+                    for (int i = 0; i < ipv4Count; i++)
+                    {
+                        buffer.putInt((int) sorted.get(i)[2]);
+                    }
+                    for (int i = 0; i < ipv4Count; i++)
+                    {
+                        buffer.putInt((int) sorted.get(i)[4]);
+                    }
+                    for (long[] range : sorted)
+                    {
+                        buffer.putInt((int) range[5]);
+                    }
+                    for (long[] range : sorted)
+                    {
+                        buffer.putShort((short) range[6]);
+                    }
+                    buffer.force();
+                }
+                finally
+                {
+                    out.close();
+                }
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                if (temporary.exists() && !temporary.delete())
+                {
+                    temporary.deleteOnExit();
+                }
+            }
+        }
+
+        private static int compare(long highA, long lowA, long highB, long lowB)
+        {
+            int result = Long.compareUnsigned(highA, highB);
+            return result != 0 ? result : Long.compareUnsigned(lowA, lowB);
+        }
+    }
+}
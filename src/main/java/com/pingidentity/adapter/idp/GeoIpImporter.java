@@ -0,0 +1,584 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Converts CSV exports of IP geolocation and ASN data into a {@link GeoIpDatabase} file.
+ * </p>
+ * <p>
+ * Two kinds of input are read. MaxMind GeoLite2 and GeoIP2 CSV: the <code>Country-Blocks-IPv4</code> and
+ * <code>IPv6</code> files with the <code>Country-Locations</code> file that maps their geoname IDs to country codes,
+ * and the <code>ASN-Blocks-IPv4</code> and <code>IPv6</code> files, with their columns found by the header line. And a
+ * plain CSV of <code>network,country,asn</code> lines, where the network is a CIDR range, a single address or a
+ * <code>first-last</code> range of addresses, the country a two letter code and the ASN a number, either of which may
+ * be empty; a line starting with <code>#</code> or <code>network</code> is skipped. Other sources, such as
+ * IP2Location, can be exported to the plain form.
+ * </p>
+ * <p>
+ * The country ranges and the ASN ranges of all inputs are joined, so a range of the database is a run of addresses
+ * with the same country and ASN. Within each, ranges must not overlap. Run with e.g.
+ * </p>
+ *
+ * <pre>
+ * java -cp sample-subnet-adapter.jar com.pingidentity.adapter.idp.GeoIpImporter --out geoip.db \
+ *     --maxmind-locations GeoLite2-Country-Locations-en.csv \
+ *     --maxmind-country GeoLite2-Country-Blocks-IPv4.csv --maxmind-country GeoLite2-Country-Blocks-IPv6.csv \
+ *     --maxmind-asn GeoLite2-ASN-Blocks-IPv4.csv --maxmind-asn GeoLite2-ASN-Blocks-IPv6.csv
+ * </pre>
+ */
+public final class GeoIpImporter
+{
+    private static final long MAPPED_FIRST_LOW = IpAddresses.IPV4_MAPPED_PREFIX;
+    private static final long MAPPED_LAST_LOW = IpAddresses.IPV4_MAPPED_PREFIX | 0xFFFFFFFFL;
+
+    /**
+     * A range of addresses with a country or an ASN
+     */
+    private static final class Range
+    {
+        private final long startHigh;
+        private final long startLow;
+        private final long endHigh;
+        private final long endLow;
+        private final String country;
+        private final long asn;
+
+        Range(long[] range, String country, long asn)
+        {
+            this.startHigh = range[0];
+            this.startLow = range[1];
+            this.endHigh = range[2];
+            this.endLow = range[3];
+            this.country = country;
+            this.asn = asn;
+        }
+    }
+
+    private final List<Range> countries = new ArrayList<Range>();
+    private final List<Range> asns = new ArrayList<Range>();
+
+    public static void main(String[] args) throws IOException
+    {
+        GeoIpImporter importer = new GeoIpImporter();
+        Map<String, String> locations = null;
+        List<String> countryFiles = new ArrayList<String>();
+        String out = null;
+        boolean valid = args.length > 0;
+        for (int i = 0; i < args.length && valid; i++)
+        {
+            if ("--out".equals(args[i]) && i + 1 < args.length)
+            {
+                out = args[++i];
+            }
+            else if ("--maxmind-locations".equals(args[i]) && i + 1 < args.length)
+            {
+                locations = readMaxMindLocations(new File(args[++i]));
+            }
+            else if ("--maxmind-country".equals(args[i]) && i + 1 < args.length)
+            {
+                countryFiles.add(args[++i]);
+            }
+            else if ("--maxmind-asn".equals(args[i]) && i + 1 < args.length)
+            {
+                importer.readMaxMindAsn(new File(args[++i]));
+            }
+            else if ("--csv".equals(args[i]) && i + 1 < args.length)
+            {
+                importer.readCsv(new File(args[++i]));
+            }
+            else
+            {
+                valid = false;
+            }
+        }
+        if (!valid || out == null || (!countryFiles.isEmpty() && locations == null))
+        {
+            System.err.println("Usage: GeoIpImporter --out <database> [--maxmind-locations <Country-Locations.csv>"
+                    + " --maxmind-country <Country-Blocks.csv>...] [--maxmind-asn <ASN-Blocks.csv>...]"
+                    + " [--csv <network,country,asn.csv>...]");
+            System.exit(2);
+        }
+
+        for (String countryFile : countryFiles)
+        {
+            importer.readMaxMindCountry(new File(countryFile), locations);
+        }
+        int written = importer.write(new File(out));
+        System.out.println("Wrote " + written + " ranges to " + out);
+    }
+
+    /**
+     * Read a MaxMind <code>Country-Locations</code> file
+     *
+     * @param file
+     *            The CSV file
+     * @return The country codes by geoname ID
+     * @throws IOException
+     *             Thrown if the file cannot be read or has no geoname ID or country code column
+     */
+    static Map<String, String> readMaxMindLocations(File file) throws IOException
+    {
+        Map<String, String> locations = new HashMap<String, String>();
+        BufferedReader reader = open(file);
+        try
+        {
+            List<String> header = parseCsv(reader.readLine());
+            int id = column(header, "geoname_id", file);
+            int country = column(header, "country_iso_code", file);
+            for (String text = reader.readLine(); text != null; text = reader.readLine())
+            {
+                List<String> fields = parseCsv(text);
+                String code = field(fields, country);
+                if (code != null)
+                {
+                    locations.put(field(fields, id), code);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return locations;
+    }
+
+    /**
+     * Read a MaxMind <code>Country-Blocks</code> file. A network without a country of its own is given its registered
+     * country.
+     *
+     * @param file
+     *            The CSV file
+     * @param locations
+     *            The country codes by geoname ID, see {@link #readMaxMindLocations(File)}
+     * @throws IOException
+     *             Thrown if the file cannot be read or holds a line that is not valid
+     */
+    void readMaxMindCountry(File file, Map<String, String> locations) throws IOException
+    {
+        BufferedReader reader = open(file);
+        try
+        {
+            List<String> header = parseCsv(reader.readLine());
+            int network = column(header, "network", file);
+            int id = column(header, "geoname_id", file);
+            int registered = column(header, "registered_country_geoname_id", file);
+            int line = 1;
+            long[] range = new long[4];
+            for (String text = reader.readLine(); text != null; text = reader.readLine())
+            {
+                line++;
+                List<String> fields = parseCsv(text);
+                String location = field(fields, id) != null ? field(fields, id) : field(fields, registered);
+                String country = location == null ? null : locations.get(location);
+                if (country != null)
+                {
+                    parseNetwork(field(fields, network), range, file, line);
+                    countries.add(new Range(range, country, 0));
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read a MaxMind <code>ASN-Blocks</code> file
+     *
+     * @param file
+     *            The CSV file
+     * @throws IOException
+     *             Thrown if the file cannot be read or holds a line that is not valid
+     */
+    void readMaxMindAsn(File file) throws IOException
+    {
+        BufferedReader reader = open(file);
+        try
+        {
+            List<String> header = parseCsv(reader.readLine());
+            int network = column(header, "network", file);
+            int number = column(header, "autonomous_system_number", file);
+            int line = 1;
+            long[] range = new long[4];
+            for (String text = reader.readLine(); text != null; text = reader.readLine())
+            {
+                line++;
+                List<String> fields = parseCsv(text);
+                long asn = parseAsn(field(fields, number), file, line);
+                if (asn != 0)
+                {
+                    parseNetwork(field(fields, network), range, file, line);
+                    asns.add(new Range(range, null, asn));
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read a plain CSV file of <code>network,country,asn</code> lines
+     *
+     * @param file
+     *            The CSV file
+     * @throws IOException
+     *             Thrown if the file cannot be read or holds a line that is not valid
+     */
+    void readCsv(File file) throws IOException
+    {
+        BufferedReader reader = open(file);
+        try
+        {
+            int line = 0;
+            long[] range = new long[4];
+            for (String text = reader.readLine(); text != null; text = reader.readLine())
+            {
+                line++;
+                String trimmed = text.trim();
+                if (trimmed.length() == 0 || trimmed.startsWith("#") || trimmed.startsWith("network"))
+                {
+                    continue;
+                }
+
+                List<String> fields = parseCsv(trimmed);
+                parseNetwork(field(fields, 0), range, file, line);
+                String country = field(fields, 1);
+                long asn = parseAsn(field(fields, 2), file, line);
+                if (country != null)
+                {
+                    countries.add(new Range(range, country, 0));
+                }
+                if (asn != 0)
+                {
+                    asns.add(new Range(range, null, asn));
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Join the ranges read so far and write them as a database
+     *
+     * @param database
+     *            The database file, replaced atomically
+     * @return The number of ranges written
+     * @throws IOException
+     *             Thrown if the file cannot be written
+     * @throws IllegalArgumentException
+     *             Thrown if two country ranges or two ASN ranges overlap, or a country code is not valid
+     */
+    int write(File database) throws IOException
+    {
+        sort(countries, "country");
+        sort(asns, "ASN");
+
+        // Walk both lists at once, cutting the addresses into pieces that lie in or out of one range of each
+        GeoIpDatabase.Builder builder = new GeoIpDatabase.Builder();
+        int written = 0;
+        Range pending = null;
+        long[] piece = new long[4];
+        long posHigh = 0;
+        long posLow = 0;
+        int c = 0;
+        int a = 0;
+        while (true)
+        {
+            while (c < countries.size() && compare(countries.get(c).endHigh, countries.get(c).endLow, posHigh,
+                    posLow) < 0)
+            {
+                c++;
+            }
+            while (a < asns.size() && compare(asns.get(a).endHigh, asns.get(a).endLow, posHigh, posLow) < 0)
+            {
+                a++;
+            }
+            Range country = c < countries.size() ? countries.get(c) : null;
+            Range asn = a < asns.size() ? asns.get(a) : null;
+            if (country == null && asn == null)
+            {
+                break;
+            }
+
+            // Skip the addresses neither list covers
+            boolean inCountry = country != null && compare(country.startHigh, country.startLow, posHigh, posLow) <= 0;
+            boolean inAsn = asn != null && compare(asn.startHigh, asn.startLow, posHigh, posLow) <= 0;
+            if (!inCountry && !inAsn)
+            {
+                Range next = asn == null || (country != null
+                        && compare(country.startHigh, country.startLow, asn.startHigh, asn.startLow) < 0) ? country
+                                : asn;
+                posHigh = next.startHigh;
+                posLow = next.startLow;
+                inCountry = next == country || (country != null
+                        && compare(country.startHigh, country.startLow, posHigh, posLow) <= 0);
+                inAsn = next == asn || (asn != null && compare(asn.startHigh, asn.startLow, posHigh, posLow) <= 0);
+            }
+
+            // The piece ends where a range it lies in ends or the next one starts, and stays on one side of the
+            // IPv4-mapped block, which the database keeps apart
+            piece[0] = posHigh;
+            piece[1] = posLow;
+            piece[2] = -1L;
+            piece[3] = -1L;
+            limit(piece, country, inCountry);
+            limit(piece, asn, inAsn);
+            if (posHigh == 0 && Long.compareUnsigned(posLow, MAPPED_FIRST_LOW) < 0)
+            {
+                limitEnd(piece, 0, MAPPED_FIRST_LOW - 1);
+            }
+            else if (posHigh == 0 && Long.compareUnsigned(posLow, MAPPED_LAST_LOW) <= 0)
+            {
+                limitEnd(piece, 0, MAPPED_LAST_LOW);
+            }
+
+            Range next = new Range(piece, inCountry ? country.country : null, inAsn ? asn.asn : 0);
+            if (pending != null && isContinuedBy(pending, next))
+            {
+                pending = new Range(new long[] { pending.startHigh, pending.startLow, next.endHigh, next.endLow },
+                        pending.country, pending.asn);
+            }
+            else
+            {
+                if (pending != null)
+                {
+                    builder.add(pending.startHigh, pending.startLow, pending.endHigh, pending.endLow, pending.country,
+                            pending.asn);
+                    written++;
+                }
+                pending = next;
+            }
+
+            if (piece[2] == -1L && piece[3] == -1L)
+            {
+                break;
+            }
+            posHigh = piece[3] == -1L ? piece[2] + 1 : piece[2];
+            posLow = piece[3] + 1;
+        }
+        if (pending != null)
+        {
+            builder.add(pending.startHigh, pending.startLow, pending.endHigh, pending.endLow, pending.country,
+                    pending.asn);
+            written++;
+        }
+
+        builder.write(database);
+        return written;
+    }
+
+    /**
+     * End a piece where a range it lies in ends, or before a range it does not lie in starts
+     */
+    private static void limit(long[] piece, Range range, boolean in)
+    {
+        if (range == null)
+        {
+            return;
+        }
+        if (in)
+        {
+            limitEnd(piece, range.endHigh, range.endLow);
+        }
+        else
+        {
+            // The range starts after the piece does, so the address before it does not wrap
+            limitEnd(piece, range.startLow == 0 ? range.startHigh - 1 : range.startHigh, range.startLow - 1);
+        }
+    }
+
+    private static void limitEnd(long[] piece, long high, long low)
+    {
+        if (compare(high, low, piece[2], piece[3]) < 0)
+        {
+            piece[2] = high;
+            piece[3] = low;
+        }
+    }
+
+    /**
+     * @return True if the next piece follows the pending range directly, in the same block, with the same values
+     */
+    private static boolean isContinuedBy(Range pending, Range next)
+    {
+        long high = pending.endLow == -1L ? pending.endHigh + 1 : pending.endHigh;
+        long low = pending.endLow + 1;
+        return high == next.startHigh && low == next.startLow
+                && IpRangeSet.isIPv4Mapped(pending.startHigh, pending.startLow) == IpRangeSet.isIPv4Mapped(high, low)
+                && pending.asn == next.asn
+                && (pending.country == null ? next.country == null : pending.country.equals(next.country));
+    }
+
+    private static void sort(List<Range> ranges, String kind)
+    {
+        Collections.sort(ranges, new Comparator<Range>()
+        {
+            public int compare(Range a, Range b)
+            {
+                return GeoIpImporter.compare(a.startHigh, a.startLow, b.startHigh, b.startLow);
+            }
+        });
+        for (int i = 1; i < ranges.size(); i++)
+        {
+            Range previous = ranges.get(i - 1);
+            Range range = ranges.get(i);
+            if (compare(previous.endHigh, previous.endLow, range.startHigh, range.startLow) >= 0)
+            {
+                throw new IllegalArgumentException("Overlapping " + kind + " ranges at "
+                        + IpAddresses.format(range.startHigh, range.startLow));
+            }
+        }
+    }
+
+    private static int compare(long highA, long lowA, long highB, long lowB)
+    {
+        int result = Long.compareUnsigned(highA, highB);
+        return result != 0 ? result : Long.compareUnsigned(lowA, lowB);
+    }
+
+    /**
+     * Parse a CIDR range, a single address or a <code>first-last</code> range
+     */
+    private static void parseNetwork(String network, long[] range, File file, int line) throws IOException
+    {
+        try
+        {
+            if (network == null)
+            {
+                throw new IllegalArgumentException("No network");
+            }
+            int dash = network.indexOf('-');
+            if (dash < 0)
+            {
+                GeoIpDatabase.parseCidr(network, range);
+                return;
+            }
+
+            long[] address = new long[2];
+            if (IpAddresses.parse(network, 0, dash, address) == IpAddresses.MALFORMED)
+            {
+                throw new IllegalArgumentException("Bad range " + network);
+            }
+            range[0] = address[0];
+            range[1] = address[1];
+            if (IpAddresses.parse(network, dash + 1, network.length(), address) == IpAddresses.MALFORMED
+                    || compare(range[0], range[1], address[0], address[1]) > 0)
+            {
+                throw new IllegalArgumentException("Bad range " + network);
+            }
+            range[2] = address[0];
+            range[3] = address[1];
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException(e.getMessage() + " on line " + line + " of " + file);
+        }
+    }
+
+    private static long parseAsn(String asn, File file, int line) throws IOException
+    {
+        try
+        {
+            long number = asn == null ? 0 : Long.parseLong(asn.startsWith("AS") ? asn.substring(2) : asn);
+            if (number < 0 || number > 0xFFFFFFFFL)
+            {
+                throw new NumberFormatException();
+            }
+            return number;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Bad ASN " + asn + " on line " + line + " of " + file);
+        }
+    }
+
+    private static BufferedReader open(File file) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    private static int column(List<String> header, String name, File file) throws IOException
+    {
+        int index = header == null ? -1 : header.indexOf(name);
+        if (index < 0)
+        {
+            throw new IOException("No " + name + " column in " + file);
+        }
+        return index;
+    }
+
+    private static String field(List<String> fields, int index)
+    {
+        return fields != null && index < fields.size() && fields.get(index).length() > 0 ? fields.get(index) : null;
+    }
+
+    /**
+     * Split a CSV line, where fields may be quoted and quotes in them doubled
+     *
+     * @return The fields, or null if the line is null or a quoted field is not closed
+     */
+    static List<String> parseCsv(String line)
+    {
+        if (line == null)
+        {
+            return null;
+        }
+
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (quoted)
+            {
+                if (c != '"')
+                {
+                    field.append(c);
+                }
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+                {
+                    field.append('"');
+                    i++;
+                }
+                else
+                {
+                    quoted = false;
+                }
+            }
+            else if (c == '"')
+            {
+                quoted = true;
+            }
+            else if (c == ',')
+            {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            }
+            else
+            {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return quoted ? null : fields;
+    }
+}
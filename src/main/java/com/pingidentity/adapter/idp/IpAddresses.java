@@ -0,0 +1,445 @@
+package com.pingidentity.adapter.idp;
+
+/**
+ * <p>
+ * Allocation-free parsers for textual IP addresses and CIDR ranges, and a formatter for their canonical form.
+ * </p>
+ * <p>
+ * The parsers make a single pass over the characters and never create intermediate strings, arrays or regular
+ * expressions, so they can run on the request thread for every SSO transaction. Invalid input is reported through a
+ * sentinel return value rather than an exception.
+ * </p>
+ * <p>
+ * Only address literals are accepted. Unlike {@link java.net.InetAddress#getByName(String)}, nothing in this class
+ * ever consults the system resolver, so a malformed value can never block the calling thread on DNS.
+ * </p>
+ */
+public final class IpAddresses
+{
+    /**
+     * Returned by the parse methods when the input is not valid
+     */
+    public static final long INVALID = -1L;
+
+    /**
+     * Returned by {@link #parse} when the input is not an IP address literal
+     */
+    public static final int MALFORMED = 0;
+
+    /**
+     * Returned by {@link #parse} for a dotted quad IPv4 address
+     */
+    public static final int IPV4 = 4;
+
+    /**
+     * Returned by {@link #parse} for an IPv6 address
+     */
+    public static final int IPV6 = 6;
+
+    /**
+     * The low 64 bits of an IPv4-mapped IPv6 address, without the IPv4 address itself
+     */
+    public static final long IPV4_MAPPED_PREFIX = 0x0000FFFF00000000L;
+
+    private IpAddresses()
+    {
+    }
+
+    /**
+     * Classify and parse an IP address literal, as returned by <code>HttpServletRequest.getRemoteAddr()</code>
+     *
+     * @param s
+     *            The address to parse, may be null
+     * @param out
+     *            Receives the address as two longs, see {@link #parse(CharSequence, int, int, long[])}
+     * @return {@link #IPV4}, {@link #IPV6} or {@link #MALFORMED}
+     */
+    public static int parse(CharSequence s, long[] out)
+    {
+        return s == null ? MALFORMED : parse(s, 0, s.length(), out);
+    }
+
+    /**
+     * Classify and parse an IP address literal from part of a character sequence. IPv6 addresses may be enclosed in
+     * square brackets. The address is written to <code>out</code> as an IPv6 address, high 64 bits at index 0 and
+     * low 64 bits at index 1, with IPv4 addresses in their IPv4-mapped form (<code>::ffff:a.b.c.d</code>).
+     *
+     * @param s
+     *            The characters to parse
+     * @param from
+     *            The index of the first character of the address
+     * @param to
+     *            The index after the last character of the address
+     * @param out
+     *            Receives the address when it is valid
+     * @return {@link #IPV4}, {@link #IPV6} or {@link #MALFORMED}
+     */
+    public static int parse(CharSequence s, int from, int to, long[] out)
+    {
+        if (to - from >= 2 && s.charAt(from) == '[' && s.charAt(to - 1) == ']')
+        {
+            return parseIPv6(s, from + 1, to - 1, out) ? IPV6 : MALFORMED;
+        }
+
+        long ipv4 = parseIPv4(s, from, to);
+        if (ipv4 != INVALID)
+        {
+            out[0] = 0;
+            out[1] = IPV4_MAPPED_PREFIX | ipv4;
+            return IPV4;
+        }
+        return parseIPv6(s, from, to, out) ? IPV6 : MALFORMED;
+    }
+
+    /**
+     * Parse a dotted quad IPv4 address, e.g. 192.168.1.10
+     *
+     * @param s
+     *            The address to parse, may be null
+     * @return The packed address as an unsigned value, or {@link #INVALID}
+     */
+    public static long parseIPv4(CharSequence s)
+    {
+        return s == null ? INVALID : parseIPv4(s, 0, s.length());
+    }
+
+    /**
+     * Parse a dotted quad IPv4 address from part of a character sequence. Each octet may have at most three digits
+     * and a value of at most 255.
+     *
+     * @param s
+     *            The characters to parse
+     * @param from
+     *            The index of the first character of the address
+     * @param to
+     *            The index after the last character of the address
+     * @return The packed address as an unsigned value, or {@link #INVALID}
+     */
+    public static long parseIPv4(CharSequence s, int from, int to)
+    {
+        int address = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+
+        for (int i = from; i < to; i++)
+        {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9')
+            {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255)
+                {
+                    return INVALID;
+                }
+            }
+            else if (c == '.' && digits > 0 && dots < 3)
+            {
+                address = (address << 8) | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            }
+            else
+            {
+                return INVALID;
+            }
+        }
+
+        if (dots != 3 || digits == 0)
+        {
+            return INVALID;
+        }
+        return ((address << 8) | octet) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Parse an IPv6 address, e.g. 2001:db8::1, ::ffff:192.168.1.10 or fe80::1%eth0
+     *
+     * @param s
+     *            The address to parse, may be null
+     * @param out
+     *            Receives the high 64 bits at index 0 and the low 64 bits at index 1 when the address is valid
+     * @return True if the address is valid
+     */
+    public static boolean parseIPv6(CharSequence s, long[] out)
+    {
+        return s != null && parseIPv6(s, 0, s.length(), out);
+    }
+
+    /**
+     * Parse an IPv6 address from part of a character sequence. Compressed <code>::</code> notation, a trailing
+     * dotted quad (as in IPv4-mapped addresses) and a zone ID suffix (which is ignored) are accepted.
+     *
+     * @param s
+     *            The characters to parse
+     * @param from
+     *            The index of the first character of the address
+     * @param to
+     *            The index after the last character of the address
+     * @param out
+     *            Receives the high 64 bits at index 0 and the low 64 bits at index 1 when the address is valid
+     * @return True if the address is valid
+     */
+    public static boolean parseIPv6(CharSequence s, int from, int to, long[] out)
+    {
+        // Drop the zone ID, e.g. %eth0
+        for (int i = from; i < to; i++)
+        {
+            if (s.charAt(i) == '%')
+            {
+                if (i == to - 1)
+                {
+                    return false;
+                }
+                to = i;
+                break;
+            }
+        }
+
+        // Groups before the :: are shifted into head, groups after it into tail
+        long headHigh = 0;
+        long headLow = 0;
+        long tailHigh = 0;
+        long tailLow = 0;
+        int headGroups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+
+        int i = from;
+        if (to - i >= 2 && s.charAt(i) == ':')
+        {
+            if (s.charAt(i + 1) != ':')
+            {
+                return false;
+            }
+            compressed = true;
+            i += 2;
+        }
+
+        while (i < to)
+        {
+            int start = i;
+            int group = 0;
+            while (i < to && i - start < 4)
+            {
+                int digit = hexDigit(s.charAt(i));
+                if (digit < 0)
+                {
+                    break;
+                }
+                group = (group << 4) | digit;
+                i++;
+            }
+
+            int groupCount;
+            long value;
+            if (i < to && s.charAt(i) == '.')
+            {
+                // A dotted quad can only be the last two groups
+                long ipv4 = parseIPv4(s, start, to);
+                if (ipv4 == INVALID)
+                {
+                    return false;
+                }
+                groupCount = 2;
+                value = ipv4;
+                i = to;
+            }
+            else if (i == start)
+            {
+                return false;
+            }
+            else
+            {
+                groupCount = 1;
+                value = group;
+            }
+
+            if (headGroups + tailGroups + groupCount > 8)
+            {
+                return false;
+            }
+            int bits = groupCount * 16;
+            if (compressed)
+            {
+                tailHigh = (tailHigh << bits) | (tailLow >>> (64 - bits));
+                tailLow = (tailLow << bits) | value;
+                tailGroups += groupCount;
+            }
+            else
+            {
+                headHigh = (headHigh << bits) | (headLow >>> (64 - bits));
+                headLow = (headLow << bits) | value;
+                headGroups += groupCount;
+            }
+
+            if (i == to)
+            {
+                break;
+            }
+            if (s.charAt(i) != ':' || ++i == to)
+            {
+                return false;
+            }
+            if (s.charAt(i) == ':')
+            {
+                if (compressed)
+                {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+
+        if (compressed ? headGroups + tailGroups > 7 : headGroups != 8)
+        {
+            return false;
+        }
+
+        // Move the head groups up past the zero groups the :: stands for
+        int shift = (8 - headGroups) * 16;
+        if (shift >= 64)
+        {
+            headHigh = shift == 128 ? 0 : headLow << (shift - 64);
+            headLow = 0;
+        }
+        else if (shift > 0)
+        {
+            headHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+            headLow = headLow << shift;
+        }
+
+        out[0] = headHigh | tailHigh;
+        out[1] = headLow | tailLow;
+        return true;
+    }
+
+    /**
+     * Format an address parsed by {@link #parse(CharSequence, int, int, long[])} in its canonical text form. IPv4
+     * addresses, i.e. IPv4-mapped ones, are written as a dotted quad, and IPv6 addresses as recommended by RFC 5952:
+     * lower case, without leading zeros, and with the longest run of two or more zero groups (the first, if there is a
+     * tie) compressed to <code>::</code>.
+     *
+     * @param high
+     *            The high 64 bits of the address
+     * @param low
+     *            The low 64 bits of the address
+     * @return The address
+     */
+    public static String format(long high, long low)
+    {
+        StringBuilder text = new StringBuilder(39);
+        if (high == 0 && (low & 0xFFFFFFFF00000000L) == IPV4_MAPPED_PREFIX)
+        {
+            for (int shift = 24; shift >= 0; shift -= 8)
+            {
+                text.append((low >>> shift) & 0xFF);
+                if (shift > 0)
+                {
+                    text.append('.');
+                }
+            }
+            return text.toString();
+        }
+
+        // Find the longest run of zero groups
+        int runStart = -1;
+        int runLength = 1;
+        int start = -1;
+        for (int group = 0; group <= 8; group++)
+        {
+            if (group < 8 && group(high, low, group) == 0)
+            {
+                if (start < 0)
+                {
+                    start = group;
+                }
+            }
+            else if (start >= 0)
+            {
+                if (group - start > runLength)
+                {
+                    runStart = start;
+                    runLength = group - start;
+                }
+                start = -1;
+            }
+        }
+
+        for (int group = 0; group < 8; group++)
+        {
+            if (group == runStart)
+            {
+                text.append("::");
+                group += runLength - 1;
+            }
+            else
+            {
+                if (group > 0 && group != runStart + runLength)
+                {
+                    text.append(':');
+                }
+                text.append(Integer.toHexString(group(high, low, group)));
+            }
+        }
+        return text.toString();
+    }
+
+    private static int group(long high, long low, int group)
+    {
+        long half = group < 4 ? high : low;
+        return (int) (half >>> ((3 - (group & 3)) * 16)) & 0xFFFF;
+    }
+
+    /**
+     * Parse a decimal CIDR prefix length
+     *
+     * @param s
+     *            The characters to parse
+     * @param from
+     *            The index of the first digit
+     * @param to
+     *            The index after the last digit
+     * @param max
+     *            The largest prefix length allowed, i.e. the address width in bits
+     * @return The prefix length, or -1 if it is not a valid number between 0 and max
+     */
+    public static int parsePrefixLength(CharSequence s, int from, int to, int max)
+    {
+        if (from >= to || to - from > 3)
+        {
+            return -1;
+        }
+
+        int length = 0;
+        for (int i = from; i < to; i++)
+        {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length <= max ? length : -1;
+    }
+
+    private static int hexDigit(char c)
+    {
+        if (c >= '0' && c <= '9')
+        {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f')
+        {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F')
+        {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,442 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An immutable set of individual IPv4 and IPv6 addresses, sized for threat intelligence feeds of millions of entries.
+ * </p>
+ * <p>
+ * Membership is first tested against a blocked Bloom filter: the address selects one 64 byte block and six bits in
+ * it, so a clean address is usually rejected after a single cache line read. Possible matches are confirmed by a
+ * binary search of the sorted addresses, which are kept in a direct buffer outside the Java heap. A set of n addresses
+ * uses 4 bytes per IPv4 and 16 bytes per IPv6 address for the exact set, plus 10 to 20 bits per address for the
+ * filter, and no objects per address.
+ * </p>
+ * <p>
+ * Instances are created through a {@link Builder}, or loaded from a feed file of one address per line, and can then be
+ * shared freely between request threads. A feed file can be watched for changes, see
+ * {@link RangeFileWatcher#watchDenylist(File, long)}.
+ * </p>
+ */
+public final class IpDenylist
+{
+    private static final Logger LOG = LoggerFactory.getLogger(IpDenylist.class);
+
+    private static final int BITS_PER_ADDRESS = 10;
+    private static final int BLOCK_BITS = 512;
+    private static final int BLOCK_LONGS = BLOCK_BITS / 64;
+    private static final int HASHES = 6;
+
+    private final long[] filter;
+    private final int blockMask;
+    private final IntBuffer ipv4;
+    private final LongBuffer ipv6;
+    private final int ipv4Count;
+    private final int ipv6Count;
+
+    private IpDenylist(long[] filter, IntBuffer ipv4, LongBuffer ipv6)
+    {
+        this.filter = filter;
+        this.blockMask = filter.length / BLOCK_LONGS - 1;
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+        this.ipv4Count = ipv4.capacity();
+        this.ipv6Count = ipv6.capacity() / 2;
+    }
+
+    /**
+     * Check whether an address is on the list
+     *
+     * @param high
+     *            The high 64 bits of the address, IPv4 addresses are in IPv4-mapped form
+     * @param low
+     *            The low 64 bits of the address
+     * @return True if the address is on the list
+     */
+    public boolean contains(long high, long low)
+    {
+        long hash = hash(high, low);
+        int block = ((int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & blockMask) * BLOCK_LONGS;
+        for (int i = 0; i < HASHES; i++)
+        {
+            int bit = (int) (hash >>> (i * 9)) & (BLOCK_BITS - 1);
+            if ((filter[block + (bit >>> 6)] & (1L << bit)) == 0)
+            {
+                return false;
+            }
+        }
+
+        if (IpRangeSet.isIPv4Mapped(high, low))
+        {
+            int address = (int) low;
+            int lo = 0;
+            int hi = ipv4Count - 1;
+            while (lo <= hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                int value = ipv4.get(mid);
+                if (value < address)
+                {
+                    lo = mid + 1;
+                }
+                else if (value > address)
+                {
+                    hi = mid - 1;
+                }
+                else
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int lo = 0;
+        int hi = ipv6Count - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            int result = compare(ipv6.get(mid * 2), ipv6.get(mid * 2 + 1), high, low);
+            if (result < 0)
+            {
+                lo = mid + 1;
+            }
+            else if (result > 0)
+            {
+                hi = mid - 1;
+            }
+            else
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of distinct addresses on the list
+     */
+    public int size()
+    {
+        return ipv4Count + ipv6Count;
+    }
+
+    /**
+     * @return The number of bytes used by the filter and the exact set
+     */
+    public long memoryUsage()
+    {
+        return filter.length * 8L + ipv4Count * 4L + ipv6Count * 16L;
+    }
+
+    /**
+     * Load a feed file of addresses. Each line holds one IPv4 or IPv6 address, optionally followed by whitespace, a
+     * comma or a <code># comment</code>. Lines that do not start with an address are skipped, since feeds often carry
+     * headers. The file is memory mapped and parsed in place.
+     *
+     * @param feed
+     *            The feed file
+     * @return The addresses in the file
+     * @throws IOException
+     *             Thrown if the file cannot be read
+     */
+    public static IpDenylist load(File feed) throws IOException
+    {
+        if (!feed.isFile())
+        {
+            throw new FileNotFoundException(feed.getPath());
+        }
+
+        Builder builder = new Builder();
+        CharSequence text = new RangeFile.AsciiSequence(RangeFile.map(feed));
+        long[] address = new long[2];
+        int skipped = 0;
+
+        int length = text.length();
+        for (int start = 0; start < length; start++)
+        {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n')
+            {
+                end++;
+            }
+
+            int from = start;
+            while (from < end && Character.isWhitespace(text.charAt(from)))
+            {
+                from++;
+            }
+            int to = from;
+            while (to < end && !isSeparator(text.charAt(to)))
+            {
+                to++;
+            }
+
+            if (from < to)
+            {
+                if (IpAddresses.parse(text, from, to, address) != IpAddresses.MALFORMED)
+                {
+                    builder.add(address[0], address[1]);
+                }
+                else
+                {
+                    skipped++;
+                }
+            }
+            start = end;
+        }
+
+        if (skipped > 0)
+        {
+            LOG.warn("Skipped {} lines of {} that do not start with an IP address", skipped, feed);
+        }
+        return builder.build();
+    }
+
+    private static boolean isSeparator(char c)
+    {
+        return c == ',' || c == '#' || Character.isWhitespace(c);
+    }
+
+    private static long hash(long high, long low)
+    {
+        long hash = high * 0xC2B2AE3D27D4EB4FL + low;
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static int compare(long highA, long lowA, long highB, long lowB)
+    {
+        int result = Long.compare(highA, highB);
+        return result != 0 ? result : Long.compare(lowA, lowB);
+    }
+
+    /**
+     * A feed file, loaded with {@link IpDenylist#load(File)}, that a {@link RangeFileWatcher} can keep up to date
+     */
+    static final class Feed implements RangeFileWatcher.Loader<IpDenylist>
+    {
+        private final File feed;
+
+        /**
+         * @param feed
+         *            The feed file
+         */
+        Feed(File feed)
+        {
+            this.feed = feed;
+        }
+
+        public File getSource()
+        {
+            return feed;
+        }
+
+        public IpDenylist load(long[] version) throws IOException
+        {
+            RangeFile.readVersion(feed, version);
+            return IpDenylist.load(feed);
+        }
+
+        public long checksum() throws IOException
+        {
+            return RangeFile.checksum(feed);
+        }
+
+        public String describe(IpDenylist contents)
+        {
+            return contents.size() + " denylisted addresses in " + contents.memoryUsage() + " bytes";
+        }
+    }
+
+    /**
+     * Collects addresses and compiles them into an immutable {@link IpDenylist}. Builders are not thread safe.
+     */
+    public static final class Builder
+    {
+        private int[] ipv4 = new int[16];
+        private long[] ipv6 = new long[16];
+        private int ipv4Count = 0;
+        private int ipv6Count = 0;
+
+        /**
+         * Add an address
+         *
+         * @param high
+         *            The high 64 bits of the address, IPv4 addresses are in IPv4-mapped form
+         * @param low
+         *            The low 64 bits of the address
+         * @return This builder
+         */
+        public Builder add(long high, long low)
+        {
+            if (IpRangeSet.isIPv4Mapped(high, low))
+            {
+                if (ipv4Count == ipv4.length)
+                {
+                    ipv4 = Arrays.copyOf(ipv4, ipv4.length * 2);
+                }
+                ipv4[ipv4Count++] = (int) low;
+            }
+            else
+            {
+                if (ipv6Count * 2 == ipv6.length)
+                {
+                    ipv6 = Arrays.copyOf(ipv6, ipv6.length * 2);
+                }
+                ipv6[ipv6Count * 2] = high;
+                ipv6[ipv6Count * 2 + 1] = low;
+                ipv6Count++;
+            }
+            return this;
+        }
+
+        /**
+         * Add an address
+         *
+         * @param address
+         *            An IPv4 or IPv6 address literal
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if the address is not valid
+         */
+        public Builder add(String address)
+        {
+            long[] parsed = new long[2];
+            if (IpAddresses.parse(address, parsed) == IpAddresses.MALFORMED)
+            {
+                throw new IllegalArgumentException("Bad IP");
+            }
+            return add(parsed[0], parsed[1]);
+        }
+
+        /**
+         * Compile the collected addresses
+         *
+         * @return The immutable list
+         */
+        public IpDenylist build()
+        {
+            // Sort and drop duplicates, the order only needs to be consistent with the binary search
+            Arrays.sort(ipv4, 0, ipv4Count);
+            int ipv4Distinct = 0;
+            for (int i = 0; i < ipv4Count; i++)
+            {
+                if (i == 0 || ipv4[i] != ipv4[ipv4Distinct - 1])
+                {
+                    ipv4[ipv4Distinct++] = ipv4[i];
+                }
+            }
+
+            sortPairs(ipv6, ipv6Count);
+            int ipv6Distinct = 0;
+            for (int i = 0; i < ipv6Count; i++)
+            {
+                if (i == 0 || compare(ipv6[i * 2], ipv6[i * 2 + 1], ipv6[ipv6Distinct * 2 - 2],
+                        ipv6[ipv6Distinct * 2 - 1]) != 0)
+                {
+                    ipv6[ipv6Distinct * 2] = ipv6[i * 2];
+                    ipv6[ipv6Distinct * 2 + 1] = ipv6[i * 2 + 1];
+                    ipv6Distinct++;
+                }
+            }
+
+            // At least 10 bits per address, rounded up to a power of two blocks
+            long bits = Math.max((long) (ipv4Distinct + ipv6Distinct) * BITS_PER_ADDRESS, 1);
+            int blocks = (int) Math.min(Long.highestOneBit((bits + BLOCK_BITS - 1) / BLOCK_BITS * 2 - 1), 1 << 24);
+            long[] filter = new long[blocks * BLOCK_LONGS];
+
+            IntBuffer ipv4Set = ByteBuffer.allocateDirect(ipv4Distinct * 4).asIntBuffer();
+            for (int i = 0; i < ipv4Distinct; i++)
+            {
+                ipv4Set.put(i, ipv4[i]);
+                set(filter, 0, IpAddresses.IPV4_MAPPED_PREFIX | (ipv4[i] & 0xFFFFFFFFL));
+            }
+            LongBuffer ipv6Set = ByteBuffer.allocateDirect(ipv6Distinct * 16).asLongBuffer();
+            for (int i = 0; i < ipv6Distinct * 2; i += 2)
+            {
+                ipv6Set.put(i, ipv6[i]).put(i + 1, ipv6[i + 1]);
+                set(filter, ipv6[i], ipv6[i + 1]);
+            }
+            return new IpDenylist(filter, ipv4Set, ipv6Set);
+        }
+
+        private static void set(long[] filter, long high, long low)
+        {
+            long hash = hash(high, low);
+            int block = ((int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & (filter.length / BLOCK_LONGS - 1))
+                    * BLOCK_LONGS;
+            for (int i = 0; i < HASHES; i++)
+            {
+                int bit = (int) (hash >>> (i * 9)) & (BLOCK_BITS - 1);
+                filter[block + (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        /**
+         * Heapsort of the first count (high, low) pairs, in place so millions of addresses need no extra memory
+         */
+        private static void sortPairs(long[] pairs, int count)
+        {
+            for (int i = count / 2 - 1; i >= 0; i--)
+            {
+                siftDown(pairs, i, count);
+            }
+            for (int end = count - 1; end > 0; end--)
+            {
+                swap(pairs, 0, end);
+                siftDown(pairs, 0, end);
+            }
+        }
+
+        private static void siftDown(long[] pairs, int i, int count)
+        {
+            while (true)
+            {
+                int largest = i;
+                int left = i * 2 + 1;
+                int right = left + 1;
+                if (left < count && comparePairs(pairs, left, largest) > 0)
+                {
+                    largest = left;
+                }
+                if (right < count && comparePairs(pairs, right, largest) > 0)
+                {
+                    largest = right;
+                }
+                if (largest == i)
+                {
+                    return;
+                }
+                swap(pairs, i, largest);
+                i = largest;
+            }
+        }
+
+        private static int comparePairs(long[] pairs, int a, int b)
+        {
+            return compare(pairs[a * 2], pairs[a * 2 + 1], pairs[b * 2], pairs[b * 2 + 1]);
+        }
+
+        private static void swap(long[] pairs, int a, int b)
+        {
+            long high = pairs[a * 2];
+            long low = pairs[a * 2 + 1];
+            pairs[a * 2] = pairs[b * 2];
+            pairs[a * 2 + 1] = pairs[b * 2 + 1];
+            pairs[b * 2] = high;
+            pairs[b * 2 + 1] = low;
+        }
+    }
+}
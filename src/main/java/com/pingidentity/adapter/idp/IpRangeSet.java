@@ -0,0 +1,842 @@
+package com.pingidentity.adapter.idp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An immutable set of IPv4 and IPv6 address ranges (CIDR prefixes) backed by path-compressed binary tries.
+ * </p>
+ * <p>
+ * Each trie is flattened into primitive arrays when the set is built, so a lookup visits at most one node per prefix
+ * bit and allocates nothing, no matter how many ranges are loaded. IPv4 addresses are packed into an int and IPv6
+ * addresses into two longs (high and low 64 bits); IPv4-mapped IPv6 addresses (<code>::ffff:a.b.c.d</code>) are
+ * matched against the IPv4 ranges. Instances are created once through a {@link Builder} (typically from the adapter's
+ * <code>configure()</code> method) and can then be shared freely between request threads.
+ * </p>
+ */
+public final class IpRangeSet
+{
+    /**
+     * Returned by {@link #longestMatch(int)} when no range contains the address
+     */
+    public static final int NO_MATCH = -1;
+
+    private static final int NO_CHILD = -1;
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+    private static final int IPV4_MAPPED_BITS = 96;
+
+    // Each node is stored as STRIDE consecutive array elements so a lookup touches one cache line per node
+    private static final int STRIDE = 4;
+    private static final int KEY = 0;
+    private static final int META = 1;
+    private static final int CHILD = 2;
+    private static final int TERMINAL = 0x100;
+    private static final int DEPTH_MASK = 0xFF;
+
+    // IPv4 node: key, depth | TERMINAL, offset of the child for bit 0, offset of the child for bit 1
+    private final int[] trie;
+
+    // IPv6 node: key high 64 bits, key low 64 bits, depth | TERMINAL, both child offsets packed as bit 0 << 32 | bit 1
+    private final long[] trie6;
+
+    private final int size;
+    private final long fingerprint;
+
+    private IpRangeSet(int[] trie, long[] trie6, int size)
+    {
+        this.trie = trie;
+        this.trie6 = trie6;
+        this.size = size;
+        this.fingerprint = fingerprint(trie, trie6);
+    }
+
+    /**
+     * Check whether the IPv4 address is covered by any range in this set
+     *
+     * @param address
+     *            The packed IPv4 address, most significant octet first
+     * @return True if a range contains the address, false otherwise
+     */
+    public boolean contains(int address)
+    {
+        int[] trie = this.trie;
+        int node = 0;
+        do
+        {
+            int meta = trie[node + META];
+            int depth = meta & DEPTH_MASK;
+            if (((address ^ trie[node + KEY]) & mask(depth)) != 0)
+            {
+                return false;
+            }
+            if ((meta & TERMINAL) != 0)
+            {
+                return true;
+            }
+            node = trie[node + CHILD + ((address >>> (IPV4_BITS - 1 - depth)) & 1)];
+        }
+        while (node != NO_CHILD);
+        return false;
+    }
+
+    /**
+     * Find the most specific range that contains the IPv4 address
+     *
+     * @param address
+     *            The packed IPv4 address, most significant octet first
+     * @return The prefix length of the longest matching range, or {@link #NO_MATCH}
+     */
+    public int longestMatch(int address)
+    {
+        int[] trie = this.trie;
+        int best = NO_MATCH;
+        int node = 0;
+        do
+        {
+            int meta = trie[node + META];
+            int depth = meta & DEPTH_MASK;
+            if (((address ^ trie[node + KEY]) & mask(depth)) != 0)
+            {
+                break;
+            }
+            if ((meta & TERMINAL) != 0)
+            {
+                best = depth;
+            }
+            if (depth == IPV4_BITS)
+            {
+                break;
+            }
+            node = trie[node + CHILD + ((address >>> (IPV4_BITS - 1 - depth)) & 1)];
+        }
+        while (node != NO_CHILD);
+        return best;
+    }
+
+    /**
+     * Check whether the IPv6 address is covered by any range in this set
+     *
+     * @param high
+     *            The high 64 bits of the IPv6 address
+     * @param low
+     *            The low 64 bits of the IPv6 address
+     * @return True if a range contains the address, false otherwise
+     */
+    public boolean contains(long high, long low)
+    {
+        if (isIPv4Mapped(high, low))
+        {
+            return contains((int) low);
+        }
+
+        long[] trie6 = this.trie6;
+        int node = 0;
+        do
+        {
+            int meta = (int) trie6[node + 2];
+            int depth = meta & DEPTH_MASK;
+            if (((high ^ trie6[node]) & highMask(depth)) != 0 || ((low ^ trie6[node + 1]) & lowMask(depth)) != 0)
+            {
+                return false;
+            }
+            if ((meta & TERMINAL) != 0)
+            {
+                return true;
+            }
+            node = child6(trie6[node + 3], bit(high, low, depth));
+        }
+        while (node != NO_CHILD);
+        return false;
+    }
+
+    /**
+     * Find the most specific range that contains the IPv6 address
+     *
+     * @param high
+     *            The high 64 bits of the IPv6 address
+     * @param low
+     *            The low 64 bits of the IPv6 address
+     * @return The prefix length of the longest matching range, or {@link #NO_MATCH}. IPv4-mapped addresses report
+     *         the IPv4 prefix length.
+     */
+    public int longestMatch(long high, long low)
+    {
+        if (isIPv4Mapped(high, low))
+        {
+            return longestMatch((int) low);
+        }
+
+        long[] trie6 = this.trie6;
+        int best = NO_MATCH;
+        int node = 0;
+        do
+        {
+            int meta = (int) trie6[node + 2];
+            int depth = meta & DEPTH_MASK;
+            if (((high ^ trie6[node]) & highMask(depth)) != 0 || ((low ^ trie6[node + 1]) & lowMask(depth)) != 0)
+            {
+                break;
+            }
+            if ((meta & TERMINAL) != 0)
+            {
+                best = depth;
+            }
+            if (depth == IPV6_BITS)
+            {
+                break;
+            }
+            node = child6(trie6[node + 3], bit(high, low, depth));
+        }
+        while (node != NO_CHILD);
+        return best;
+    }
+
+    /**
+     * @return The number of distinct prefixes in this set
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return True if this set contains no ranges
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return A 64-bit hash of the ranges in this set. Sets built from the same ranges have the same fingerprint on
+     *         every server, whatever order the ranges were added in.
+     */
+    public long fingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return The number of trie nodes after path compression
+     */
+    int nodeCount()
+    {
+        return (trie.length + trie6.length) / STRIDE;
+    }
+
+    /**
+     * @return The number of bytes {@link #writeTo(ByteBuffer)} needs
+     */
+    int serializedSize()
+    {
+        return 16 + trie6.length * 8 + trie.length * 4;
+    }
+
+    /**
+     * Write the flattened tries to a buffer, so they can be restored by {@link #readFrom(ByteBuffer)} without
+     * rebuilding. The IPv6 trie is written first to keep both sections naturally aligned.
+     *
+     * @param buffer
+     *            The buffer to write to, with at least {@link #serializedSize()} bytes remaining
+     */
+    void writeTo(ByteBuffer buffer)
+    {
+        buffer.putInt(size).putInt(trie.length).putInt(trie6.length).putInt(0);
+        buffer.asLongBuffer().put(trie6);
+        buffer.position(buffer.position() + trie6.length * 8);
+        buffer.asIntBuffer().put(trie);
+        buffer.position(buffer.position() + trie.length * 4);
+    }
+
+    /**
+     * Restore a range set written by {@link #writeTo(ByteBuffer)}, using bulk copies out of the buffer
+     *
+     * @param buffer
+     *            The buffer to read from, e.g. a memory mapped file
+     * @return The range set
+     * @throws IllegalArgumentException
+     *             Thrown if the array lengths in the buffer are impossible or exceed what it holds. The tries are not
+     *             otherwise checked, compare the {@link #fingerprint()} with that of the set that was written.
+     */
+    static IpRangeSet readFrom(ByteBuffer buffer)
+    {
+        int size = buffer.getInt();
+        int length = buffer.getInt();
+        int length6 = buffer.getInt();
+        buffer.getInt();
+
+        // Check before allocating, so a corrupt header cannot ask for negative or enormous arrays
+        if (size < 0 || length < STRIDE || length % STRIDE != 0 || length6 < STRIDE || length6 % STRIDE != 0
+                || length6 * 8L + length * 4L > buffer.remaining())
+        {
+            throw new IllegalArgumentException("Corrupt range set");
+        }
+        int[] trie = new int[length];
+        long[] trie6 = new long[length6];
+
+        buffer.asLongBuffer().get(trie6);
+        buffer.position(buffer.position() + trie6.length * 8);
+        buffer.asIntBuffer().get(trie);
+        buffer.position(buffer.position() + trie.length * 4);
+        return new IpRangeSet(trie, trie6, size);
+    }
+
+    /**
+     * Build the network mask for an IPv4 prefix length
+     *
+     * @param prefixLength
+     *            The prefix length, 0-32
+     * @return The mask with the top <code>prefixLength</code> bits set
+     */
+    static int mask(int prefixLength)
+    {
+        return (int) (0xFFFFFFFF00000000L >>> prefixLength);
+    }
+
+    /**
+     * Build the high 64 bits of the network mask for an IPv6 prefix length
+     *
+     * @param prefixLength
+     *            The prefix length, 0-128
+     * @return The high half of the mask
+     */
+    static long highMask(int prefixLength)
+    {
+        return prefixLength >= 64 ? -1L : ~(-1L >>> prefixLength);
+    }
+
+    /**
+     * Build the low 64 bits of the network mask for an IPv6 prefix length
+     *
+     * @param prefixLength
+     *            The prefix length, 0-128
+     * @return The low half of the mask
+     */
+    static long lowMask(int prefixLength)
+    {
+        return prefixLength <= 64 ? 0L : -1L << (IPV6_BITS - prefixLength);
+    }
+
+    /**
+     * Convert a network mask into a prefix length
+     *
+     * @param mask
+     *            The packed network mask
+     * @return The number of leading one bits, or -1 if the mask is not contiguous
+     */
+    static int prefixLength(int mask)
+    {
+        int inverse = ~mask;
+        if ((inverse & (inverse + 1)) != 0)
+        {
+            return -1;
+        }
+        return Integer.bitCount(mask);
+    }
+
+    /**
+     * Check whether an IPv6 address is an IPv4-mapped address, i.e. <code>::ffff:a.b.c.d</code>
+     *
+     * @param high
+     *            The high 64 bits of the IPv6 address
+     * @param low
+     *            The low 64 bits of the IPv6 address
+     * @return True if the low 32 bits hold an IPv4 address
+     */
+    static boolean isIPv4Mapped(long high, long low)
+    {
+        return high == 0 && (low & 0xFFFFFFFF00000000L) == IpAddresses.IPV4_MAPPED_PREFIX;
+    }
+
+    /**
+     * Parse a range in CIDR notation from part of a character sequence, e.g. 10.0.0.0/8 or 2001:db8::/32. A bare
+     * address is a single host range.
+     *
+     * @param s
+     *            The characters holding the range
+     * @param from
+     *            The index of the first character of the range
+     * @param to
+     *            The index after the last character of the range
+     * @param out
+     *            Receives the base address as two longs, high 64 bits at index 0 and low 64 bits at index 1, with IPv4
+     *            addresses in their IPv4-mapped form. Host bits are not cleared.
+     * @return The prefix length of the IPv6 form, i.e. 96 more than the IPv4 prefix length for IPv4 ranges, or -1 if
+     *         the characters are not a valid IPv4 or IPv6 range
+     */
+    static int parse(CharSequence s, int from, int to, long[] out)
+    {
+        int slash = to;
+        boolean ipv6 = false;
+        for (int i = from; i < to; i++)
+        {
+            char c = s.charAt(i);
+            if (c == '/')
+            {
+                slash = i;
+                break;
+            }
+            ipv6 |= c == ':';
+        }
+
+        int prefixLength = slash == to ? (ipv6 ? IPV6_BITS : IPV4_BITS)
+                : IpAddresses.parsePrefixLength(s, slash + 1, to, ipv6 ? IPV6_BITS : IPV4_BITS);
+        if (prefixLength < 0)
+        {
+            return -1;
+        }
+        if (!ipv6)
+        {
+            long address = IpAddresses.parseIPv4(s, from, slash);
+            if (address == IpAddresses.INVALID)
+            {
+                return -1;
+            }
+            out[0] = 0;
+            out[1] = IpAddresses.IPV4_MAPPED_PREFIX | address;
+            return prefixLength + IPV4_MAPPED_BITS;
+        }
+        return IpAddresses.parseIPv6(s, from, slash, out) ? prefixLength : -1;
+    }
+
+    /**
+     * FNV-1a over the flattened tries, whose layout only depends on the sorted, distinct prefixes
+     */
+    private static long fingerprint(int[] trie, long[] trie6)
+    {
+        long hash = 0xCBF29CE484222325L;
+        for (int value : trie)
+        {
+            hash = (hash ^ value) * 0x100000001B3L;
+        }
+        for (long value : trie6)
+        {
+            hash = (hash ^ value) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    private static int child6(long children, int bit)
+    {
+        return (int) (children >>> ((1 - bit) << 5));
+    }
+
+    private static int bit(long high, long low, int depth)
+    {
+        return (int) (depth < 64 ? (high >>> (63 - depth)) & 1 : (low >>> (127 - depth)) & 1);
+    }
+
+    /**
+     * <p>
+     * Collects ranges and compiles them into an immutable {@link IpRangeSet}. Builders are not thread safe.
+     * </p>
+     * <p>
+     * Ranges are kept in primitive arrays and the tries are built from them after sorting, without any intermediate
+     * node objects, so compiling hundreds of thousands of ranges only allocates a handful of arrays.
+     * </p>
+     */
+    public static final class Builder
+    {
+        private int[] addresses = new int[16];
+        private byte[] lengths = new byte[16];
+        private int count = 0;
+
+        private long[] highs6 = new long[16];
+        private long[] lows6 = new long[16];
+        private byte[] lengths6 = new byte[16];
+        private int count6 = 0;
+
+        private final long[] parsed = new long[2];
+
+        /**
+         * Add an IPv4 range to the set. Host bits beyond the prefix length are ignored.
+         *
+         * @param address
+         *            The packed base address of the range
+         * @param prefixLength
+         *            The prefix length, 0-32
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if the prefix length is out of range
+         */
+        public Builder add(int address, int prefixLength)
+        {
+            if (prefixLength < 0 || prefixLength > IPV4_BITS)
+            {
+                throw new IllegalArgumentException("Bad prefix length");
+            }
+
+            if (count == addresses.length)
+            {
+                addresses = Arrays.copyOf(addresses, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            addresses[count] = address & mask(prefixLength);
+            lengths[count] = (byte) prefixLength;
+            count++;
+            return this;
+        }
+
+        /**
+         * Add an IPv6 range to the set. Host bits beyond the prefix length are ignored. IPv4-mapped ranges of at
+         * least 96 bits are added as IPv4 ranges.
+         *
+         * @param high
+         *            The high 64 bits of the base address
+         * @param low
+         *            The low 64 bits of the base address
+         * @param prefixLength
+         *            The prefix length, 0-128
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if the prefix length is out of range
+         */
+        public Builder add(long high, long low, int prefixLength)
+        {
+            if (prefixLength < 0 || prefixLength > IPV6_BITS)
+            {
+                throw new IllegalArgumentException("Bad prefix length");
+            }
+            if (prefixLength >= IPV4_MAPPED_BITS && isIPv4Mapped(high, low))
+            {
+                return add((int) low, prefixLength - IPV4_MAPPED_BITS);
+            }
+
+            if (count6 == highs6.length)
+            {
+                highs6 = Arrays.copyOf(highs6, count6 * 2);
+                lows6 = Arrays.copyOf(lows6, count6 * 2);
+                lengths6 = Arrays.copyOf(lengths6, count6 * 2);
+            }
+            highs6[count6] = high & highMask(prefixLength);
+            lows6[count6] = low & lowMask(prefixLength);
+            lengths6[count6] = (byte) prefixLength;
+            count6++;
+            return this;
+        }
+
+        /**
+         * Add a range in CIDR notation, e.g. 10.0.0.0/8 or 2001:db8::/32. A bare address is added as a single host
+         * range and host bits beyond the prefix length are ignored.
+         *
+         * @param cidr
+         *            The range to add
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if the cidr is not a valid IPv4 or IPv6 range
+         */
+        public Builder add(String cidr)
+        {
+            String trimmed = cidr.trim();
+            return add(trimmed, 0, trimmed.length());
+        }
+
+        /**
+         * Add every range in a list of ranges in CIDR notation separated by commas or whitespace, e.g.
+         * <code>10.0.0.0/8, 192.168.0.0/16</code>. An empty list adds nothing.
+         *
+         * @param cidrs
+         *            The ranges to add
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if any element is not a valid IPv4 or IPv6 range
+         */
+        public Builder addList(String cidrs)
+        {
+            int length = cidrs.length();
+            int from = 0;
+            while (from < length)
+            {
+                int to = from;
+                while (to < length && !isListSeparator(cidrs.charAt(to)))
+                {
+                    to++;
+                }
+                if (to > from)
+                {
+                    add(cidrs, from, to);
+                }
+                from = to + 1;
+            }
+            return this;
+        }
+
+        static boolean isListSeparator(char c)
+        {
+            return c == ',' || Character.isWhitespace(c);
+        }
+
+        /**
+         * Add a range in CIDR notation from part of a character sequence, without creating any intermediate strings
+         *
+         * @param s
+         *            The characters holding the range
+         * @param from
+         *            The index of the first character of the range
+         * @param to
+         *            The index after the last character of the range
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if the characters are not a valid IPv4 or IPv6 range
+         */
+        public Builder add(CharSequence s, int from, int to)
+        {
+            int prefixLength = parse(s, from, to, parsed);
+            if (prefixLength < 0)
+            {
+                throw new IllegalArgumentException("Bad CIDR");
+            }
+            return add(parsed[0], parsed[1], prefixLength);
+        }
+
+        /**
+         * Compile the collected ranges. The builder can keep being used afterwards.
+         *
+         * @return The immutable range set
+         */
+        public IpRangeSet build()
+        {
+            // Sort the IPv4 prefixes by address then length, packed into longs, and drop duplicates
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; i++)
+            {
+                sorted[i] = ((addresses[i] & 0xFFFFFFFFL) << 8) | lengths[i];
+            }
+            Arrays.sort(sorted);
+            int unique = 0;
+            for (int i = 0; i < count; i++)
+            {
+                if (unique == 0 || sorted[i] != sorted[unique - 1])
+                {
+                    sorted[unique++] = sorted[i];
+                }
+            }
+            Trie4 trie = new Trie4(sorted, unique);
+
+            // IPv6 prefixes do not fit in a long, sort an index instead
+            int[] order = sortIPv6();
+            int unique6 = 0;
+            for (int i = 0; i < count6; i++)
+            {
+                if (unique6 == 0 || compareIPv6(order[i], order[unique6 - 1]) != 0)
+                {
+                    order[unique6++] = order[i];
+                }
+            }
+            Trie6 trie6 = new Trie6(highs6, lows6, lengths6, order, unique6);
+
+            return new IpRangeSet(Arrays.copyOf(trie.trie, trie.end), Arrays.copyOf(trie6.trie, trie6.end),
+                    unique + unique6);
+        }
+
+        private int[] sortIPv6()
+        {
+            int[] order = new int[count6];
+            int[] scratch = new int[count6];
+            for (int i = 0; i < count6; i++)
+            {
+                order[i] = i;
+            }
+
+            // Bottom-up merge sort, the comparison needs all three arrays so Arrays.sort would have to box
+            for (int width = 1; width < count6; width *= 2)
+            {
+                for (int lo = 0; lo < count6; lo += width * 2)
+                {
+                    int mid = Math.min(lo + width, count6);
+                    int hi = Math.min(lo + width * 2, count6);
+                    int left = lo;
+                    int right = mid;
+                    for (int i = lo; i < hi; i++)
+                    {
+                        if (right >= hi || (left < mid && compareIPv6(order[left], order[right]) <= 0))
+                        {
+                            scratch[i] = order[left++];
+                        }
+                        else
+                        {
+                            scratch[i] = order[right++];
+                        }
+                    }
+                }
+                int[] swap = order;
+                order = scratch;
+                scratch = swap;
+            }
+            return order;
+        }
+
+        private int compareIPv6(int a, int b)
+        {
+            int result = Long.compareUnsigned(highs6[a], highs6[b]);
+            if (result == 0)
+            {
+                result = Long.compareUnsigned(lows6[a], lows6[b]);
+            }
+            if (result == 0)
+            {
+                result = (lengths6[a] & 0xFF) - (lengths6[b] & 0xFF);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * <p>
+     * Builds a flattened IPv4 trie from prefixes sorted by address then length.
+     * </p>
+     * <p>
+     * Every node covers a run of the sorted prefixes that share its key. The node's depth is the common prefix of the
+     * first and last key of the run, capped at the shortest prefix length, which is always the first one; a node
+     * whose depth equals a prefix length is terminal. The rest of the run splits into the prefixes with a 0 and a 1
+     * at that depth, each of which becomes a child. Non-terminal nodes therefore always have two children, which is
+     * the path compression.
+     * </p>
+     */
+    private static final class Trie4
+    {
+        private final long[] sorted;
+        private final int[] trie;
+        private int end = 0;
+
+        private Trie4(long[] sorted, int count)
+        {
+            this.sorted = sorted;
+            trie = new int[(count * 2 + 1) * STRIDE];
+
+            // The root always has depth 0 so every lookup can start at offset 0
+            int root = node(0, 0);
+            int from = 0;
+            if (count > 0 && length(0) == 0)
+            {
+                trie[root + META] |= TERMINAL;
+                from = 1;
+            }
+            link(root, from, count, 0);
+        }
+
+        private int build(int from, int to)
+        {
+            int first = key(from);
+            int depth = Math.min(length(from), Integer.numberOfLeadingZeros(first ^ key(to - 1)));
+
+            int node = node(first & mask(depth), depth);
+            if (length(from) == depth)
+            {
+                trie[node + META] |= TERMINAL;
+                from++;
+            }
+            link(node, from, to, depth);
+            return node;
+        }
+
+        private int node(int key, int depth)
+        {
+            int node = end;
+            end += STRIDE;
+            trie[node + KEY] = key;
+            trie[node + META] = depth;
+            return node;
+        }
+
+        private void link(int node, int from, int to, int depth)
+        {
+            // The run is sorted, so the prefixes with a 0 at this depth come before those with a 1
+            int split = from;
+            while (split < to && ((key(split) >>> (IPV4_BITS - 1 - depth)) & 1) == 0)
+            {
+                split++;
+            }
+            trie[node + CHILD] = from < split ? build(from, split) : NO_CHILD;
+            trie[node + CHILD + 1] = split < to ? build(split, to) : NO_CHILD;
+        }
+
+        private int key(int i)
+        {
+            return (int) (sorted[i] >>> 8);
+        }
+
+        private int length(int i)
+        {
+            return (int) (sorted[i] & 0xFF);
+        }
+    }
+
+    /**
+     * Builds a flattened IPv6 trie from sorted prefixes, the same way as {@link Trie4}
+     */
+    private static final class Trie6
+    {
+        private final long[] highs;
+        private final long[] lows;
+        private final byte[] lengths;
+        private final int[] order;
+        private final long[] trie;
+        private int end = 0;
+
+        private Trie6(long[] highs, long[] lows, byte[] lengths, int[] order, int count)
+        {
+            this.highs = highs;
+            this.lows = lows;
+            this.lengths = lengths;
+            this.order = order;
+            trie = new long[(count * 2 + 1) * STRIDE];
+
+            int root = node(0, 0, 0);
+            int from = 0;
+            if (count > 0 && length(0) == 0)
+            {
+                trie[root + 2] |= TERMINAL;
+                from = 1;
+            }
+            link(root, from, count, 0);
+        }
+
+        private int build(int from, int to)
+        {
+            int first = order[from];
+            int last = order[to - 1];
+            int common = highs[first] != highs[last] ? Long.numberOfLeadingZeros(highs[first] ^ highs[last])
+                    : 64 + Long.numberOfLeadingZeros(lows[first] ^ lows[last]);
+            int depth = Math.min(length(from), common);
+
+            int node = node(highs[first] & highMask(depth), lows[first] & lowMask(depth), depth);
+            if (length(from) == depth)
+            {
+                trie[node + 2] |= TERMINAL;
+                from++;
+            }
+            link(node, from, to, depth);
+            return node;
+        }
+
+        private int node(long high, long low, int depth)
+        {
+            int node = end;
+            end += STRIDE;
+            trie[node] = high;
+            trie[node + 1] = low;
+            trie[node + 2] = depth;
+            return node;
+        }
+
+        private void link(int node, int from, int to, int depth)
+        {
+            int split = from;
+            while (split < to && bit(highs[order[split]], lows[order[split]], depth) == 0)
+            {
+                split++;
+            }
+            long zero = from < split ? build(from, split) : NO_CHILD;
+            long one = split < to ? build(split, to) : NO_CHILD;
+            trie[node + 3] = (zero << 32) | (one & 0xFFFFFFFFL);
+        }
+
+        private int length(int i)
+        {
+            return lengths[order[i]] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Limits how often each client address, or each IPv4 or IPv6 network of a configured prefix length, may sign on.
+ * </p>
+ * <p>
+ * Every source has a token bucket, kept as a single "theoretical arrival time" (the generic cell rate algorithm): a
+ * request is allowed if it would not push that time more than the burst allowance into the future, and each allowed
+ * request pushes it one interval further. A bucket is therefore updated with one compare-and-set on a long.
+ * </p>
+ * <p>
+ * Buckets live in a fixed-size open-addressing table of primitive longs, each source's key next to its arrival time,
+ * so memory use is bounded no matter how many sources send requests. There is no lock and no sweeper thread: a bucket
+ * whose arrival time has passed is full, holds no information, and is simply taken over by the next source that
+ * probes its slot. When every probed slot belongs to an active source, the one closest to full is evicted. Under a
+ * flood from more sources than the table holds, sources can thus be forgotten early, which errs towards allowing
+ * requests.
+ * </p>
+ */
+final class IpRateLimiter
+{
+    private static final int MAX_PROBES = 8;
+    private static final int MAX_CAPACITY = 1 << 24;
+
+    // Marks a free slot. No client can have this key, as it stands for the unroutable IPv6 network ::/64.
+    private static final long EMPTY = 0;
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final int shift;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final long ipv4Mask;
+    private final long ipv6Mask;
+    private final long origin = System.nanoTime();
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param requestsPerMinute
+     *            The sustained number of requests each source may make
+     * @param burst
+     *            The number of requests each source may make at once
+     * @param ipv4PrefixLength
+     *            The IPv4 prefix length that groups addresses into one source, 32 for each address
+     * @param ipv6PrefixLength
+     *            The IPv6 prefix length that groups addresses into one source, at most 64
+     * @param capacity
+     *            The number of sources tracked at once, rounded up to a power of two
+     */
+    IpRateLimiter(int requestsPerMinute, int burst, int ipv4PrefixLength, int ipv6PrefixLength, int capacity)
+    {
+        if (requestsPerMinute < 1 || burst < 1)
+        {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        if (ipv4PrefixLength < 1 || ipv4PrefixLength > 32 || ipv6PrefixLength < 1 || ipv6PrefixLength > 64)
+        {
+            throw new IllegalArgumentException("Bad prefix length");
+        }
+        if (capacity < MAX_PROBES || capacity > MAX_CAPACITY)
+        {
+            throw new IllegalArgumentException("Rate limit table size must be between " + MAX_PROBES + " and "
+                    + MAX_CAPACITY);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+        {
+            size <<= 1;
+        }
+        this.table = new AtomicLongArray(size * 2);
+        this.mask = size - 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(size);
+        this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / requestsPerMinute;
+        this.toleranceNanos = intervalNanos * burst;
+        this.ipv4Mask = IpAddresses.IPV4_MAPPED_PREFIX | (IpRangeSet.mask(ipv4PrefixLength) & 0xFFFFFFFFL);
+        this.ipv6Mask = IpRangeSet.highMask(ipv6PrefixLength);
+    }
+
+    /**
+     * Take a token from the bucket of the client's source
+     *
+     * @param high
+     *            The high 64 bits of the client address, IPv4 addresses are in IPv4-mapped form
+     * @param low
+     *            The low 64 bits of the client address
+     * @return True if the request is allowed, false if the source is over its limit
+     */
+    boolean tryAcquire(long high, long low)
+    {
+        return tryAcquire(high, low, System.nanoTime() - origin);
+    }
+
+    /**
+     * Take a token from the bucket of the client's source at a given time
+     *
+     * @param high
+     *            The high 64 bits of the client address, IPv4 addresses are in IPv4-mapped form
+     * @param low
+     *            The low 64 bits of the client address
+     * @param now
+     *            The current time in nanoseconds since this limiter was created
+     * @return True if the request is allowed, false if the source is over its limit
+     */
+    boolean tryAcquire(long high, long low, long now)
+    {
+        long key = IpRangeSet.isIPv4Mapped(high, low) ? low & ipv4Mask : high & ipv6Mask;
+        if (key == EMPTY)
+        {
+            return true;
+        }
+
+        int home = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        int victim = -1;
+        long victimKey = EMPTY;
+        long victimTime = Long.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++)
+        {
+            int slot = ((home + probe) & mask) << 1;
+            long slotKey = table.get(slot);
+            if (slotKey == key)
+            {
+                return acquire(slot, now);
+            }
+
+            long arrival = table.get(slot + 1);
+            if (slotKey == EMPTY || arrival <= now)
+            {
+                // A free slot, or a full bucket that can be handed over as is
+                if (table.compareAndSet(slot, slotKey, key) || table.get(slot) == key)
+                {
+                    return acquire(slot, now);
+                }
+            }
+            else if (arrival < victimTime)
+            {
+                victim = slot;
+                victimKey = slotKey;
+                victimTime = arrival;
+            }
+        }
+
+        // Every probed slot is in use, replace the source whose bucket is closest to full
+        if (victim >= 0 && table.compareAndSet(victim, victimKey, key))
+        {
+            evictions.increment();
+            table.compareAndSet(victim + 1, victimTime, now);
+            return acquire(victim, now);
+        }
+        return true;
+    }
+
+    private boolean acquire(int slot, long now)
+    {
+        while (true)
+        {
+            long arrival = table.get(slot + 1);
+            long next = Math.max(arrival, now) + intervalNanos;
+            if (next - now > toleranceNanos)
+            {
+                limited.increment();
+                return false;
+            }
+            if (table.compareAndSet(slot + 1, arrival, next))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests refused since this limiter was created
+     */
+    long getLimited()
+    {
+        return limited.sum();
+    }
+
+    /**
+     * @return The number of active sources forgotten early because the table was full
+     */
+    long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of sources tracked at once
+     */
+    int capacity()
+    {
+        return mask + 1;
+    }
+}
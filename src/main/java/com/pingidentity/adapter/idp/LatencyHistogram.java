@@ -0,0 +1,170 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A lock-free log-linear histogram of durations in nanoseconds, cheap enough to record every request.
+ * </p>
+ * <p>
+ * Values below 8 get a bucket each, and every power of two above that is split into 8 linear buckets, so any
+ * recorded value is reported within 12.5% of its true value over the whole range of a long. Recording is one index
+ * computation and two atomic adds. To keep request threads from contending on the same cache lines, the counts are
+ * striped by thread and only summed when a {@link Snapshot} is taken.
+ * </p>
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+    // Each stripe holds its bucket counts and the sum of its values, padded so stripes never share a cache line
+    private static final int SUM = BUCKETS;
+    private static final int STRIPE_LENGTH = BUCKETS + 16;
+    private static final int MAX_STRIPES = 64;
+
+    private final AtomicLongArray counts;
+    private final int stripeMask;
+
+    LatencyHistogram()
+    {
+        int stripes = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES));
+        this.counts = new AtomicLongArray(stripes * STRIPE_LENGTH);
+        this.stripeMask = stripes - 1;
+    }
+
+    /**
+     * Record a duration
+     *
+     * @param nanos
+     *            The duration in nanoseconds, negative values are recorded as 0
+     */
+    void record(long nanos)
+    {
+        long value = Math.max(nanos, 0);
+        int stripe = ((int) Thread.currentThread().getId() & stripeMask) * STRIPE_LENGTH;
+        counts.getAndIncrement(stripe + index(value));
+        counts.getAndAdd(stripe + SUM, value);
+    }
+
+    /**
+     * @return The values recorded so far
+     */
+    Snapshot snapshot()
+    {
+        long[] buckets = new long[BUCKETS];
+        long sum = 0;
+        for (int stripe = 0; stripe < counts.length(); stripe += STRIPE_LENGTH)
+        {
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                buckets[i] += counts.get(stripe + i);
+            }
+            sum += counts.get(stripe + SUM);
+        }
+        return new Snapshot(buckets, sum);
+    }
+
+    static int index(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS)
+                + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return The largest value that is counted in a bucket
+     */
+    static long highestValue(int index)
+    {
+        if (index < SUB_BUCKETS - 1)
+        {
+            return index;
+        }
+        if (index == BUCKETS - 1)
+        {
+            return Long.MAX_VALUE;
+        }
+        int next = index + 1;
+        int exponent = (next >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        return ((long) (SUB_BUCKETS + (next & (SUB_BUCKETS - 1))) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * The values of a histogram at one point in time
+     */
+    static final class Snapshot
+    {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+
+        private Snapshot(long[] buckets, long sum)
+        {
+            long count = 0;
+            for (long bucket : buckets)
+            {
+                count += bucket;
+            }
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        /**
+         * @return The number of values recorded
+         */
+        long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return The mean of the values recorded, 0 if there are none
+         */
+        long getMean()
+        {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param quantile
+         *            The quantile, between 0 and 1, e.g. 0.99
+         * @return An upper bound of the value at the quantile, 0 if there are no values
+         */
+        long getValueAt(double quantile)
+        {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++)
+            {
+                seen += buckets[i];
+                if (seen >= rank)
+                {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return An upper bound of the largest value recorded, 0 if there are none
+         */
+        long getMax()
+        {
+            for (int i = buckets.length - 1; i >= 0; i--)
+            {
+                if (buckets[i] != 0)
+                {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
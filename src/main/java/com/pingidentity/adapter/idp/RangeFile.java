@@ -0,0 +1,348 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A text file of CIDR ranges, one per line, with optional <code># comments</code>. The file is compiled into an
+ * {@link IpRangeSet} and the flattened tries are saved next to it in a binary snapshot, <code>&lt;file&gt;.snapshot
+ * </code>, which is memory mapped and bulk copied the next time the same version of the file is loaded, e.g. by
+ * another adapter instance or after a restart. The version is told by the file's modification time, size and CRC-32
+ * checksum, and the snapshot also records the fingerprint of its tries, so a stale or corrupt snapshot is ignored and
+ * the file compiled again.
+ * </p>
+ * <p>
+ * The text itself is also memory mapped and parsed in place, so compiling a large file does not create a string per
+ * line.
+ * </p>
+ */
+public final class RangeFile implements RangeFileWatcher.Loader<IpRangeSet>
+{
+    private static final Logger LOG = LoggerFactory.getLogger(RangeFile.class);
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int MAGIC = 0x49505246;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+
+    private final File source;
+    private final File snapshot;
+
+    /**
+     * @param source
+     *            The text file of CIDR ranges
+     */
+    public RangeFile(File source)
+    {
+        this.source = source;
+        this.snapshot = new File(source.getPath() + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * @return The text file of CIDR ranges
+     */
+    public File getSource()
+    {
+        return source;
+    }
+
+    /**
+     * Load the ranges. The snapshot is used if it was compiled from the current version of the file, otherwise the
+     * file is compiled and a new snapshot is written.
+     *
+     * @return The ranges in the file
+     * @throws IOException
+     *             Thrown if the file cannot be read
+     * @throws IllegalArgumentException
+     *             Thrown if a line of the file is not a valid CIDR range
+     */
+    public IpRangeSet load() throws IOException
+    {
+        return load(new long[3]);
+    }
+
+    /**
+     * Load the ranges, see {@link #load()}, and report the version of the file they were loaded from
+     *
+     * @param version
+     *            Receives the modification time at index 0, the size at index 1 and the checksum at index 2
+     * @return The ranges in the file
+     * @throws IOException
+     *             Thrown if the file cannot be read
+     * @throws IllegalArgumentException
+     *             Thrown if a line of the file is not a valid CIDR range
+     */
+    public IpRangeSet load(long[] version) throws IOException
+    {
+        readVersion(source, version);
+        long lastModified = version[0];
+        long length = version[1];
+        long checksum = version[2];
+
+        IpRangeSet ranges = readSnapshot(lastModified, length, checksum);
+        if (ranges == null)
+        {
+            ranges = compile();
+            try
+            {
+                writeSnapshot(ranges, lastModified, length, checksum);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Could not write range snapshot " + snapshot, e);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Parse the text file, ignoring the snapshot. Overlapping and adjacent ranges are merged, so the set only holds as
+     * many prefixes as the covered addresses need.
+     *
+     * @return The ranges in the file
+     * @throws IOException
+     *             Thrown if the file cannot be read
+     * @throws IllegalArgumentException
+     *             Thrown if a line of the file is not a valid CIDR range
+     */
+    IpRangeSet compile() throws IOException
+    {
+        RangeSetCompiler compiler = new RangeSetCompiler();
+        CharSequence text = new AsciiSequence(map(source));
+
+        int length = text.length();
+        for (int start = 0; start < length; start++)
+        {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n')
+            {
+                end++;
+            }
+
+            int from = start;
+            int to = from;
+            while (to < end && text.charAt(to) != '#')
+            {
+                to++;
+            }
+            while (from < to && Character.isWhitespace(text.charAt(from)))
+            {
+                from++;
+            }
+            while (to > from && Character.isWhitespace(text.charAt(to - 1)))
+            {
+                to--;
+            }
+
+            if (from < to)
+            {
+                compiler.add(text, from, to);
+            }
+            start = end;
+        }
+
+        IpRangeSet ranges;
+        try
+        {
+            ranges = compiler.compile();
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException(e.getMessage() + " in " + source);
+        }
+        LOG.info("Merged {} ranges from {} into {} prefixes", compiler.getEntries(), source, ranges.size());
+        return ranges;
+    }
+
+    private IpRangeSet readSnapshot(long lastModified, long length, long checksum) throws IOException
+    {
+        if (!snapshot.isFile())
+        {
+            return null;
+        }
+
+        try
+        {
+            ByteBuffer buffer = map(snapshot);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != lastModified
+                    || buffer.getLong() != length || buffer.getLong() != checksum)
+            {
+                return null;
+            }
+            long fingerprint = buffer.getLong();
+            buffer.position(HEADER_SIZE);
+            IpRangeSet ranges = IpRangeSet.readFrom(buffer);
+            if (ranges.fingerprint() != fingerprint)
+            {
+                throw new IllegalArgumentException("Fingerprint mismatch");
+            }
+            return ranges;
+        }
+        catch (BufferUnderflowException e)
+        {
+            LOG.warn("Ignoring truncated range snapshot " + snapshot);
+            return null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOG.warn("Ignoring corrupt range snapshot " + snapshot + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeSnapshot(IpRangeSet ranges, long lastModified, long length, long checksum) throws IOException
+    {
+        // Write a temporary file and move it into place, so readers never see a partial snapshot
+        File temporary = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getAbsoluteFile().getParentFile());
+        try
+        {
+            RandomAccessFile file = new RandomAccessFile(temporary, "rw");
+            try
+            {
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + ranges.serializedSize());
+                buffer.putInt(MAGIC).putInt(VERSION).putLong(lastModified).putLong(length).putLong(checksum)
+                        .putLong(ranges.fingerprint());
+                buffer.position(HEADER_SIZE);
+                ranges.writeTo(buffer);
+                buffer.force();
+            }
+            finally
+            {
+                file.close();
+            }
+            Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            if (temporary.exists() && !temporary.delete())
+            {
+                temporary.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return The CRC-32 checksum of the text file's current contents
+     * @throws IOException
+     *             Thrown if the file cannot be read
+     */
+    public long checksum() throws IOException
+    {
+        return checksum(source);
+    }
+
+    /**
+     * @param contents
+     *            The ranges in the file
+     * @return The number of ranges, for the log
+     */
+    public String describe(IpRangeSet contents)
+    {
+        return contents.size() + " ranges";
+    }
+
+    /**
+     * Read the version of a file before loading it. If the file changes while it is loaded, the next check sees a
+     * newer version. The time and size alone miss edits within the timestamp resolution that keep the size, so the
+     * contents are checksummed too.
+     *
+     * @param file
+     *            The file
+     * @param version
+     *            Receives the modification time at index 0, the size at index 1 and the CRC-32 checksum at index 2
+     * @throws IOException
+     *             Thrown if the file does not exist or cannot be read
+     */
+    static void readVersion(File file, long[] version) throws IOException
+    {
+        if (!file.isFile())
+        {
+            throw new FileNotFoundException(file.getPath());
+        }
+        version[0] = file.lastModified();
+        version[1] = file.length();
+        version[2] = checksum(file);
+    }
+
+    /**
+     * @param file
+     *            The file
+     * @return The CRC-32 checksum of the file's current contents
+     * @throws IOException
+     *             Thrown if the file cannot be read
+     */
+    static long checksum(File file) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(map(file));
+        return crc.getValue();
+    }
+
+    static MappedByteBuffer map(File file) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try
+        {
+            // The mapping stays valid after the channel is closed
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * A read-only view of single byte characters in a buffer
+     */
+    static final class AsciiSequence implements CharSequence
+    {
+        private final ByteBuffer bytes;
+
+        AsciiSequence(ByteBuffer bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        public int length()
+        {
+            return bytes.limit();
+        }
+
+        public char charAt(int index)
+        {
+            return (char) (bytes.get(index) & 0xFF);
+        }
+
+        public CharSequence subSequence(int start, int end)
+        {
+            StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++)
+            {
+                sb.append(charAt(i));
+            }
+            return sb;
+        }
+
+        @Override
+        public String toString()
+        {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
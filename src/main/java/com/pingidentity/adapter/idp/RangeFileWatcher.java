@@ -0,0 +1,356 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Keeps the contents of a file of addresses up to date: the ranges of a {@link RangeFile}, or the addresses of an
+ * {@link IpDenylist} feed. A single background thread checks every watched file for changes and loads it again off
+ * the request threads; the new contents are then published with an atomic reference swap, so readers never block and
+ * never see half-built contents.
+ * </p>
+ * <p>
+ * A file is checked by its modification time and size. An edit that keeps the size within the timestamp resolution
+ * of the file system keeps the modification time too, so while the loaded contents were read within that resolution
+ * of their modification time the file is also checksummed on every check; once a checksum taken later shows it is
+ * unchanged, the time and size are enough. A file that could not be loaded is only loaded again once its time or size
+ * changes, and the previous contents stay in place.
+ * </p>
+ * <p>
+ * Watchers are shared by file, so adapter instances that are reconfigured or configured with the same file do not
+ * start more threads, and a watcher stops once every adapter watching it has released it. A new watcher loads its
+ * file without holding the lock that guards the watchers, so a large file does not hold up adapters watching other
+ * files.
+ * </p>
+ *
+ * @param <T>
+ *            The type of the file's contents
+ */
+public final class RangeFileWatcher<T>
+{
+    /**
+     * A file that can be watched
+     *
+     * @param <T>
+     *            The type of the file's contents
+     */
+    interface Loader<T>
+    {
+        /**
+         * @return The file
+         */
+        File getSource();
+
+        /**
+         * Load the contents of the file and report the version they were loaded from
+         *
+         * @param version
+         *            Receives the modification time at index 0, the size at index 1 and the checksum at index 2
+         * @return The contents
+         * @throws IOException
+         *             Thrown if the file cannot be read
+         * @throws IllegalArgumentException
+         *             Thrown if the file is not valid
+         */
+        T load(long[] version) throws IOException;
+
+        /**
+         * @return The checksum of the file's current contents, as reported by {@link #load(long[])}
+         * @throws IOException
+         *             Thrown if the file cannot be read
+         */
+        long checksum() throws IOException;
+
+        /**
+         * @param contents
+         *            Contents returned by {@link #load(long[])}
+         * @return A short description of the contents for the log, e.g. <code>12 ranges</code>
+         */
+        String describe(T contents);
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(RangeFileWatcher.class);
+
+    private static final ConcurrentMap<String, RangeFileWatcher<?>> WATCHERS =
+            new ConcurrentHashMap<String, RangeFileWatcher<?>>();
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "range-file-watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Never the version of a file, even a missing one, so the first check always loads or reports it
+    private static final long UNCHECKED = Long.MIN_VALUE;
+
+    // The coarsest modification time resolution of common file systems, FAT's
+    private static final long TIMESTAMP_RESOLUTION_MILLIS = 2000;
+
+    private final Loader<T> file;
+    private final String key;
+    private final AtomicReference<T> contents;
+    private volatile long lastModified = UNCHECKED;
+    private volatile long length = UNCHECKED;
+    private volatile long checksum = 0;
+    private volatile boolean settled = false;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private ScheduledFuture<?> task = null;
+    private long intervalSeconds = 0;
+
+    // The number of adapters watching the file, guarded by WATCHERS
+    private int users = 0;
+
+    /**
+     * Create a watcher without loading the file or scheduling checks
+     *
+     * @param file
+     *            The file to watch
+     * @param initial
+     *            The contents until the file has been loaded, may be null
+     */
+    RangeFileWatcher(Loader<T> file, T initial)
+    {
+        this.file = file;
+        this.key = file.getClass().getName() + ":" + file.getSource().getPath();
+        this.contents = new AtomicReference<T>(initial);
+    }
+
+    /**
+     * Start watching a file of CIDR ranges, or reuse the watcher already watching it. The first call loads the file
+     * before returning, and the ranges are empty if it cannot be loaded. Every call must be matched by a call to
+     * {@link #release()} once the caller no longer needs the ranges.
+     *
+     * @param source
+     *            The text file of CIDR ranges
+     * @param intervalSeconds
+     *            How often to check the file for changes
+     * @return The watcher for the file
+     */
+    public static RangeFileWatcher<IpRangeSet> watch(File source, long intervalSeconds)
+    {
+        return watch(new RangeFile(source.getAbsoluteFile()), new IpRangeSet.Builder().build(), intervalSeconds);
+    }
+
+    /**
+     * Start watching a denylist feed, or reuse the watcher already watching it. The first call loads the feed before
+     * returning, and the watcher holds null until the feed has been loaded. Every call must be matched by a call to
+     * {@link #release()}.
+     *
+     * @param feed
+     *            The feed file of addresses
+     * @param intervalSeconds
+     *            How often to check the file for changes
+     * @return The watcher for the file
+     */
+    static RangeFileWatcher<IpDenylist> watchDenylist(File feed, long intervalSeconds)
+    {
+        return watch(new IpDenylist.Feed(feed.getAbsoluteFile()), null, intervalSeconds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> RangeFileWatcher<T> watch(Loader<T> file, T initial, long intervalSeconds)
+    {
+        RangeFileWatcher<T> watcher = new RangeFileWatcher<T>(file, initial);
+        boolean created = false;
+        synchronized (WATCHERS)
+        {
+            RangeFileWatcher<?> existing = WATCHERS.get(watcher.key);
+            if (existing == null)
+            {
+                WATCHERS.put(watcher.key, watcher);
+                created = true;
+            }
+            else
+            {
+                // The key includes the loader type, so the contents are of the same type
+                watcher = (RangeFileWatcher<T>) existing;
+            }
+            watcher.users++;
+        }
+
+        // Load outside the lock, later callers for the same file wait for the first load instead
+        if (created)
+        {
+            try
+            {
+                watcher.check();
+            }
+            finally
+            {
+                watcher.loaded.countDown();
+            }
+        }
+        else
+        {
+            watcher.awaitLoaded();
+        }
+        watcher.schedule(intervalSeconds);
+        return watcher;
+    }
+
+    /**
+     * Stop watching the file for one caller of {@link #watch}. When no caller is left the file is no longer checked,
+     * and the next call to {@link #watch} starts a new watcher.
+     */
+    public void release()
+    {
+        synchronized (WATCHERS)
+        {
+            if (users == 0 || --users > 0)
+            {
+                return;
+            }
+            WATCHERS.remove(key, this);
+        }
+        cancel();
+    }
+
+    /**
+     * @return The contents from the latest successful load, or the initial contents until the file has been loaded
+     */
+    public T get()
+    {
+        return contents.get();
+    }
+
+    private void awaitLoaded()
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                loaded.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void schedule(long intervalSeconds)
+    {
+        if (task != null && this.intervalSeconds == intervalSeconds)
+        {
+            return;
+        }
+        if (task != null)
+        {
+            task.cancel(false);
+        }
+
+        this.intervalSeconds = intervalSeconds;
+        task = SCHEDULER.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                check();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private synchronized void cancel()
+    {
+        if (task != null)
+        {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Reload the file if it changed since the last check
+     *
+     * @return True if the file changed, whether or not it could be loaded
+     */
+    boolean check()
+    {
+        File source = file.getSource();
+        long modified = source.lastModified();
+        long size = source.isFile() ? source.length() : -1;
+        if (modified == lastModified && size == length && (settled || !changedWithinResolution(modified)))
+        {
+            return false;
+        }
+
+        // Remember this version even if it fails to load, so a bad file is reported once rather than on every check
+        lastModified = modified;
+        length = size;
+        settled = true;
+        try
+        {
+            long start = System.nanoTime();
+            long readTime = System.currentTimeMillis();
+            long[] version = new long[3];
+            T loaded = file.load(version);
+            lastModified = version[0];
+            length = version[1];
+            checksum = version[2];
+            settled = readTime - version[0] >= TIMESTAMP_RESOLUTION_MILLIS;
+            contents.set(loaded);
+            LOG.info("Loaded {} from {} in {} ms", file.describe(loaded), source,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        catch (IOException e)
+        {
+            LOG.error("Could not read " + source + ", keeping the previous contents", e);
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOG.error("Could not load " + source + ", keeping the previous contents: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Checksum a file whose time and size are unchanged, but which was loaded within the timestamp resolution of its
+     * modification time
+     *
+     * @param modified
+     *            The modification time of the file
+     * @return True if the contents changed, or cannot be read
+     */
+    private boolean changedWithinResolution(long modified)
+    {
+        long readTime = System.currentTimeMillis();
+        try
+        {
+            if (file.checksum() != checksum)
+            {
+                return true;
+            }
+        }
+        catch (IOException e)
+        {
+            return true;
+        }
+
+        // A later edit is bound to change the time once the clock has moved past its resolution
+        settled = readTime - modified >= TIMESTAMP_RESOLUTION_MILLIS;
+        return false;
+    }
+}
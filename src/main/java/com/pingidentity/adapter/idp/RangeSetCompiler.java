@@ -0,0 +1,534 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>
+ * Compiles long, untidy lists of CIDR ranges into an {@link IpRangeSet} holding the fewest prefixes that cover exactly
+ * the same addresses.
+ * </p>
+ * <p>
+ * The list is split between tasks on the common fork-join pool. Each task parses its share of the ranges into
+ * primitive arrays of address intervals, sorts them and merges those that overlap or touch, and joining two tasks
+ * merges their sorted intervals the same way. Duplicate, nested and adjacent ranges are therefore dropped as early as
+ * possible, so past parsing the work and memory follow the addresses actually covered rather than the length of the
+ * list. Each remaining interval is finally split into the largest aligned prefixes that fit it, and only those are
+ * built into the set. Short lists are compiled on the calling thread.
+ * </p>
+ * <p>
+ * Only the covered addresses are kept, not the prefixes as written, so {@link IpRangeSet#longestMatch(int)} on the
+ * result does not report the configured prefix lengths. Compilers are not thread safe.
+ * </p>
+ */
+final class RangeSetCompiler
+{
+    // Ranges parsed by one task, also the threshold below which the list is not split
+    private static final int LEAF_SIZE = 1024;
+
+    private static final long IPV4_LAST = 0xFFFFFFFFL;
+    private static final int NO_ERROR = Integer.MAX_VALUE;
+
+    private CharSequence[] sources = new CharSequence[16];
+    private int[] bounds = new int[32];
+    private int count = 0;
+
+    // Ranges added as numbers, which need no parsing
+    private final Intervals numeric = new Intervals();
+    private int numericCount = 0;
+
+    /**
+     * Add an IPv4 range. Host bits beyond the prefix length are ignored.
+     *
+     * @param address
+     *            The packed base address of the range
+     * @param prefixLength
+     *            The prefix length, 0-32
+     * @return This compiler
+     * @throws IllegalArgumentException
+     *             Thrown if the prefix length is out of range
+     */
+    RangeSetCompiler add(int address, int prefixLength)
+    {
+        if (prefixLength < 0 || prefixLength > 32)
+        {
+            throw new IllegalArgumentException("Bad prefix length");
+        }
+
+        int first = address & IpRangeSet.mask(prefixLength);
+        numeric.add4(first, first | ~IpRangeSet.mask(prefixLength));
+        numericCount++;
+        return this;
+    }
+
+    /**
+     * Add a range in CIDR notation, e.g. 10.0.0.0/8 or 2001:db8::/32. It is only parsed by {@link #compile()}.
+     *
+     * @param cidr
+     *            The range to add
+     * @return This compiler
+     */
+    RangeSetCompiler add(String cidr)
+    {
+        String trimmed = cidr.trim();
+        return add(trimmed, 0, trimmed.length());
+    }
+
+    /**
+     * Add every range in a list of ranges in CIDR notation separated by commas or whitespace, e.g.
+     * <code>10.0.0.0/8, 192.168.0.0/16</code>. An empty list adds nothing. The ranges are only parsed by
+     * {@link #compile()}.
+     *
+     * @param cidrs
+     *            The ranges to add
+     * @return This compiler
+     */
+    RangeSetCompiler addList(String cidrs)
+    {
+        int length = cidrs.length();
+        int from = 0;
+        while (from < length)
+        {
+            int to = from;
+            while (to < length && !IpRangeSet.Builder.isListSeparator(cidrs.charAt(to)))
+            {
+                to++;
+            }
+            if (to > from)
+            {
+                add(cidrs, from, to);
+            }
+            from = to + 1;
+        }
+        return this;
+    }
+
+    /**
+     * Add a range in CIDR notation from part of a character sequence, which must not change until {@link #compile()}
+     * has parsed it
+     *
+     * @param s
+     *            The characters holding the range
+     * @param from
+     *            The index of the first character of the range
+     * @param to
+     *            The index after the last character of the range
+     * @return This compiler
+     */
+    RangeSetCompiler add(CharSequence s, int from, int to)
+    {
+        if (count == sources.length)
+        {
+            sources = Arrays.copyOf(sources, count * 2);
+            bounds = Arrays.copyOf(bounds, count * 4);
+        }
+        sources[count] = s;
+        bounds[count * 2] = from;
+        bounds[count * 2 + 1] = to;
+        count++;
+        return this;
+    }
+
+    /**
+     * @return The number of ranges added, as written
+     */
+    int getEntries()
+    {
+        return count + numericCount;
+    }
+
+    /**
+     * Parse the ranges, merge them and build the smallest range set covering the same addresses. The compiler can
+     * keep being used afterwards.
+     *
+     * @return The immutable range set
+     * @throws IllegalArgumentException
+     *             Thrown if a range is not valid, naming the first invalid one
+     */
+    IpRangeSet compile()
+    {
+        numeric.normalize();
+        Intervals parsed = count == 0 ? new Intervals() : new Task(0, count).invoke();
+        if (parsed.error != NO_ERROR)
+        {
+            int from = bounds[parsed.error * 2];
+            int to = bounds[parsed.error * 2 + 1];
+            throw new IllegalArgumentException("Bad CIDR '" + sources[parsed.error].subSequence(from, to) + "'");
+        }
+        Intervals merged = Intervals.merge(numeric, parsed);
+
+        IpRangeSet.Builder builder = new IpRangeSet.Builder();
+        for (int i = 0; i < merged.count4; i++)
+        {
+            addPrefixes(builder, merged.ipv4[i] >>> 32, merged.ipv4[i] & IPV4_LAST);
+        }
+        long[] ipv6 = merged.ipv6;
+        for (int i = 0; i < merged.count6 * 4; i += 4)
+        {
+            addPrefixes(builder, ipv6[i], ipv6[i + 1], ipv6[i + 2], ipv6[i + 3]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Split an IPv4 interval into the largest aligned prefixes, each as large as the alignment of its first address
+     * and the rest of the interval allow
+     */
+    private static void addPrefixes(IpRangeSet.Builder builder, long first, long last)
+    {
+        while (first <= last)
+        {
+            int bits = Math.min(Long.numberOfTrailingZeros(first), 63 - Long.numberOfLeadingZeros(last - first + 1));
+            builder.add((int) first, 32 - bits);
+            first += 1L << bits;
+        }
+    }
+
+    /**
+     * Split an IPv6 interval into the largest aligned prefixes, with the address arithmetic done on 64 bit halves
+     */
+    private static void addPrefixes(IpRangeSet.Builder builder, long firstHigh, long firstLow, long lastHigh,
+            long lastLow)
+    {
+        while (true)
+        {
+            int aligned = firstLow != 0 ? Long.numberOfTrailingZeros(firstLow)
+                    : 64 + Long.numberOfTrailingZeros(firstHigh);
+
+            // A prefix with as many host bits as the span has is either the largest that fits or one bit too big
+            long spanLow = lastLow - firstLow;
+            long spanHigh = lastHigh - firstHigh - (Long.compareUnsigned(lastLow, firstLow) < 0 ? 1 : 0);
+            int bits = Math.min(aligned, spanHigh != 0 ? 128 - Long.numberOfLeadingZeros(spanHigh)
+                    : 64 - Long.numberOfLeadingZeros(spanLow));
+            long endHigh = firstHigh | ~IpRangeSet.highMask(128 - bits);
+            long endLow = firstLow | ~IpRangeSet.lowMask(128 - bits);
+            if (compare(endHigh, endLow, lastHigh, lastLow) > 0)
+            {
+                bits--;
+                endHigh = firstHigh | ~IpRangeSet.highMask(128 - bits);
+                endLow = firstLow | ~IpRangeSet.lowMask(128 - bits);
+            }
+            builder.add(firstHigh, firstLow, 128 - bits);
+
+            if (endHigh == lastHigh && endLow == lastLow)
+            {
+                return;
+            }
+            firstLow = endLow + 1;
+            firstHigh = firstLow == 0 ? endHigh + 1 : endHigh;
+        }
+    }
+
+    private static int compare(long highA, long lowA, long highB, long lowB)
+    {
+        int result = Long.compareUnsigned(highA, highB);
+        return result != 0 ? result : Long.compareUnsigned(lowA, lowB);
+    }
+
+    /**
+     * Parses the ranges from one index to another, splitting the work in two while it is large
+     */
+    private final class Task extends RecursiveTask<Intervals>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        private Task(int from, int to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Intervals compute()
+        {
+            if (to - from > LEAF_SIZE)
+            {
+                int mid = (from + to) >>> 1;
+                Task left = new Task(from, mid);
+                left.fork();
+                Intervals right = new Task(mid, to).compute();
+                return Intervals.merge(left.join(), right);
+            }
+
+            Intervals intervals = new Intervals();
+            long[] address = new long[2];
+            for (int i = from; i < to; i++)
+            {
+                int prefixLength = IpRangeSet.parse(sources[i], bounds[i * 2], bounds[i * 2 + 1], address);
+                if (prefixLength < 0)
+                {
+                    intervals.error = i;
+                    break;
+                }
+
+                long high = address[0];
+                long low = address[1];
+                if (prefixLength >= 96 && IpRangeSet.isIPv4Mapped(high, low))
+                {
+                    int mask = IpRangeSet.mask(prefixLength - 96);
+                    intervals.add4((int) low & mask, (int) low | ~mask);
+                }
+                else
+                {
+                    long highMask = IpRangeSet.highMask(prefixLength);
+                    long lowMask = IpRangeSet.lowMask(prefixLength);
+                    intervals.add6(high & highMask, low & lowMask, high | ~highMask, low | ~lowMask);
+                }
+            }
+            intervals.normalize();
+            return intervals;
+        }
+    }
+
+    /**
+     * <p>
+     * Inclusive address intervals in primitive arrays. IPv4 intervals are packed into one long each, the first address
+     * in the high 32 bits and the last in the low 32 bits, and IPv6 intervals take four longs: the high and low halves
+     * of the first address, then of the last.
+     * </p>
+     * <p>
+     * Once normalized the intervals are sorted and disjoint, with a gap between any two of them.
+     * </p>
+     */
+    private static final class Intervals
+    {
+        private long[] ipv4;
+        private int count4 = 0;
+        private long[] ipv6;
+        private int count6 = 0;
+
+        // The index of the first range that could not be parsed
+        private int error = NO_ERROR;
+
+        private Intervals()
+        {
+            this(16, 16);
+        }
+
+        private Intervals(int capacity4, int capacity6)
+        {
+            ipv4 = new long[capacity4];
+            ipv6 = new long[capacity6 * 4];
+        }
+
+        private void add4(int first, int last)
+        {
+            if (count4 == ipv4.length)
+            {
+                ipv4 = Arrays.copyOf(ipv4, count4 * 2);
+            }
+            ipv4[count4++] = (first & IPV4_LAST) << 32 | (last & IPV4_LAST);
+        }
+
+        private void add6(long firstHigh, long firstLow, long lastHigh, long lastLow)
+        {
+            if (count6 * 4 == ipv6.length)
+            {
+                ipv6 = Arrays.copyOf(ipv6, count6 * 8);
+            }
+            int i = count6++ * 4;
+            ipv6[i] = firstHigh;
+            ipv6[i + 1] = firstLow;
+            ipv6[i + 2] = lastHigh;
+            ipv6[i + 3] = lastLow;
+        }
+
+        /**
+         * Sort the intervals and merge any that overlap or touch, in place
+         */
+        private void normalize()
+        {
+            // Flipping the sign bit makes the signed sort order the packed intervals by unsigned first address
+            for (int i = 0; i < count4; i++)
+            {
+                ipv4[i] ^= Long.MIN_VALUE;
+            }
+            Arrays.sort(ipv4, 0, count4);
+            int merged = 0;
+            for (int i = 0; i < count4; i++)
+            {
+                merged = append4(ipv4, merged, ipv4[i] ^ Long.MIN_VALUE);
+            }
+            count4 = merged;
+
+            sort6(ipv6, count6);
+            merged = 0;
+            for (int i = 0; i < count6 * 4; i += 4)
+            {
+                merged = append6(ipv6, merged, ipv6[i], ipv6[i + 1], ipv6[i + 2], ipv6[i + 3]);
+            }
+            count6 = merged;
+        }
+
+        /**
+         * Merge two normalized sets of intervals into a new normalized one
+         */
+        private static Intervals merge(Intervals a, Intervals b)
+        {
+            Intervals result = new Intervals(a.count4 + b.count4, a.count6 + b.count6);
+            result.error = Math.min(a.error, b.error);
+
+            int i = 0;
+            int j = 0;
+            int merged = 0;
+            while (i < a.count4 || j < b.count4)
+            {
+                if (j == b.count4 || (i < a.count4 && Long.compareUnsigned(a.ipv4[i], b.ipv4[j]) <= 0))
+                {
+                    merged = append4(result.ipv4, merged, a.ipv4[i++]);
+                }
+                else
+                {
+                    merged = append4(result.ipv4, merged, b.ipv4[j++]);
+                }
+            }
+            result.count4 = merged;
+
+            i = 0;
+            j = 0;
+            merged = 0;
+            while (i < a.count6 * 4 || j < b.count6 * 4)
+            {
+                long[] from;
+                int k;
+                if (j == b.count6 * 4
+                        || (i < a.count6 * 4 && compare(a.ipv6[i], a.ipv6[i + 1], b.ipv6[j], b.ipv6[j + 1]) <= 0))
+                {
+                    from = a.ipv6;
+                    k = i;
+                    i += 4;
+                }
+                else
+                {
+                    from = b.ipv6;
+                    k = j;
+                    j += 4;
+                }
+                merged = append6(result.ipv6, merged, from[k], from[k + 1], from[k + 2], from[k + 3]);
+            }
+            result.count6 = merged;
+            return result;
+        }
+
+        /**
+         * Append an interval that starts no earlier than the last one, merging the two if they overlap or touch
+         *
+         * @return The number of intervals in the array afterwards
+         */
+        private static int append4(long[] intervals, int count, long interval)
+        {
+            if (count > 0)
+            {
+                long last = intervals[count - 1] & IPV4_LAST;
+                if (interval >>> 32 <= last + 1)
+                {
+                    if ((interval & IPV4_LAST) > last)
+                    {
+                        intervals[count - 1] = (intervals[count - 1] & ~IPV4_LAST) | (interval & IPV4_LAST);
+                    }
+                    return count;
+                }
+            }
+            intervals[count] = interval;
+            return count + 1;
+        }
+
+        /**
+         * Append an interval that starts no earlier than the last one, merging the two if they overlap or touch
+         *
+         * @return The number of intervals in the array afterwards
+         */
+        private static int append6(long[] intervals, int count, long firstHigh, long firstLow, long lastHigh,
+                long lastLow)
+        {
+            if (count > 0)
+            {
+                int k = count * 4 - 4;
+                long endHigh = intervals[k + 2];
+                long endLow = intervals[k + 3];
+
+                // The address after the end of the last interval, unless it already reaches the end of the space
+                boolean touches = endHigh == -1L && endLow == -1L;
+                if (!touches)
+                {
+                    long nextLow = endLow + 1;
+                    long nextHigh = nextLow == 0 ? endHigh + 1 : endHigh;
+                    touches = compare(firstHigh, firstLow, nextHigh, nextLow) <= 0;
+                }
+                if (touches)
+                {
+                    if (compare(lastHigh, lastLow, endHigh, endLow) > 0)
+                    {
+                        intervals[k + 2] = lastHigh;
+                        intervals[k + 3] = lastLow;
+                    }
+                    return count;
+                }
+            }
+            int k = count * 4;
+            intervals[k] = firstHigh;
+            intervals[k + 1] = firstLow;
+            intervals[k + 2] = lastHigh;
+            intervals[k + 3] = lastLow;
+            return count + 1;
+        }
+
+        /**
+         * Heapsort of the first count IPv6 intervals by first address, in place
+         */
+        private static void sort6(long[] intervals, int count)
+        {
+            for (int i = count / 2 - 1; i >= 0; i--)
+            {
+                siftDown(intervals, i, count);
+            }
+            for (int end = count - 1; end > 0; end--)
+            {
+                swap(intervals, 0, end);
+                siftDown(intervals, 0, end);
+            }
+        }
+
+        private static void siftDown(long[] intervals, int i, int count)
+        {
+            while (true)
+            {
+                int largest = i;
+                int left = i * 2 + 1;
+                int right = left + 1;
+                if (left < count && compareFirst(intervals, left, largest) > 0)
+                {
+                    largest = left;
+                }
+                if (right < count && compareFirst(intervals, right, largest) > 0)
+                {
+                    largest = right;
+                }
+                if (largest == i)
+                {
+                    return;
+                }
+                swap(intervals, i, largest);
+                i = largest;
+            }
+        }
+
+        private static int compareFirst(long[] intervals, int a, int b)
+        {
+            return compare(intervals[a * 4], intervals[a * 4 + 1], intervals[b * 4], intervals[b * 4 + 1]);
+        }
+
+        private static void swap(long[] intervals, int a, int b)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                long value = intervals[a * 4 + i];
+                intervals[a * 4 + i] = intervals[b * 4 + i];
+                intervals[b * 4 + i] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Asks an IP reputation REST service whether a client may sign on, without letting a slow or failing service hold up
+ * sign-ons.
+ * </p>
+ * <p>
+ * The service is called with <code>GET &lt;url&gt;?ip=&lt;address&gt;</code> and answers <code>200</code> with a JSON
+ * object whose boolean <code>allow</code> member is the verdict. Calls run on a small shared pool of background
+ * threads; the request thread waits for the verdict at most until the configured deadline and then gets
+ * {@link Verdict#UNKNOWN}, so the caller can fall back to its own decision. Concurrent checks of the same address
+ * share one call.
+ * </p>
+ * <p>
+ * Verdicts are kept for a time in a fixed-size, lock-free cache indexed by the address, so memory use is bounded and a
+ * repeat check costs no more than a hash and an array read. After several failed calls in a row the circuit opens:
+ * checks return {@link Verdict#UNKNOWN} at once for a while, then a single trial call decides whether it closes
+ * again.
+ * </p>
+ */
+final class RiskServiceClient
+{
+    /**
+     * The outcome of a check
+     */
+    enum Verdict
+    {
+        /**
+         * The service allows the client
+         */
+        ALLOW,
+
+        /**
+         * The service refuses the client
+         */
+        DENY,
+
+        /**
+         * The service did not answer in time, failed or is not being called, so the caller decides
+         */
+        UNKNOWN
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(RiskServiceClient.class);
+
+    private static final int THREADS = 32;
+    private static final int QUEUE_SIZE = 1024;
+    private static final int MAX_RESPONSE_SIZE = 4096;
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // Marks a closed circuit
+    private static final long CLOSED = 0;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static
+    {
+        EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory()
+                {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "risk-service-client-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A cached verdict
+     */
+    private static final class Entry
+    {
+        private final long high;
+        private final long low;
+        private final Verdict verdict;
+        private final long expires;
+
+        private Entry(long high, long low, Verdict verdict, long expires)
+        {
+            this.high = high;
+            this.low = low;
+            this.verdict = verdict;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The address of a call in flight
+     */
+    private static final class Key
+    {
+        private final long high;
+        private final long low;
+
+        private Key(long high, long low)
+        {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Key && ((Key) obj).high == high && ((Key) obj).low == low;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (hash(high, low) >>> 32);
+        }
+    }
+
+    private final String url;
+    private final int timeoutMillis;
+    private final long ttlNanos;
+    private final AtomicReferenceArray<Entry> cache;
+    private final int mask;
+    private final ConcurrentMap<Key, CompletableFuture<Verdict>> inFlight =
+            new ConcurrentHashMap<Key, CompletableFuture<Verdict>>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong openUntil = new AtomicLong(CLOSED);
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+
+    /**
+     * @param url
+     *            The URL of the service, the address is added as the <code>ip</code> query parameter
+     * @param timeoutMillis
+     *            How long a check may wait for the service
+     * @param ttlSeconds
+     *            How long a verdict is cached, 0 to not cache
+     * @param cacheSize
+     *            The number of verdicts cached at most, rounded up to a power of two
+     */
+    RiskServiceClient(String url, int timeoutMillis, int ttlSeconds, int cacheSize)
+    {
+        if (timeoutMillis < 1 || ttlSeconds < 0 || cacheSize < 1)
+        {
+            throw new IllegalArgumentException("Timeout and cache size must be positive");
+        }
+
+        int size = Integer.highestOneBit(cacheSize);
+        if (size < cacheSize)
+        {
+            size <<= 1;
+        }
+        this.url = url + (url.indexOf('?') < 0 ? "?ip=" : "&ip=");
+        this.timeoutMillis = timeoutMillis;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.cache = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Get the service's verdict on a client, waiting at most until the deadline
+     *
+     * @param high
+     *            The high 64 bits of the client address, IPv4 addresses are in IPv4-mapped form
+     * @param low
+     *            The low 64 bits of the client address
+     * @param address
+     *            The client address as sent to the service
+     * @return The verdict, {@link Verdict#UNKNOWN} if the service cannot give one in time
+     */
+    Verdict check(long high, long low, String address)
+    {
+        long now = System.nanoTime();
+        int index = (int) hash(high, low) & mask;
+        Entry entry = cache.get(index);
+        if (entry != null && entry.high == high && entry.low == low && entry.expires - now > 0)
+        {
+            cacheHits.increment();
+            return entry.verdict;
+        }
+
+        Key key = new Key(high, low);
+        CompletableFuture<Verdict> call = inFlight.get(key);
+        if (call == null)
+        {
+            if (!isCallAllowed(now))
+            {
+                return Verdict.UNKNOWN;
+            }
+
+            CompletableFuture<Verdict> created = new CompletableFuture<Verdict>();
+            call = inFlight.putIfAbsent(key, created);
+            if (call == null)
+            {
+                call = created;
+                start(key, index, address, created);
+            }
+        }
+
+        try
+        {
+            return call.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            return Verdict.UNKNOWN;
+        }
+        catch (ExecutionException e)
+        {
+            return Verdict.UNKNOWN;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return Verdict.UNKNOWN;
+        }
+    }
+
+    /**
+     * @return The number of calls made to the service
+     */
+    long getCalls()
+    {
+        return calls.sum();
+    }
+
+    /**
+     * @return The number of checks answered from the cache
+     */
+    long getCacheHits()
+    {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return True if the circuit is open, i.e. the service is not being called after failing
+     */
+    boolean isOpen()
+    {
+        return openUntil.get() != CLOSED;
+    }
+
+    /**
+     * Check the circuit. Once the open period has passed, the first caller moves the end of the period forward and
+     * makes the trial call, everyone else keeps getting {@link Verdict#UNKNOWN} until it succeeds.
+     */
+    private boolean isCallAllowed(long now)
+    {
+        long until = openUntil.get();
+        if (until == CLOSED)
+        {
+            return true;
+        }
+        return until - now <= 0 && openUntil.compareAndSet(until, now + OPEN_NANOS);
+    }
+
+    private void start(final Key key, final int index, final String address, final CompletableFuture<Verdict> call)
+    {
+        try
+        {
+            EXECUTOR.execute(new Runnable()
+            {
+                public void run()
+                {
+                    Verdict verdict = callService(address);
+                    if (verdict != Verdict.UNKNOWN && ttlNanos > 0)
+                    {
+                        // Cache before leaving the in-flight map, so later checks never miss both
+                        cache.set(index, new Entry(key.high, key.low, verdict, System.nanoTime() + ttlNanos));
+                    }
+                    inFlight.remove(key, call);
+                    call.complete(verdict);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Too many calls waiting already, the service is not keeping up
+            inFlight.remove(key, call);
+            call.complete(Verdict.UNKNOWN);
+        }
+    }
+
+    private Verdict callService(String address)
+    {
+        calls.increment();
+        try
+        {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + URLEncoder.encode(address, "UTF-8"))
+                    .openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept", "application/json");
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK)
+            {
+                InputStream error = connection.getErrorStream();
+                if (error != null)
+                {
+                    error.close();
+                }
+                throw new IOException("HTTP status " + status);
+            }
+
+            Map<String, Object> response = JsonUtil.parseJson(read(connection));
+            Object allow = response.get("allow");
+            if (!(allow instanceof Boolean))
+            {
+                throw new IOException("No allow member in the response");
+            }
+            recordSuccess();
+            return ((Boolean) allow).booleanValue() ? Verdict.ALLOW : Verdict.DENY;
+        }
+        catch (IOException e)
+        {
+            recordFailure(e.toString());
+        }
+        catch (JoseException e)
+        {
+            recordFailure("Bad JSON in the response");
+        }
+        return Verdict.UNKNOWN;
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException
+    {
+        InputStream in = connection.getInputStream();
+        try
+        {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[512];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+            {
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_RESPONSE_SIZE)
+                {
+                    throw new IOException("Response too large");
+                }
+            }
+            return body.toString("UTF-8");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void recordSuccess()
+    {
+        failures.set(0);
+        if (openUntil.getAndSet(CLOSED) != CLOSED)
+        {
+            LOG.info("Risk service is answering again, circuit closed");
+        }
+    }
+
+    private void recordFailure(String reason)
+    {
+        if (failures.incrementAndGet() >= FAILURE_THRESHOLD)
+        {
+            if (openUntil.getAndSet(System.nanoTime() + OPEN_NANOS) == CLOSED)
+            {
+                LOG.warn("Risk service failed {} times in a row, not calling it for {} s: {}", FAILURE_THRESHOLD,
+                        TimeUnit.NANOSECONDS.toSeconds(OPEN_NANOS), reason);
+            }
+        }
+        else
+        {
+            LOG.debug("Risk service call failed: {}", reason);
+        }
+    }
+
+    private static long hash(long high, long low)
+    {
+        long hash = high * 0xC2B2AE3D27D4EB4FL + low;
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -9,41 +9,90 @@
 
 package com.pingidentity.adapter.idp;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.Inet6Address;
-import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.jose4j.lang.JoseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sourceid.saml20.adapter.AuthnAdapterException;
 import org.sourceid.saml20.adapter.attribute.AttributeValue;
 import org.sourceid.saml20.adapter.conf.Configuration;
 import org.sourceid.saml20.adapter.conf.Field;
+import org.sourceid.saml20.adapter.conf.Row;
+import org.sourceid.saml20.adapter.conf.Table;
 import org.sourceid.saml20.adapter.gui.AdapterConfigurationGuiDescriptor;
+import org.sourceid.saml20.adapter.gui.SelectFieldDescriptor;
+import org.sourceid.saml20.adapter.gui.TableDescriptor;
 import org.sourceid.saml20.adapter.gui.TextFieldDescriptor;
+import org.sourceid.saml20.adapter.gui.validation.ConfigurationValidator;
 import org.sourceid.saml20.adapter.gui.validation.FieldValidator;
 import org.sourceid.saml20.adapter.gui.validation.ValidationException;
+import org.sourceid.saml20.adapter.gui.validation.impl.IntegerValidator;
+import org.sourceid.saml20.adapter.gui.validation.impl.RequiredFieldValidator;
 import org.sourceid.saml20.adapter.idp.authn.AuthnPolicy;
 import org.sourceid.saml20.adapter.idp.authn.IdpAuthenticationAdapter;
 import org.sourceid.saml20.adapter.idp.authn.IdpAuthnAdapterDescriptor;
 
 import com.pingidentity.sdk.AuthnAdapterResponse;
-import com.pingidentity.sdk.AuthnAdapterResponse.AUTHN_STATUS;
 import com.pingidentity.sdk.IdpAuthenticationAdapterV2;
 
 /**
  * <p>
  * This class is an example of an IdP authentication adapter that uses the client's (or last proxy that sent the
- * request) IPv4 address to identify the user. If authenticated, the user will be assigned a guest role by default. In
- * order to be have a corporate role, this adapter needs to be chained to another adapter via a Composite Adapter.
+ * request) IPv4 or IPv6 address to identify the user. The client is authenticated when its address falls in the
+ * configured IPv4 base network or in any of the additional IPv4 or IPv6 CIDR ranges listed in the Networks table. If
+ * authenticated, the user will be assigned a guest role by default. In order to be have a corporate role, this adapter
+ * needs to be chained to another adapter via a Composite Adapter.
  * </p>
  * <p>
- * For simplicity sake, if the client has a non-loopback IPv6 address the authentication will fail.
+ * The IPv6 loopback address ::1 is treated as 127.0.0.1 and IPv4-mapped IPv6 addresses are matched against the IPv4
+ * ranges.
+ * </p>
+ * <p>
+ * When the request arrives from one of the configured trusted proxies, e.g. a load balancer, the client is instead
+ * taken from the forwarding header the proxies are configured to write, <code>X-Forwarded-For</code> or
+ * <code>Forwarded</code>: the first hop, from the right, that is not a trusted proxy. The other header is ignored,
+ * since a proxy that does not write it passes on whatever the client sent. A request from a trusted proxy without
+ * the header, or with an empty one, fails.
+ * </p>
+ * <p>
+ * SP connections can be given their own policy in the SP Policies table, keyed by the SP entity ID: a list of networks
+ * that replaces the ones above for that SP (or none to allow any client), and optionally a fixed role.
+ * </p>
+ * <p>
+ * Additional networks can be kept in a text file of CIDR ranges on each server. The file is checked for changes in the
+ * background and reloaded without reconfiguring the adapter.
+ * </p>
+ * <p>
+ * Individual addresses, e.g. from a threat intelligence feed, can be refused through a denylist file of one address
+ * per line, see {@link IpDenylist}. The denylist is checked before any network and applies to every SP. Like the range
+ * file it is checked for changes in the background, and every client is refused while it cannot be loaded.
+ * </p>
+ * <p>
+ * Clients on an authenticated network can also be checked with an IP reputation service, see
+ * {@link RiskServiceClient}. If the service does not answer in time the networks decide alone.
+ * </p>
+ * <p>
+ * Optionally, a client that was authenticated is given a short-lived signed cookie, and later sign-ons from the same
+ * address in that browser are accepted without evaluating the client again until the cookie expires or the networks
+ * change.
+ * </p>
+ * <p>
+ * If a GeoIP database is configured, authenticated clients are also given the country and autonomous system number of
+ * their network, see {@link GeoIpDatabase}.
  * </p>
  * This adapter is simply a sample, and in production (at a minimum) would likely be chained with another adapter to
  * further identify and authenticate the end user.
@@ -53,7 +102,7 @@ public class SampleSubnetAdapter implements IdpAuthenticationAdapterV2
     /**
      * A validator used in the adapter's configuration GUI to validate the IP addresses
      */
-    private class IPv4FieldValidator implements FieldValidator
+    class IPv4FieldValidator implements FieldValidator
     {
         private static final long serialVersionUID = 1L;
         private static final String ERROR_MESSAGE = "Not a valid IP address";
@@ -72,17 +121,221 @@ public class SampleSubnetAdapter implements IdpAuthenticationAdapterV2
         }
     }
 
+    /**
+     * A validator used in the adapter's configuration GUI to validate the subnet mask is a contiguous IPv4 mask
+     */
+    private class SubnetMaskFieldValidator implements FieldValidator
+    {
+        private static final long serialVersionUID = 1L;
+        private static final String ERROR_MESSAGE = "Not a valid subnet mask";
+
+        public void validate(Field field) throws ValidationException
+        {
+            try
+            {
+                getPrefixLength(getIpAddress(field.getValue()));
+            }
+            catch (Exception e)
+            {
+                throw new ValidationException(ERROR_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * A validator used in the adapter's configuration GUI to validate CIDR ranges, e.g. 10.0.0.0/8
+     */
+    private class CidrFieldValidator implements FieldValidator
+    {
+        private static final long serialVersionUID = 1L;
+        private static final String ERROR_MESSAGE = "Not a valid CIDR range";
+
+        public void validate(Field field) throws ValidationException
+        {
+            try
+            {
+                new IpRangeSet.Builder().add(field.getValue());
+            }
+            catch (Exception e)
+            {
+                throw new ValidationException(ERROR_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * A validator used in the adapter's configuration GUI to validate optional HTTP or HTTPS URLs
+     */
+    private class UrlFieldValidator implements FieldValidator
+    {
+        private static final long serialVersionUID = 1L;
+        private static final String ERROR_MESSAGE = "Not a valid HTTP or HTTPS URL";
+
+        public void validate(Field field) throws ValidationException
+        {
+            String value = field.getValue();
+            if (value != null && value.trim().length() > 0)
+            {
+                try
+                {
+                    String protocol = new URL(value.trim()).getProtocol();
+                    if (!"http".equals(protocol) && !"https".equals(protocol))
+                    {
+                        throw new ValidationException(ERROR_MESSAGE);
+                    }
+                }
+                catch (MalformedURLException e)
+                {
+                    throw new ValidationException(ERROR_MESSAGE);
+                }
+            }
+        }
+    }
+
+    /**
+     * A validator used in the adapter's configuration GUI to validate optional paths of files that must be readable
+     */
+    private class ReadableFileFieldValidator implements FieldValidator
+    {
+        private static final long serialVersionUID = 1L;
+        private static final String ERROR_MESSAGE = "Not a readable file";
+
+        public void validate(Field field) throws ValidationException
+        {
+            String value = field.getValue();
+            if (value != null && value.trim().length() > 0)
+            {
+                File file = new File(value.trim());
+                if (!file.isFile() || !file.canRead())
+                {
+                    throw new ValidationException(ERROR_MESSAGE);
+                }
+            }
+        }
+    }
+
+    /**
+     * A validator used in the adapter's configuration GUI to validate lists of CIDR ranges
+     */
+    private class CidrListFieldValidator implements FieldValidator
+    {
+        private static final long serialVersionUID = 1L;
+        private static final String ERROR_MESSAGE = "Not a valid list of CIDR ranges";
+
+        public void validate(Field field) throws ValidationException
+        {
+            try
+            {
+                new IpRangeSet.Builder().addList(field.getValue() == null ? "" : field.getValue());
+            }
+            catch (Exception e)
+            {
+                throw new ValidationException(ERROR_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * A validator used in the adapter's configuration GUI to make sure each SP has at most one policy
+     */
+    private class SpPoliciesValidator implements ConfigurationValidator
+    {
+        private static final long serialVersionUID = 1L;
+        private static final String ERROR_MESSAGE = "More than one policy for SP ";
+
+        public void validate(Configuration configuration) throws ValidationException
+        {
+            Table table = configuration.getTable(CONFIG_SP_POLICIES_TABLE);
+            if (table != null)
+            {
+                Set<String> entityIds = new HashSet<String>();
+                for (Row row : table.getRows())
+                {
+                    String entityId = row.getFieldValue(CONFIG_SP_ENTITY_ID).trim();
+                    if (!entityIds.add(entityId))
+                    {
+                        throw new ValidationException(ERROR_MESSAGE + entityId);
+                    }
+                }
+            }
+        }
+    }
+
     private static final String ATTR_IP_ADDR = "ip_address"; // use the IP address to get to identify the user
     private static final String ATTR_ROLE = "role"; // identify the role of the user, i.e. guest, corp_user
+    private static final String ATTR_COUNTRY = "country"; // the country of the client's network, e.g. US
+    private static final String ATTR_ASN = "asn"; // the autonomous system number of the client's network
     private static final String CHAINED_ATTR_USERNAME = "username";
-    private static final String ROLE_GUEST = "GUEST";
-    private static final String ROLE_CORP_USER = "CORP_USER";
+    static final String ROLE_GUEST = "GUEST";
+    static final String ROLE_CORP_USER = "CORP_USER";
     private static final String CONFIG_BASE_ADDR = "Network Base Address";
     private static final String CONFIG_SUBNET_MASK = "Subnet Mask";
+    private static final String CONFIG_NETWORKS_TABLE = "Networks";
+    private static final String CONFIG_CIDR = "CIDR";
+    private static final String CONFIG_PROXIES_TABLE = "Trusted Proxies";
+    private static final String CONFIG_PROXY_CIDR = "Proxy CIDR";
+    private static final String CONFIG_FORWARDING_HEADER = "Forwarding Header";
+    private static final String CONFIG_SP_POLICIES_TABLE = "SP Policies";
+    private static final String CONFIG_SP_ENTITY_ID = "SP Entity ID";
+    private static final String CONFIG_SP_NETWORKS = "SP Networks";
+    private static final String CONFIG_SP_ROLE = "SP Role";
+    private static final String SP_ROLE_DEFAULT = "Default";
+    private static final String CONFIG_RANGE_FILE = "Range File";
+    private static final String CONFIG_RANGE_FILE_INTERVAL = "Range File Check Interval";
+    private static final int DEFAULT_RANGE_FILE_INTERVAL = 30;
+    private static final String CONFIG_RATE_LIMIT = "Rate Limit";
+    private static final String CONFIG_RATE_LIMIT_BURST = "Rate Limit Burst";
+    private static final String CONFIG_RATE_LIMIT_IPV4_PREFIX = "Rate Limit IPv4 Prefix Length";
+    private static final String CONFIG_RATE_LIMIT_IPV6_PREFIX = "Rate Limit IPv6 Prefix Length";
+    private static final String CONFIG_RATE_LIMIT_CAPACITY = "Rate Limit Table Size";
+    private static final int DEFAULT_RATE_LIMIT_BURST = 10;
+    private static final int DEFAULT_RATE_LIMIT_IPV4_PREFIX = 32;
+    private static final int DEFAULT_RATE_LIMIT_IPV6_PREFIX = 64;
+    private static final int DEFAULT_RATE_LIMIT_CAPACITY = 65536;
+    private static final String CONFIG_AUDIT_CAPACITY = "Audit Buffer Size";
+    private static final String CONFIG_AUDIT_OVERFLOW = "Audit Overflow Policy";
+    private static final String AUDIT_OVERFLOW_DROP = "Drop";
+    private static final String AUDIT_OVERFLOW_BLOCK = "Block";
+    private static final String CONFIG_ASSERTION_LIFETIME = "Assertion Cookie Lifetime";
+    private static final String CONFIG_ASSERTION_SECRET = "Assertion Cookie Secret";
+    private static final String CONFIG_GEOIP_DATABASE = "GeoIP Database";
+    private static final String CONFIG_DENYLIST_FILE = "Denylist File";
+    private static final String CONFIG_DENYLIST_INTERVAL = "Denylist Check Interval";
+    private static final int DEFAULT_DENYLIST_INTERVAL = 60;
+    private static final String CONFIG_RISK_URL = "Risk Service URL";
+    private static final String CONFIG_RISK_TIMEOUT = "Risk Service Timeout";
+    private static final String CONFIG_RISK_TTL = "Risk Service Cache TTL";
+    private static final int DEFAULT_RISK_TIMEOUT = 250;
+    private static final int DEFAULT_RISK_TTL = 300;
+    private static final int RISK_CACHE_SIZE = 16384;
+    private static final long IPV4_LOOPBACK = IpAddresses.IPV4_MAPPED_PREFIX | 0x7F000001L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleSubnetAdapter.class);
+
+    // Scratch space for the two halves of a parsed client address, so the request path does not allocate
+    private static final ThreadLocal<long[]> CLIENT_ADDRESS = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[2];
+        }
+    };
 
     private final IdpAuthnAdapterDescriptor descriptor;
-    private byte[] baseAddress = null;
-    private byte[] subnetMask = null;
+    private final AdapterMetrics metrics = new AdapterMetrics();
+    private IpRangeSet networks = null;
+    private IpRangeSet trustedProxies = null;
+    private boolean rfc7239 = false;
+    private SpPolicyTable spPolicies = null;
+    private RangeFileWatcher<IpRangeSet> rangeFile = null;
+    private IpRateLimiter rateLimiter = null;
+    private AuditLog auditLog = null;
+    private AssertionCookie assertionCookie = null;
+    private long configFingerprint = 0;
+    private GeoIpDatabase geoIp = null;
+    private RangeFileWatcher<IpDenylist> denylist = null;
+    private RiskServiceClient riskService = null;
 
     /**
      * Constructor for the Sample Subnet Adapter. Initializes the authentication adapter descriptor so PingFederate can
@@ -99,19 +352,155 @@ public class SampleSubnetAdapter implements IdpAuthenticationAdapterV2
         // Create text field to represent the subnet mask
         TextFieldDescriptor subnetMaskField = new TextFieldDescriptor(CONFIG_SUBNET_MASK,
                 "Enter the IPv4 subnet mask to identify the authenticated subnet");
-        subnetMaskField.addValidator(new IPv4FieldValidator());
+        subnetMaskField.addValidator(new SubnetMaskFieldValidator());
         subnetMaskField.setDefaultValue("255.255.255.0");
 
+        // Create a table to hold any number of additional authenticated ranges
+        TextFieldDescriptor cidrField = new TextFieldDescriptor(CONFIG_CIDR,
+                "Enter an IPv4 or IPv6 range in CIDR notation, e.g. 10.0.0.0/8 or 2001:db8::/32");
+        cidrField.addValidator(new CidrFieldValidator());
+        TableDescriptor networksTable = new TableDescriptor(CONFIG_NETWORKS_TABLE,
+                "Additional networks whose clients are authenticated");
+        networksTable.addRowField(cidrField);
+
+        // Create a table to hold the proxies whose forwarding headers are trusted
+        TextFieldDescriptor proxyCidrField = new TextFieldDescriptor(CONFIG_PROXY_CIDR,
+                "Enter the IPv4 or IPv6 range of a load balancer or reverse proxy in CIDR notation");
+        proxyCidrField.addValidator(new CidrFieldValidator());
+        TableDescriptor proxiesTable = new TableDescriptor(CONFIG_PROXIES_TABLE,
+                "Proxies whose forwarding header, chosen below, identifies the client");
+        proxiesTable.addRowField(proxyCidrField);
+        SelectFieldDescriptor forwardingHeaderField = new SelectFieldDescriptor(CONFIG_FORWARDING_HEADER,
+                "The header the trusted proxies add the client to, any other forwarding header is ignored",
+                new String[] { ForwardedHeaders.X_FORWARDED_FOR, ForwardedHeaders.FORWARDED });
+        forwardingHeaderField.setDefaultValue(ForwardedHeaders.X_FORWARDED_FOR);
+
+        // Create a table to hold the SPs whose clients are checked against their own networks
+        TextFieldDescriptor spEntityIdField = new TextFieldDescriptor(CONFIG_SP_ENTITY_ID,
+                "Enter the entity ID of the SP connection");
+        spEntityIdField.addValidator(new RequiredFieldValidator());
+        TextFieldDescriptor spNetworksField = new TextFieldDescriptor(CONFIG_SP_NETWORKS,
+                "Enter the IPv4 or IPv6 CIDR ranges allowed for this SP separated by commas, leave empty to allow any");
+        spNetworksField.addValidator(new CidrListFieldValidator());
+        SelectFieldDescriptor spRoleField = new SelectFieldDescriptor(CONFIG_SP_ROLE,
+                "The role given to clients of this SP, Default uses GUEST or CORP_USER as for other SPs",
+                new String[] { SP_ROLE_DEFAULT, ROLE_GUEST, ROLE_CORP_USER });
+        spRoleField.setDefaultValue(SP_ROLE_DEFAULT);
+        TableDescriptor spPoliciesTable = new TableDescriptor(CONFIG_SP_POLICIES_TABLE,
+                "SPs whose clients are checked against these networks instead of the ones above");
+        spPoliciesTable.addRowField(spEntityIdField);
+        spPoliciesTable.addRowField(spNetworksField);
+        spPoliciesTable.addRowField(spRoleField);
+
+        // Create fields for the optional file of additional networks
+        TextFieldDescriptor rangeFileField = new TextFieldDescriptor(CONFIG_RANGE_FILE,
+                "Path of a text file on each server with one IPv4 or IPv6 CIDR range per line, leave empty for none");
+        TextFieldDescriptor rangeFileIntervalField = new TextFieldDescriptor(CONFIG_RANGE_FILE_INTERVAL,
+                "How often, in seconds, to check the range file for changes");
+        rangeFileIntervalField.addValidator(new IntegerValidator(1, 86400));
+        rangeFileIntervalField.setDefaultValue(String.valueOf(DEFAULT_RANGE_FILE_INTERVAL));
+
+        // Create fields for the optional rate limit
+        TextFieldDescriptor rateLimitField = new TextFieldDescriptor(CONFIG_RATE_LIMIT,
+                "How many sign-ons per minute each source may make before it fails, 0 for no limit");
+        rateLimitField.addValidator(new IntegerValidator(0, 6000000));
+        rateLimitField.setDefaultValue("0");
+        TextFieldDescriptor rateLimitBurstField = new TextFieldDescriptor(CONFIG_RATE_LIMIT_BURST,
+                "How many sign-ons each source may make at once, above the rate limit");
+        rateLimitBurstField.addValidator(new IntegerValidator(1, 1000000));
+        rateLimitBurstField.setDefaultValue(String.valueOf(DEFAULT_RATE_LIMIT_BURST));
+        TextFieldDescriptor rateLimitIPv4PrefixField = new TextFieldDescriptor(CONFIG_RATE_LIMIT_IPV4_PREFIX,
+                "The IPv4 network size that counts as one source, 32 for each address or 24 for each /24");
+        rateLimitIPv4PrefixField.addValidator(new IntegerValidator(1, 32));
+        rateLimitIPv4PrefixField.setDefaultValue(String.valueOf(DEFAULT_RATE_LIMIT_IPV4_PREFIX));
+        TextFieldDescriptor rateLimitIPv6PrefixField = new TextFieldDescriptor(CONFIG_RATE_LIMIT_IPV6_PREFIX,
+                "The IPv6 network size that counts as one source, at most 64");
+        rateLimitIPv6PrefixField.addValidator(new IntegerValidator(1, 64));
+        rateLimitIPv6PrefixField.setDefaultValue(String.valueOf(DEFAULT_RATE_LIMIT_IPV6_PREFIX));
+        TextFieldDescriptor rateLimitCapacityField = new TextFieldDescriptor(CONFIG_RATE_LIMIT_CAPACITY,
+                "How many sources are tracked at once, the memory used does not grow beyond this");
+        rateLimitCapacityField.addValidator(new IntegerValidator(8, 1 << 24));
+        rateLimitCapacityField.setDefaultValue(String.valueOf(DEFAULT_RATE_LIMIT_CAPACITY));
+
+        // Create fields for the audit log buffer
+        TextFieldDescriptor auditCapacityField = new TextFieldDescriptor(CONFIG_AUDIT_CAPACITY,
+                "How many audit events can wait to be written before the overflow policy applies");
+        auditCapacityField.addValidator(new IntegerValidator(1, 1 << 20));
+        auditCapacityField.setDefaultValue(String.valueOf(AuditLog.DEFAULT_CAPACITY));
+        SelectFieldDescriptor auditOverflowField = new SelectFieldDescriptor(CONFIG_AUDIT_OVERFLOW,
+                "Whether to drop audit events or make sign-ons wait when the audit buffer is full",
+                new String[] { AUDIT_OVERFLOW_DROP, AUDIT_OVERFLOW_BLOCK });
+        auditOverflowField.setDefaultValue(AUDIT_OVERFLOW_DROP);
+
+        // Create fields for the optional network assertion cookie
+        TextFieldDescriptor assertionLifetimeField = new TextFieldDescriptor(CONFIG_ASSERTION_LIFETIME,
+                "How long, in seconds, an authenticated client is trusted without being evaluated again, 0 for never");
+        assertionLifetimeField.addValidator(new IntegerValidator(0, 86400));
+        assertionLifetimeField.setDefaultValue("0");
+        TextFieldDescriptor assertionSecretField = new TextFieldDescriptor(CONFIG_ASSERTION_SECRET,
+                "The secret that signs the assertion cookie, the same on every server, leave empty for a random one",
+                true);
+
+        // Create a field for the optional GeoIP database
+        TextFieldDescriptor geoIpDatabaseField = new TextFieldDescriptor(CONFIG_GEOIP_DATABASE,
+                "Path of a GeoIP database on each server, to add the client's country and ASN, leave empty for none");
+
+        // Create fields for the optional denylist
+        TextFieldDescriptor denylistFileField = new TextFieldDescriptor(CONFIG_DENYLIST_FILE,
+                "Path of a text file on each server with one IP address to refuse per line, leave empty for none");
+        denylistFileField.addValidator(new ReadableFileFieldValidator());
+        TextFieldDescriptor denylistIntervalField = new TextFieldDescriptor(CONFIG_DENYLIST_INTERVAL,
+                "How often, in seconds, to check the denylist file for changes");
+        denylistIntervalField.addValidator(new IntegerValidator(1, 86400));
+        denylistIntervalField.setDefaultValue(String.valueOf(DEFAULT_DENYLIST_INTERVAL));
+
+        // Create fields for the optional risk service
+        TextFieldDescriptor riskUrlField = new TextFieldDescriptor(CONFIG_RISK_URL,
+                "URL of an IP reputation service to ask about authenticated clients, leave empty for none");
+        riskUrlField.addValidator(new UrlFieldValidator());
+        TextFieldDescriptor riskTimeoutField = new TextFieldDescriptor(CONFIG_RISK_TIMEOUT,
+                "How long, in milliseconds, a sign-on waits for the risk service before the networks decide alone");
+        riskTimeoutField.addValidator(new IntegerValidator(1, 10000));
+        riskTimeoutField.setDefaultValue(String.valueOf(DEFAULT_RISK_TIMEOUT));
+        TextFieldDescriptor riskTtlField = new TextFieldDescriptor(CONFIG_RISK_TTL,
+                "How long, in seconds, a verdict of the risk service is reused, 0 to ask every time");
+        riskTtlField.addValidator(new IntegerValidator(0, 86400));
+        riskTtlField.setDefaultValue(String.valueOf(DEFAULT_RISK_TTL));
+
         // Create a GUI descriptor
         AdapterConfigurationGuiDescriptor guiDescriptor = new AdapterConfigurationGuiDescriptor(
                 "Set the details of the subnet to identify your SSO clients");
         guiDescriptor.addField(baseNetworkAddressField);
         guiDescriptor.addField(subnetMaskField);
+        guiDescriptor.addTable(networksTable);
+        guiDescriptor.addTable(proxiesTable);
+        guiDescriptor.addField(forwardingHeaderField);
+        guiDescriptor.addTable(spPoliciesTable);
+        guiDescriptor.addValidator(new SpPoliciesValidator());
+        guiDescriptor.addAdvancedField(rangeFileField);
+        guiDescriptor.addAdvancedField(rangeFileIntervalField);
+        guiDescriptor.addAdvancedField(rateLimitField);
+        guiDescriptor.addAdvancedField(rateLimitBurstField);
+        guiDescriptor.addAdvancedField(rateLimitIPv4PrefixField);
+        guiDescriptor.addAdvancedField(rateLimitIPv6PrefixField);
+        guiDescriptor.addAdvancedField(rateLimitCapacityField);
+        guiDescriptor.addAdvancedField(auditCapacityField);
+        guiDescriptor.addAdvancedField(auditOverflowField);
+        guiDescriptor.addAdvancedField(assertionLifetimeField);
+        guiDescriptor.addAdvancedField(assertionSecretField);
+        guiDescriptor.addAdvancedField(geoIpDatabaseField);
+        guiDescriptor.addAdvancedField(denylistFileField);
+        guiDescriptor.addAdvancedField(denylistIntervalField);
+        guiDescriptor.addAdvancedField(riskUrlField);
+        guiDescriptor.addAdvancedField(riskTimeoutField);
+        guiDescriptor.addAdvancedField(riskTtlField);
 
         // Create the Idp authentication adapter descriptor
         Set<String> contract = new HashSet<String>();
         contract.add(ATTR_IP_ADDR);
         contract.add(ATTR_ROLE);
+        contract.add(ATTR_COUNTRY);
+        contract.add(ATTR_ASN);
         descriptor = new IdpAuthnAdapterDescriptor(this, "Sample Subnet Adapter", contract, false, guiDescriptor, false);
     }
 
@@ -205,27 +594,142 @@ public class SampleSubnetAdapter implements IdpAuthenticationAdapterV2
      * invoked with the proper configuration. All concurrency issues are handled in the server so you don't need to
      * worry about them here. The server doesn't allow access to your adapter implementation instance until after
      * creation and configuration is completed.
+     * <p>
+     * In this example the base network and every row of the Networks table are compiled into a single immutable
+     * {@link IpRangeSet}, so the cost of checking a client does not grow with the number of configured ranges. The rows
+     * are parsed in parallel and overlapping or adjacent ranges are merged first, so the set only holds as many
+     * prefixes as the covered addresses need however the table was written. The Trusted Proxies table and the networks
+     * of each SP policy are compiled the same way, each into their own {@link IpRangeSet}, and the SP policies are
+     * indexed by entity ID in an immutable {@link SpPolicyTable}. If a range file or a denylist file is configured, it
+     * is loaded here and then watched for changes by a background thread, and a file that is no longer configured stops
+     * being watched once no other adapter instance uses it. Authentication decisions are audited through a shared
+     * {@link AuditLog}, and the adapter metrics are registered with JMX under the adapter instance ID. If the
+     * assertion cookie is enabled, its signing key and verifier are built once here. The GeoIP database is memory
+     * mapped rather than loaded, so its size does not affect how long this takes.
+     * </p>
      * 
      * @param configuration
      *            the Configuration object constructed from the values entered by the user via the GUI.
      */
     public void configure(Configuration configuration)
     {
-        baseAddress = getIpAddress(configuration.getFieldValue(CONFIG_BASE_ADDR));
-        subnetMask = getIpAddress(configuration.getFieldValue(CONFIG_SUBNET_MASK));
+        RangeSetCompiler compiler = new RangeSetCompiler();
+
+        int baseAddress = getIpAddress(configuration.getFieldValue(CONFIG_BASE_ADDR));
+        int subnetMask = getIpAddress(configuration.getFieldValue(CONFIG_SUBNET_MASK));
+        compiler.add(baseAddress, getPrefixLength(subnetMask));
+
+        addRanges(compiler, configuration.getTable(CONFIG_NETWORKS_TABLE), CONFIG_CIDR);
+        long start = System.nanoTime();
+        networks = compiler.compile();
+        LOG.info("Compiled {} networks into {} prefixes in {} ms", compiler.getEntries(), networks.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        compiler = new RangeSetCompiler();
+        addRanges(compiler, configuration.getTable(CONFIG_PROXIES_TABLE), CONFIG_PROXY_CIDR);
+        trustedProxies = compiler.compile();
+        rfc7239 = ForwardedHeaders.FORWARDED.equals(configuration.getFieldValue(CONFIG_FORWARDING_HEADER));
+
+        spPolicies = getSpPolicies(configuration.getTable(CONFIG_SP_POLICIES_TABLE));
+
+        // Watch the new file before releasing the old one, so a watcher of an unchanged file keeps running
+        RangeFileWatcher<IpRangeSet> previousRangeFile = rangeFile;
+        String rangeFilePath = configuration.getFieldValue(CONFIG_RANGE_FILE);
+        if (rangeFilePath != null && rangeFilePath.trim().length() > 0)
+        {
+            rangeFile = RangeFileWatcher.watch(new File(rangeFilePath.trim()),
+                    getIntFieldValue(configuration, CONFIG_RANGE_FILE_INTERVAL, DEFAULT_RANGE_FILE_INTERVAL));
+        }
+        else
+        {
+            rangeFile = null;
+        }
+        if (previousRangeFile != null)
+        {
+            previousRangeFile.release();
+        }
+
+        int rateLimit = getIntFieldValue(configuration, CONFIG_RATE_LIMIT, 0);
+        rateLimiter = rateLimit == 0 ? null : new IpRateLimiter(rateLimit,
+                getIntFieldValue(configuration, CONFIG_RATE_LIMIT_BURST, DEFAULT_RATE_LIMIT_BURST),
+                getIntFieldValue(configuration, CONFIG_RATE_LIMIT_IPV4_PREFIX, DEFAULT_RATE_LIMIT_IPV4_PREFIX),
+                getIntFieldValue(configuration, CONFIG_RATE_LIMIT_IPV6_PREFIX, DEFAULT_RATE_LIMIT_IPV6_PREFIX),
+                getIntFieldValue(configuration, CONFIG_RATE_LIMIT_CAPACITY, DEFAULT_RATE_LIMIT_CAPACITY));
+
+        int assertionLifetime = getIntFieldValue(configuration, CONFIG_ASSERTION_LIFETIME, 0);
+        assertionCookie = assertionLifetime == 0 ? null : new AssertionCookie(
+                configuration.getFieldValue(CONFIG_ASSERTION_SECRET), assertionLifetime);
+        configFingerprint = ((networks.fingerprint() * 31) + trustedProxies.fingerprint()) * 31
+                + spPolicies.fingerprint();
+
+        String geoIpPath = configuration.getFieldValue(CONFIG_GEOIP_DATABASE);
+        GeoIpDatabase database = null;
+        if (geoIpPath != null && geoIpPath.trim().length() > 0)
+        {
+            try
+            {
+                database = GeoIpDatabase.open(new File(geoIpPath.trim()));
+            }
+            catch (IOException e)
+            {
+                LOG.error("Could not open GeoIP database " + geoIpPath.trim() + ", country and ASN will be empty", e);
+            }
+        }
+        geoIp = database;
+
+        RangeFileWatcher<IpDenylist> previousDenylist = denylist;
+        String denylistPath = configuration.getFieldValue(CONFIG_DENYLIST_FILE);
+        if (denylistPath != null && denylistPath.trim().length() > 0)
+        {
+            denylist = RangeFileWatcher.watchDenylist(new File(denylistPath.trim()),
+                    getIntFieldValue(configuration, CONFIG_DENYLIST_INTERVAL, DEFAULT_DENYLIST_INTERVAL));
+            if (denylist.get() == null)
+            {
+                LOG.error("Denylist " + denylistPath.trim() + " could not be loaded, every client will be refused");
+            }
+        }
+        else
+        {
+            denylist = null;
+        }
+        if (previousDenylist != null)
+        {
+            previousDenylist.release();
+        }
+
+        String riskUrl = configuration.getFieldValue(CONFIG_RISK_URL);
+        riskService = riskUrl == null || riskUrl.trim().length() == 0 ? null : new RiskServiceClient(riskUrl.trim(),
+                getIntFieldValue(configuration, CONFIG_RISK_TIMEOUT, DEFAULT_RISK_TIMEOUT),
+                getIntFieldValue(configuration, CONFIG_RISK_TTL, DEFAULT_RISK_TTL), RISK_CACHE_SIZE);
+
+        AuditLog.OverflowPolicy overflowPolicy = AUDIT_OVERFLOW_BLOCK.equals(
+                configuration.getFieldValue(CONFIG_AUDIT_OVERFLOW)) ? AuditLog.OverflowPolicy.BLOCK
+                        : AuditLog.OverflowPolicy.DROP;
+        metrics.register(configuration.getId());
+        AuditLog previousAuditLog = auditLog;
+        auditLog = AuditLog.get(getIntFieldValue(configuration, CONFIG_AUDIT_CAPACITY, AuditLog.DEFAULT_CAPACITY),
+                overflowPolicy);
+        metrics.setAuditLog(auditLog);
+        metrics.setRateLimiter(rateLimiter);
+        metrics.setRiskService(riskService);
+        if (previousAuditLog != null)
+        {
+            previousAuditLog.release();
+        }
     }
 
     /**
      * This method is used to retrieve information about the adapter (e.g. AuthnContext).
      * <p>
-     * In this example the method not used, return null
+     * In this example the adapter's decision counts and latency percentiles in nanoseconds are returned, the same
+     * values that are available through JMX (see {@link AdapterMetricsMXBean}).
      * </p>
      * 
      * @return a map
      */
     public Map<String, Object> getAdapterInfo()
     {
-        return null;
+        return metrics.toAdapterInfo();
     }
 
     /**
@@ -256,9 +760,16 @@ public class SampleSubnetAdapter implements IdpAuthenticationAdapterV2
      * not be used with Composite Adapter's "Sufficient" chaining policy.
      * </p>
      * <p>
-     * In this example, we determine if the client (or the last proxy) is on the configured subnet. If the client has an
-     * IPv6 address that's not ::1, fail immediately. If the user was previously authenticated by another adapter assign
-     * it a corporate role, otherwise use the guest role.
+     * In this example, we determine if the client (or the last proxy that is not trusted) is on one of the configured
+     * networks. The address is parsed strictly as an IPv4 or IPv6 literal and never handed to the name resolver; if it
+     * is neither, fail immediately. A client over the optional rate limit, or on the denylist, also fails without
+     * further checks. If the user was previously authenticated by another adapter assign it a corporate role, otherwise
+     * use the guest role. If the SP has a policy, its networks and role are used instead. If the assertion cookie is
+     * enabled, a client that presents a valid cookie for the same address, role and networks is authenticated without
+     * checking the networks, and a client that is authenticated by them is given a new cookie. If a risk service is
+     * configured it is asked about clients the networks authenticate, and may refuse them. Authenticated clients
+     * are looked up in the GeoIP database, if there is one. Every decision is queued to the audit log along with how
+     * long it took.
      * </p>
      * 
      * @param req
@@ -286,62 +797,161 @@ public class SampleSubnetAdapter implements IdpAuthenticationAdapterV2
     public AuthnAdapterResponse lookupAuthN(HttpServletRequest req, HttpServletResponse resp,
             Map<String, Object> inParameters) throws AuthnAdapterException, IOException
     {
+        long start = System.nanoTime();
         String spEntityId = (String) inParameters.get(IN_PARAMETER_NAME_PARTNER_ENTITYID);
         Map<String, AttributeValue> chainedAttributes = (Map<String, AttributeValue>) inParameters.get(
                 IN_PARAMETER_NAME_CHAINED_ATTRIBUTES);
 
+        SpPolicyTable.Policy policy = spPolicies.get(spEntityId);
         AuthnAdapterResponse authnAdapterResponse = new AuthnAdapterResponse();
 
         // Get the client's IP address
         String remoteAddressStr = req.getRemoteAddr();
 
-        // log authentication... in this case print to system out
-        System.out.println("Client '" + remoteAddressStr + "' is trying to sign on to SP '" + spEntityId + "'");
-
-        InetAddress inetAddr = InetAddress.getByName(remoteAddressStr);
+        // Parse the address literal in place, this never touches the name resolver
+        long[] remoteAddress = CLIENT_ADDRESS.get();
+        boolean validAddress = IpAddresses.parse(remoteAddressStr, remoteAddress) != IpAddresses.MALFORMED;
 
-        // Check if its an IPv6 address
-        if (inetAddr instanceof Inet6Address)
+        // If the request came through a trusted proxy, look for the client in the header the proxies write. The other
+        // header is never read, since a proxy that does not write it passes on whatever the client sent.
+        if (validAddress && trustedProxies.contains(remoteAddress[0], remoteAddress[1]))
         {
-            if (inetAddr.isLoopbackAddress())
+            String forwarded = getForwardedHeader(req,
+                    rfc7239 ? ForwardedHeaders.FORWARDED : ForwardedHeaders.X_FORWARDED_FOR);
+            long client = forwarded == null ? ForwardedHeaders.NO_HOP
+                    : ForwardedHeaders.findClient(forwarded, rfc7239, trustedProxies, remoteAddress);
+            if (client == ForwardedHeaders.MALFORMED || client == ForwardedHeaders.NO_HOP)
             {
-                remoteAddressStr = "127.0.0.1";
+                // The client is unknown, and the proxy's own address must never stand in for it. The request is still
+                // audited under the proxy's address, as the header may hold anything the client chose to send.
+                validAddress = false;
             }
             else
             {
-                authnAdapterResponse.setAuthnStatus(AUTHN_STATUS.FAILURE);
-                return authnAdapterResponse;
+                // Written from the parsed address, so nothing else the client put in the hop is ever passed on
+                remoteAddressStr = IpAddresses.format(remoteAddress[0], remoteAddress[1]);
             }
         }
 
-        byte[] remoteAddress = getIpAddress(remoteAddressStr);
-
-        // Check whether the IP address is in the subnet
-        boolean validIp = isIpInSubnet(remoteAddress);
+        long parsed = System.nanoTime();
+        metrics.recordParse(parsed - start);
 
-        // Set the authentication response
-        if (validIp)
+        // Treat the IPv6 loopback address as its IPv4 equivalent
+        if (validAddress && remoteAddress[0] == 0 && remoteAddress[1] == 1)
         {
-            HashMap<String, Object> attributes = new HashMap<String, Object>();
-            attributes.put(ATTR_IP_ADDR, remoteAddressStr);
+            remoteAddressStr = "127.0.0.1";
+            remoteAddress[1] = IPV4_LOOPBACK;
+        }
 
+        Decision decision;
+        String role = null;
+        if (!validAddress)
+        {
+            // Counted by the metrics, clients can send as many of these as they like so they are not logged by default
+            LOG.debug("No client IP address literal in a request from '{}', failing authentication",
+                    remoteAddressStr);
+            decision = Decision.MALFORMED_ADDRESS;
+        }
+        else if (rateLimiter != null && !rateLimiter.tryAcquire(remoteAddress[0], remoteAddress[1]))
+        {
+            decision = Decision.RATE_LIMITED;
+        }
+        else if (isDenylisted(remoteAddress[0], remoteAddress[1]))
+        {
+            decision = Decision.DENYLISTED;
+        }
+        else
+        {
             // set role
-            if (chainedAttributes != null && chainedAttributes.get(CHAINED_ATTR_USERNAME) != null)
+            if (policy != null && policy.getRole() != null)
             {
-                attributes.put(ATTR_ROLE, ROLE_CORP_USER);
+                role = policy.getRole();
+            }
+            else if (chainedAttributes != null && chainedAttributes.get(CHAINED_ATTR_USERNAME) != null)
+            {
+                role = ROLE_CORP_USER;
             }
             else
             {
-                attributes.put(ATTR_ROLE, ROLE_GUEST);
+                role = ROLE_GUEST;
             }
 
+            // A valid assertion cookie means this client was already found on these networks
+            String policyKey = policy != null ? spEntityId : "";
+            long version = rangeFile != null ? configFingerprint * 31 + rangeFile.get().fingerprint()
+                    : configFingerprint;
+            if (assertionCookie != null && assertionCookie.verify(AssertionCookie.find(req), remoteAddressStr, role,
+                    policyKey, version))
+            {
+                decision = Decision.ASSERTED;
+            }
+            else
+            {
+                // Check whether the IP address is in the subnet, or the networks of the SP's policy if it has one
+                boolean allowed = policy != null ? policy.allows(remoteAddress[0], remoteAddress[1])
+                        : isIpInSubnet(remoteAddress[0], remoteAddress[1]);
+                decision = allowed ? Decision.ALLOWED : Decision.DENIED;
+                metrics.recordMatch(System.nanoTime() - parsed);
+
+                // Ask the risk service about clients the networks allow, if it has no verdict in time they stand
+                if (allowed && riskService != null)
+                {
+                    RiskServiceClient.Verdict verdict = riskService.check(remoteAddress[0], remoteAddress[1],
+                            remoteAddressStr);
+                    if (verdict == RiskServiceClient.Verdict.DENY)
+                    {
+                        decision = Decision.RISK_DENIED;
+                    }
+                    else if (verdict == RiskServiceClient.Verdict.UNKNOWN)
+                    {
+                        metrics.recordRiskFallback();
+                    }
+                }
+
+                if (decision == Decision.ALLOWED && assertionCookie != null)
+                {
+                    addAssertionCookie(resp, remoteAddressStr, role, policyKey, version);
+                }
+            }
+        }
+
+        // Set the authentication response
+        if (decision.getAuthnStatus() == AuthnAdapterResponse.AUTHN_STATUS.SUCCESS)
+        {
+            HashMap<String, Object> attributes = new HashMap<String, Object>();
+            attributes.put(ATTR_IP_ADDR, remoteAddressStr);
+            attributes.put(ATTR_ROLE, role);
+
+            // Add the client's country and ASN, if known
+            int range = geoIp != null ? geoIp.lookup(remoteAddress[0], remoteAddress[1]) : GeoIpDatabase.NOT_FOUND;
+            if (range != GeoIpDatabase.NOT_FOUND)
+            {
+                String country = geoIp.getCountry(range);
+                long asn = geoIp.getAsn(range);
+                if (country != null)
+                {
+                    attributes.put(ATTR_COUNTRY, country);
+                }
+                if (asn != 0)
+                {
+                    attributes.put(ATTR_ASN, String.valueOf(asn));
+                }
+            }
             authnAdapterResponse.setAttributeMap(attributes);
-            authnAdapterResponse.setAuthnStatus(AUTHN_STATUS.SUCCESS);
         }
         else
         {
-            authnAdapterResponse.setAuthnStatus(AUTHN_STATUS.FAILURE);
+            role = null;
         }
+        authnAdapterResponse.setAuthnStatus(decision.getAuthnStatus());
+
+        long latency = System.nanoTime() - start;
+        metrics.recordTotal(latency);
+        metrics.recordDecision(decision, validAddress && !IpRangeSet.isIPv4Mapped(remoteAddress[0], remoteAddress[1]),
+                role);
+
+        // log authentication... in this case queue an audit event, it is written by a background thread
+        auditLog.record(decision, remoteAddressStr, spEntityId, latency);
 
         return authnAdapterResponse;
     }
@@ -360,62 +970,211 @@ public class SampleSubnetAdapter implements IdpAuthenticationAdapterV2
     }
 
     /**
-     * Helper method to convert a String representation of an IP address into the raw byte array
+     * Helper method to convert a String representation of an IP address into a packed int
      * 
      * @param stringIp
      *            The IP address to convert
-     * @return The raw IP address as a byte array
+     * @return The IP address packed into an int, most significant octet first
      * @throws IllegalArgumentException
      *             Thrown if the stringIp is not a valid IP address
      */
-    private byte[] getIpAddress(String stringIp)
+    int getIpAddress(String stringIp)
     {
-        final int numOctets = 4;
-        String[] octets = stringIp.split("\\.");
-
-        // Make sure there's 4 octets in the string
-        if (octets.length != numOctets)
+        long ipAddress = IpAddresses.parseIPv4(stringIp);
+        if (ipAddress == IpAddresses.INVALID)
         {
             throw new IllegalArgumentException("Bad IP");
         }
+        return (int) ipAddress;
+    }
 
-        byte[] ipAddress = new byte[numOctets];
+    /**
+     * Helper method to give an authenticated client a network assertion cookie
+     * 
+     * @param resp
+     *            The response
+     * @param ipAddress
+     *            The evaluated client address
+     * @param role
+     *            The role given to the client
+     * @param policyKey
+     *            The entity ID of the SP policy that was applied, or an empty string for the adapter's networks
+     * @param version
+     *            The version of the networks the client was evaluated against
+     */
+    private void addAssertionCookie(HttpServletResponse resp, String ipAddress, String role, String policyKey,
+            long version)
+    {
+        try
+        {
+            assertionCookie.add(resp, assertionCookie.issue(ipAddress, role, policyKey, version));
+        }
+        catch (JoseException e)
+        {
+            LOG.warn("Could not sign the network assertion cookie", e);
+        }
+    }
 
-        // Check that each octet is a value between 0 - 255
-        for (int i = 0; i < numOctets; i++)
+    /**
+     * Helper method to add the CIDR ranges in one column of a configuration table to a range set
+     * 
+     * @param compiler
+     *            The range set being compiled
+     * @param table
+     *            The configuration table, may be null
+     * @param column
+     *            The name of the column holding the ranges
+     */
+    private static void addRanges(RangeSetCompiler compiler, Table table, String column)
+    {
+        if (table != null)
         {
-            String octet = octets[i];
-            if (!octet.matches("\\A(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\z"))
+            List<Row> rows = table.getRows();
+            for (Row row : rows)
             {
-                throw new IllegalArgumentException("Bad IP");
+                compiler.add(row.getFieldValue(column));
             }
-            int octetInt = Integer.parseInt(octet);
-            ipAddress[i] = (byte) octetInt;
         }
+    }
 
-        return ipAddress;
+    /**
+     * Helper method to read an optional integer configuration field
+     * 
+     * @param configuration
+     *            The configuration
+     * @param name
+     *            The field name
+     * @param defaultValue
+     *            The value to use if the field is missing or empty
+     * @return The field value
+     */
+    private static int getIntFieldValue(Configuration configuration, String name, int defaultValue)
+    {
+        String value = configuration.getFieldValue(name);
+        return value == null || value.trim().length() == 0 ? defaultValue : Integer.parseInt(value.trim());
     }
 
     /**
-     * Check whether the specified IP is in the configured subnet
+     * Helper method to compile the SP Policies table
      * 
-     * @param ip
-     *            The IP address to check
-     * @return True if the IP address is in the subnet, false otherwise
+     * @param table
+     *            The configuration table, may be null
+     * @return The policies by SP entity ID
+     * @throws IllegalArgumentException
+     *             Thrown if a row does not hold a valid list of ranges, or an SP has more than one row
      */
-    private boolean isIpInSubnet(byte[] ip)
+    private static SpPolicyTable getSpPolicies(Table table)
     {
-        for (int i = 0; i < baseAddress.length; i++)
+        SpPolicyTable.Builder builder = new SpPolicyTable.Builder();
+        if (table != null)
         {
-            byte baseOctet = baseAddress[i];
-            byte maskOctet = subnetMask[i];
-            byte ipOctet = ip[i];
-            if ((baseOctet & maskOctet) != (ipOctet & maskOctet))
+            int entries = 0;
+            int prefixes = 0;
+            long start = System.nanoTime();
+            List<Row> rows = table.getRows();
+            for (Row row : rows)
             {
-                return false;
+                String networks = row.getFieldValue(CONFIG_SP_NETWORKS);
+                IpRangeSet ranges = null;
+                if (networks != null && networks.trim().length() > 0)
+                {
+                    RangeSetCompiler compiler = new RangeSetCompiler().addList(networks);
+                    ranges = compiler.compile();
+                    entries += compiler.getEntries();
+                    prefixes += ranges.size();
+                }
+                String role = row.getFieldValue(CONFIG_SP_ROLE);
+                builder.put(row.getFieldValue(CONFIG_SP_ENTITY_ID).trim(), new SpPolicyTable.Policy(ranges,
+                        role == null || SP_ROLE_DEFAULT.equals(role) ? null : role));
             }
+            LOG.info("Compiled {} SP policy networks into {} prefixes in {} ms", entries, prefixes,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         }
+        return builder.build();
+    }
 
-        return true;
+    /**
+     * Helper method to read a forwarding header, joining multiple header lines with commas in the order received
+     * 
+     * @param req
+     *            The request
+     * @param name
+     *            The header name
+     * @return The header value, or null if the request does not have the header
+     */
+    private static String getForwardedHeader(HttpServletRequest req, String name)
+    {
+        Enumeration<String> lines = req.getHeaders(name);
+        if (lines == null || !lines.hasMoreElements())
+        {
+            return null;
+        }
+
+        String header = lines.nextElement();
+        if (!lines.hasMoreElements())
+        {
+            return header;
+        }
+
+        StringBuilder joined = new StringBuilder(header);
+        while (lines.hasMoreElements())
+        {
+            joined.append(',').append(lines.nextElement());
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Helper method to convert a subnet mask into a prefix length
+     * 
+     * @param mask
+     *            The packed subnet mask
+     * @return The number of leading one bits in the mask
+     * @throws IllegalArgumentException
+     *             Thrown if the mask is not contiguous
+     */
+    private int getPrefixLength(int mask)
+    {
+        int prefixLength = IpRangeSet.prefixLength(mask);
+        if (prefixLength < 0)
+        {
+            throw new IllegalArgumentException("Bad subnet mask");
+        }
+        return prefixLength;
+    }
+
+    /**
+     * Check whether the specified IP address is on the denylist. Until the denylist file has been loaded every address
+     * is, so a feed that cannot be read never silently lets listed clients in.
+     * 
+     * @param high
+     *            The high 64 bits of the IP address to check, IPv4 addresses are in IPv4-mapped form
+     * @param low
+     *            The low 64 bits of the IP address to check
+     * @return True if the IP address must be refused, false otherwise
+     */
+    boolean isDenylisted(long high, long low)
+    {
+        RangeFileWatcher<IpDenylist> watcher = denylist;
+        if (watcher == null)
+        {
+            return false;
+        }
+        IpDenylist addresses = watcher.get();
+        return addresses == null || addresses.contains(high, low);
+    }
+
+    /**
+     * Check whether the specified IP address is in one of the configured networks
+     * 
+     * @param high
+     *            The high 64 bits of the IP address to check, IPv4 addresses are in IPv4-mapped form
+     * @param low
+     *            The low 64 bits of the IP address to check
+     * @return True if the IP address is in a configured network, false otherwise
+     */
+    boolean isIpInSubnet(long high, long low)
+    {
+        return networks.contains(high, low) || (rangeFile != null && rangeFile.get().contains(high, low));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,192 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * An immutable map from SP entity ID to the network {@link Policy} that applies to sign-ons to that SP.
+ * </p>
+ * <p>
+ * The table is compiled once from the adapter configuration into open-addressing arrays that hold each entity ID
+ * next to its hash code, so a lookup costs one hash of the incoming entity ID and, in the common case, a single
+ * <code>equals</code> call. Instances are created through a {@link Builder} and can then be shared freely between
+ * request threads.
+ * </p>
+ */
+final class SpPolicyTable
+{
+    /**
+     * The networks a client must be on, and the role it is given, when signing on to one SP
+     */
+    static final class Policy
+    {
+        private final IpRangeSet networks;
+        private final String role;
+
+        /**
+         * @param networks
+         *            The networks whose clients are authenticated, or null to authenticate any client
+         * @param role
+         *            The role given to authenticated clients, or null to use the adapter's default
+         */
+        Policy(IpRangeSet networks, String role)
+        {
+            this.networks = networks;
+            this.role = role;
+        }
+
+        /**
+         * Check whether a client is authenticated by this policy
+         *
+         * @param high
+         *            The high 64 bits of the client address, IPv4 addresses are in IPv4-mapped form
+         * @param low
+         *            The low 64 bits of the client address
+         * @return True if the client is on one of the policy's networks, or the policy allows any client
+         */
+        boolean allows(long high, long low)
+        {
+            return networks == null || networks.contains(high, low);
+        }
+
+        /**
+         * @return The role given to authenticated clients, or null to use the adapter's default
+         */
+        String getRole()
+        {
+            return role;
+        }
+    }
+
+    private final String[] entityIds;
+    private final int[] hashes;
+    private final Policy[] policies;
+    private final int mask;
+    private final int size;
+    private final long fingerprint;
+
+    private SpPolicyTable(String[] entityIds, int[] hashes, Policy[] policies, int size, long fingerprint)
+    {
+        this.entityIds = entityIds;
+        this.hashes = hashes;
+        this.policies = policies;
+        this.mask = entityIds.length - 1;
+        this.size = size;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Find the policy for an SP
+     *
+     * @param entityId
+     *            The SP entity ID, may be null
+     * @return The policy, or null if the SP has none and the adapter's networks apply
+     */
+    Policy get(String entityId)
+    {
+        if (entityId == null || size == 0)
+        {
+            return null;
+        }
+
+        int hash = entityId.hashCode();
+        for (int i = spread(hash) & mask; entityIds[i] != null; i = (i + 1) & mask)
+        {
+            if (hashes[i] == hash && entityIds[i].equals(entityId))
+            {
+                return policies[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of SPs with a policy
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return A 64-bit hash of the policies, the same on every server with the same configuration
+     */
+    long fingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * Scramble the hash code so entity IDs that share a long prefix still spread over the table
+     */
+    private static int spread(int hash)
+    {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Collects policies and compiles them into an immutable {@link SpPolicyTable}. Builders are not thread safe.
+     */
+    static final class Builder
+    {
+        private final Map<String, Policy> policies = new LinkedHashMap<String, Policy>();
+
+        /**
+         * Add the policy for an SP
+         *
+         * @param entityId
+         *            The SP entity ID
+         * @param policy
+         *            The policy
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             Thrown if the SP already has a policy
+         */
+        Builder put(String entityId, Policy policy)
+        {
+            if (policies.containsKey(entityId))
+            {
+                throw new IllegalArgumentException("Duplicate policy for SP " + entityId);
+            }
+            policies.put(entityId, policy);
+            return this;
+        }
+
+        /**
+         * Compile the collected policies
+         *
+         * @return The immutable table
+         */
+        SpPolicyTable build()
+        {
+            // Keep the table at most half full so probe sequences stay short
+            int capacity = Integer.highestOneBit(Math.max(policies.size(), 1)) << 2;
+            String[] entityIds = new String[capacity];
+            int[] hashes = new int[capacity];
+            Policy[] values = new Policy[capacity];
+            int mask = capacity - 1;
+
+            long fingerprint = 0;
+            for (Map.Entry<String, Policy> entry : policies.entrySet())
+            {
+                Policy policy = entry.getValue();
+                fingerprint = fingerprint * 31 + entry.getKey().hashCode();
+                fingerprint = fingerprint * 31 + (policy.networks == null ? 0 : policy.networks.fingerprint());
+                fingerprint = fingerprint * 31 + (policy.role == null ? 0 : policy.role.hashCode());
+
+                int hash = entry.getKey().hashCode();
+                int i = spread(hash) & mask;
+                while (entityIds[i] != null)
+                {
+                    i = (i + 1) & mask;
+                }
+                entityIds[i] = entry.getKey();
+                hashes[i] = hash;
+                values[i] = entry.getValue();
+            }
+            return new SpPolicyTable(entityIds, hashes, values, policies.size(), fingerprint);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.pingidentity.adapter.idp;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class AssertionCookieTest
+{
+    private final AssertionCookie cookie = new AssertionCookie("s3cret", 300);
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        String token = cookie.issue("192.168.1.20", "GUEST", "", 42);
+        assertThat(cookie.verify(token, "192.168.1.20", "GUEST", "", 42), is(true));
+        assertThat(new AssertionCookie("s3cret", 60).verify(token, "192.168.1.20", "GUEST", "", 42), is(true));
+    }
+
+    @Test
+    public void testMismatch() throws Exception
+    {
+        String token = cookie.issue("192.168.1.20", "GUEST", "", 42);
+        assertThat(cookie.verify(token, "192.168.1.21", "GUEST", "", 42), is(false));
+        assertThat(cookie.verify(token, "192.168.1.20", "CORP_USER", "", 42), is(false));
+        assertThat(cookie.verify(token, "192.168.1.20", "GUEST", "https://sp.example.com", 42), is(false));
+        assertThat(cookie.verify(token, "192.168.1.20", "GUEST", "", 43), is(false));
+        assertThat(cookie.verify(null, "192.168.1.20", "GUEST", "", 42), is(false));
+    }
+
+    @Test
+    public void testWrongKey() throws Exception
+    {
+        String token = cookie.issue("192.168.1.20", "GUEST", "", 42);
+        assertThat(new AssertionCookie("other", 300).verify(token, "192.168.1.20", "GUEST", "", 42), is(false));
+        assertThat(new AssertionCookie("", 300).verify(token, "192.168.1.20", "GUEST", "", 42), is(false));
+    }
+
+    @Test
+    public void testTampered() throws Exception
+    {
+        String token = cookie.issue("192.168.1.20", "GUEST", "", 42);
+        int signature = token.lastIndexOf('.') + 1;
+        String tampered = token.substring(0, signature) + (token.charAt(signature) == 'A' ? 'B' : 'A')
+                + token.substring(signature + 1);
+        assertThat(cookie.verify(tampered, "192.168.1.20", "GUEST", "", 42), is(false));
+        assertThat(cookie.verify("not a token", "192.168.1.20", "GUEST", "", 42), is(false));
+    }
+
+    @Test
+    public void testExpired() throws Exception
+    {
+        // Already past the allowed clock skew when issued
+        String token = new AssertionCookie("s3cret", -60).issue("192.168.1.20", "GUEST", "", 42);
+        assertThat(cookie.verify(token, "192.168.1.20", "GUEST", "", 42), is(false));
+    }
+}
@@ -0,0 +1,216 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+import org.slf4j.helpers.MessageFormatter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class AuditLogTest
+{
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo()
+    {
+        assertThat(new AuditLog(1, AuditLog.OverflowPolicy.DROP).capacity(), is(1));
+        assertThat(new AuditLog(1000, AuditLog.OverflowPolicy.DROP).capacity(), is(1024));
+        assertThat(new AuditLog(1024, AuditLog.OverflowPolicy.DROP).capacity(), is(1024));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadCapacity()
+    {
+        new AuditLog(0, AuditLog.OverflowPolicy.DROP);
+    }
+
+    @Test
+    public void testDropWhenFull()
+    {
+        AuditLog log = new AuditLog(4, AuditLog.OverflowPolicy.DROP);
+        for (int i = 0; i < 4; i++)
+        {
+            assertThat(log.record(Decision.ALLOWED, "10.0.0." + i, "sp", 1000L), is(true));
+        }
+        assertThat(log.record(Decision.DENIED, "10.0.0.9", "sp", 1000L), is(false));
+        assertThat(log.record(Decision.DENIED, "10.0.0.9", "sp", 1000L), is(false));
+        assertThat(log.getDropped(), is(2L));
+
+        assertThat(log.drain(), is(4));
+        assertThat(log.drain(), is(0));
+
+        // The slots are reused once drained
+        for (int i = 0; i < 6; i++)
+        {
+            log.record(Decision.ALLOWED, "10.0.0.1", "sp", 1000L);
+        }
+        assertThat(log.getDropped(), is(4L));
+        assertThat(log.drain(), is(4));
+    }
+
+    @Test
+    public void testBlockWhenFull() throws InterruptedException
+    {
+        final AuditLog log = new AuditLog(2, AuditLog.OverflowPolicy.BLOCK);
+        log.record(Decision.ALLOWED, "10.0.0.1", "sp", 1000L);
+        log.record(Decision.ALLOWED, "10.0.0.2", "sp", 1000L);
+
+        final CountDownLatch recorded = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread producer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                result.set(log.record(Decision.DENIED, "10.0.0.3", "sp", 1000L));
+                recorded.countDown();
+            }
+        });
+        producer.start();
+
+        assertThat(recorded.await(100, TimeUnit.MILLISECONDS), is(false));
+        assertThat(log.drain(), is(2));
+        assertThat(recorded.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(result.get(), is(true));
+        assertThat(log.getDropped(), is(0L));
+        assertThat(log.drain(), is(1));
+    }
+
+    @Test
+    public void testBlockedRecordGivesUpWhenReleased() throws InterruptedException
+    {
+        final AuditLog log = AuditLog.get(2, AuditLog.OverflowPolicy.BLOCK);
+        Thread consumer = findThread("audit-log", log);
+        log.release();
+        consumer.join(5000);
+        assertThat(consumer.isAlive(), is(false));
+
+        // Nothing drains the buffer any more, so a caller that still holds the log drops instead of waiting forever
+        log.record(Decision.ALLOWED, "10.0.0.1", "sp", 1000L);
+        log.record(Decision.ALLOWED, "10.0.0.2", "sp", 1000L);
+        assertThat(log.record(Decision.ALLOWED, "10.0.0.3", "sp", 1000L), is(false));
+        assertThat(log.getDropped(), is(1L));
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException
+    {
+        final AuditLog log = new AuditLog(64, AuditLog.OverflowPolicy.BLOCK);
+        final int perThread = 10000;
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++)
+        {
+            producers[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < perThread; j++)
+                    {
+                        log.record(Decision.ALLOWED, "10.0.0.1", "sp", j);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        int drained = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (drained < producers.length * perThread && System.nanoTime() < deadline)
+        {
+            drained += log.drain();
+        }
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+        assertThat(drained, is(producers.length * perThread));
+    }
+
+    @Test
+    public void testDrainWritesBatches()
+    {
+        AuditLog log = new AuditLog(1024, AuditLog.OverflowPolicy.DROP);
+        for (int i = 0; i < 300; i++)
+        {
+            log.record(Decision.ALLOWED, "10.0.0.1", "sp", 1000L);
+        }
+        assertThat(log.drain(), is(256));
+        assertThat(log.drain(), is(44));
+        assertThat(log.drain(), is(0));
+    }
+
+    @Test
+    public void testBackgroundThreadWakesForEventsAndStopsWhenReleased() throws InterruptedException
+    {
+        AuditLog log = AuditLog.get(3, AuditLog.OverflowPolicy.DROP);
+        assertThat(AuditLog.get(3, AuditLog.OverflowPolicy.DROP), is(log));
+        Thread consumer = findThread("audit-log", log);
+
+        // The thread is asleep once the buffer is empty, and recording wakes it to make space again long before its
+        // sleep would time out
+        for (int i = 0; i < 3; i++)
+        {
+            awaitState(consumer, Thread.State.TIMED_WAITING);
+            for (int j = 0; j < log.capacity(); j++)
+            {
+                log.record(Decision.ALLOWED, "10.0.0.1", "sp", 1000L);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!log.record(Decision.ALLOWED, "10.0.0.2", "sp", 1000L) && System.nanoTime() < deadline)
+            {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            assertThat(System.nanoTime() < deadline, is(true));
+        }
+
+        log.release();
+        assertThat(consumer.isAlive(), is(true));
+        log.release();
+        consumer.join(5000);
+        assertThat(consumer.isAlive(), is(false));
+        AuditLog restarted = AuditLog.get(3, AuditLog.OverflowPolicy.DROP);
+        assertThat(restarted == log, is(false));
+        restarted.release();
+    }
+
+    private static Thread findThread(String name, Object blocker)
+    {
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (name.equals(thread.getName()))
+            {
+                for (int i = 0; i < 500 && LockSupport.getBlocker(thread) == null; i++)
+                {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+                if (LockSupport.getBlocker(thread) == blocker)
+                {
+                    return thread;
+                }
+            }
+        }
+        throw new AssertionError("No background thread for the audit log");
+    }
+
+    private static void awaitState(Thread thread, Thread.State state)
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != state && System.nanoTime() < deadline)
+        {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertThat(thread.getState(), is(state));
+    }
+
+    @Test
+    public void testFormat()
+    {
+        String line = MessageFormatter.arrayFormat(AuditLog.FORMAT, new Object[] { Decision.MALFORMED_ADDRESS,
+                "unknown", "https://sp.example.com", 1500L, 1400000000000L }).getMessage();
+        assertThat(line, is("decision=MALFORMED_ADDRESS client=unknown sp=https://sp.example.com"
+                + " latencyMicros=1500 time=1400000000000"));
+    }
+}
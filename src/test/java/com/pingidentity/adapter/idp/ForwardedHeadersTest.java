@@ -0,0 +1,82 @@
+package com.pingidentity.adapter.idp;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class ForwardedHeadersTest
+{
+
+    private final IpRangeSet trusted = new IpRangeSet.Builder().add("10.0.0.0/8").add("2001:db8:ffff::/48").build();
+    private final long[] address = new long[2];
+
+    private String findClient(String header, boolean rfc7239)
+    {
+        long client = ForwardedHeaders.findClient(header, rfc7239, trusted, address);
+        if (client == ForwardedHeaders.NO_HOP)
+        {
+            return "NO_HOP";
+        }
+        if (client == ForwardedHeaders.MALFORMED)
+        {
+            return "MALFORMED";
+        }
+        return header.substring(ForwardedHeaders.start(client), ForwardedHeaders.end(client));
+    }
+
+    @Test
+    public void testXForwardedForStopsAtFirstUntrustedHop()
+    {
+        assertThat(findClient("203.0.113.7", false), is("203.0.113.7"));
+        assertThat(address, is(new long[] { 0L, 0x0000FFFFCB007107L }));
+        assertThat(findClient("198.51.100.1, 203.0.113.7, 10.1.1.1,10.2.2.2", false), is("203.0.113.7"));
+        assertThat(findClient("unknown, 203.0.113.7 ,10.1.1.1", false), is("203.0.113.7"));
+    }
+
+    @Test
+    public void testAllTrustedHopsYieldLeftmost()
+    {
+        assertThat(findClient("10.9.9.9, 10.1.1.1", false), is("10.9.9.9"));
+    }
+
+    @Test
+    public void testPortsAndBrackets()
+    {
+        assertThat(findClient("203.0.113.7:51234, 10.1.1.1", false), is("203.0.113.7"));
+        assertThat(findClient("[2001:db8::7]:443, 10.1.1.1", false), is("2001:db8::7"));
+        assertThat(findClient("2001:db8::7, 2001:db8:ffff::1", false), is("2001:db8::7"));
+        assertThat(address, is(new long[] { 0x20010DB800000000L, 7L }));
+    }
+
+    @Test
+    public void testForwarded()
+    {
+        assertThat(findClient("for=192.0.2.60;proto=http;by=203.0.113.43", true), is("192.0.2.60"));
+        assertThat(findClient("for=\"[2001:db8:cafe::17]:4711\", For=10.0.0.5;proto=https", true),
+                is("2001:db8:cafe::17"));
+        assertThat(findClient("proto=https; for=198.51.100.17 , for=10.0.0.5", true), is("198.51.100.17"));
+    }
+
+    @Test
+    public void testMalformedHops()
+    {
+        assertThat(findClient("203.0.113.7, unknown, 10.1.1.1", false), is("MALFORMED"));
+        assertThat(findClient("203.0.113.7,, 10.1.1.1", false), is("MALFORMED"));
+        assertThat(findClient("host.example.com", false), is("MALFORMED"));
+        assertThat(findClient("for=_hidden, for=10.0.0.5", true), is("MALFORMED"));
+        assertThat(findClient("proto=https", true), is("MALFORMED"));
+        assertThat(findClient("for=", true), is("MALFORMED"));
+        assertThat(findClient("[2001:db8::7, 10.1.1.1", false), is("MALFORMED"));
+        assertThat(findClient("fe80::1%eth0, 10.1.1.1", false), is("MALFORMED"));
+        assertThat(findClient("for=\"[fe80::1%25x]:443\"", true), is("MALFORMED"));
+    }
+
+    @Test
+    public void testEmptyHeader()
+    {
+        assertThat(findClient("", false), is("NO_HOP"));
+        assertThat(findClient("  ", true), is("NO_HOP"));
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GeoIpDatabaseTest
+{
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("geoip", ".db");
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    private static int lookup(GeoIpDatabase database, String address)
+    {
+        long[] parsed = new long[2];
+        IpAddresses.parse(address, parsed);
+        return database.lookup(parsed[0], parsed[1]);
+    }
+
+    @Test
+    public void testLookup() throws IOException
+    {
+        new GeoIpDatabase.Builder()
+                .add("198.51.100.0/24", "US", 64500)
+                .add("10.0.0.0/8", null, 0)
+                .add("203.0.113.0/25", "AU", 64501)
+                .add("255.255.255.0/24", "ZZ", 4294967295L)
+                .add("2001:db8::/32", "DE", 64502)
+                .add("2001:db9:1::/48", null, 64503)
+                .write(file);
+
+        GeoIpDatabase database = GeoIpDatabase.open(file);
+        assertThat(database.size(), is(6));
+
+        int range = lookup(database, "198.51.100.7");
+        assertThat(database.getCountry(range), is("US"));
+        assertThat(database.getAsn(range), is(64500L));
+        assertThat(lookup(database, "198.51.100.255"), is(range));
+        assertThat(lookup(database, "198.51.101.0"), is(GeoIpDatabase.NOT_FOUND));
+        assertThat(lookup(database, "198.51.99.255"), is(GeoIpDatabase.NOT_FOUND));
+
+        range = lookup(database, "10.200.1.1");
+        assertThat(database.getCountry(range), is(nullValue()));
+        assertThat(database.getAsn(range), is(0L));
+
+        assertThat(database.getCountry(lookup(database, "203.0.113.127")), is("AU"));
+        assertThat(lookup(database, "203.0.113.128"), is(GeoIpDatabase.NOT_FOUND));
+        assertThat(database.getAsn(lookup(database, "255.255.255.255")), is(4294967295L));
+        assertThat(lookup(database, "9.255.255.255"), is(GeoIpDatabase.NOT_FOUND));
+
+        range = lookup(database, "2001:db8:ffff::1");
+        assertThat(database.getCountry(range), is("DE"));
+        assertThat(database.getAsn(range), is(64502L));
+        assertThat(database.getAsn(lookup(database, "2001:db9:1:ffff::")), is(64503L));
+        assertThat(lookup(database, "2001:db9:2::"), is(GeoIpDatabase.NOT_FOUND));
+        assertThat(lookup(database, "::1"), is(GeoIpDatabase.NOT_FOUND));
+        assertThat(lookup(database, "::ffff:198.51.100.7"), is(lookup(database, "198.51.100.7")));
+    }
+
+    @Test
+    public void testEmpty() throws IOException
+    {
+        new GeoIpDatabase.Builder().write(file);
+        GeoIpDatabase database = GeoIpDatabase.open(file);
+        assertThat(database.size(), is(0));
+        assertThat(lookup(database, "198.51.100.7"), is(GeoIpDatabase.NOT_FOUND));
+        assertThat(lookup(database, "2001:db8::1"), is(GeoIpDatabase.NOT_FOUND));
+    }
+
+    @Test
+    public void testMatchesLinearScan() throws IOException
+    {
+        // Adjacent /24s and /48s with gaps, checked against the ranges they were built from
+        Random random = new Random(42);
+        GeoIpDatabase.Builder builder = new GeoIpDatabase.Builder();
+        boolean[] present = new boolean[4096];
+        for (int i = 0; i < present.length; i++)
+        {
+            present[i] = random.nextBoolean();
+            if (present[i])
+            {
+                builder.add("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24", "US", i + 1);
+                builder.add("2001:db8:" + Integer.toHexString(i) + "::/48", "DE", i + 100001);
+            }
+        }
+        builder.write(file);
+
+        GeoIpDatabase database = GeoIpDatabase.open(file);
+        for (int i = 0; i < present.length; i++)
+        {
+            int v4 = lookup(database, "10." + (i >> 8) + "." + (i & 0xFF) + "." + random.nextInt(256));
+            int v6 = lookup(database,
+                    "2001:db8:" + Integer.toHexString(i) + "::" + Integer.toHexString(random.nextInt(65536)));
+            assertThat(v4 == GeoIpDatabase.NOT_FOUND ? 0 : database.getAsn(v4), is(present[i] ? i + 1L : 0L));
+            assertThat(v6 == GeoIpDatabase.NOT_FOUND ? 0 : database.getAsn(v6), is(present[i] ? i + 100001L : 0L));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverlap() throws IOException
+    {
+        new GeoIpDatabase.Builder().add("10.0.0.0/8", "US", 1).add("10.1.0.0/16", "US", 1).write(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadCountry()
+    {
+        new GeoIpDatabase.Builder().add("10.0.0.0/8", "us", 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotADatabase() throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write("10.0.0.0/8 US 64500\n".getBytes("US-ASCII"));
+        }
+        finally
+        {
+            out.close();
+        }
+        GeoIpDatabase.open(file);
+    }
+}
@@ -0,0 +1,212 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+public class GeoIpImporterTest
+{
+
+    private final List<File> files = new ArrayList<File>();
+    private File database;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        database = newFile(".db", "");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (File file : files)
+        {
+            file.delete();
+        }
+    }
+
+    private File newFile(String suffix, String contents) throws IOException
+    {
+        File file = File.createTempFile("geoip", suffix);
+        files.add(file);
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    private static int lookup(GeoIpDatabase database, String address)
+    {
+        long[] parsed = new long[2];
+        IpAddresses.parse(address, parsed);
+        return database.lookup(parsed[0], parsed[1]);
+    }
+
+    @Test
+    public void testMaxMind() throws IOException
+    {
+        File locations = newFile(".csv", "geoname_id,locale_code,continent_code,continent_name,country_iso_code,"
+                + "country_name,is_in_european_union\n"
+                + "2921044,en,EU,Europe,DE,Germany,1\n"
+                + "6252001,en,NA,\"North America\",US,\"United States\",0\n"
+                + "6255148,en,EU,Europe,,,0\n");
+        File countries = newFile(".csv", "network,geoname_id,registered_country_geoname_id,"
+                + "represented_country_geoname_id,is_anonymous_proxy,is_satellite_provider\n"
+                + "198.51.100.0/24,6252001,6252001,,0,0\n"
+                + "198.51.101.0/24,,2921044,,0,0\n"
+                + "203.0.113.0/24,6255148,6255148,,0,0\n"
+                + "2001:db8::/32,2921044,2921044,,0,0\n");
+        File asns = newFile(".csv", "network,autonomous_system_number,autonomous_system_organization\n"
+                + "198.51.100.0/25,64500,\"Example, Inc.\"\n"
+                + "203.0.113.0/24,64501,Other\n");
+
+        GeoIpImporter importer = new GeoIpImporter();
+        importer.readMaxMindCountry(countries, GeoIpImporter.readMaxMindLocations(locations));
+        importer.readMaxMindAsn(asns);
+        assertThat(importer.write(database), is(5));
+
+        GeoIpDatabase geoIp = GeoIpDatabase.open(database);
+        int range = lookup(geoIp, "198.51.100.127");
+        assertThat(geoIp.getCountry(range), is("US"));
+        assertThat(geoIp.getAsn(range), is(64500L));
+        range = lookup(geoIp, "198.51.100.128");
+        assertThat(geoIp.getCountry(range), is("US"));
+        assertThat(geoIp.getAsn(range), is(0L));
+        assertThat(geoIp.getCountry(lookup(geoIp, "198.51.101.1")), is("DE"));
+        range = lookup(geoIp, "203.0.113.1");
+        assertThat(geoIp.getCountry(range), is(nullValue()));
+        assertThat(geoIp.getAsn(range), is(64501L));
+        assertThat(geoIp.getCountry(lookup(geoIp, "2001:db8:ffff::1")), is("DE"));
+        assertThat(lookup(geoIp, "198.51.102.0"), is(GeoIpDatabase.NOT_FOUND));
+    }
+
+    @Test
+    public void testCsv() throws IOException
+    {
+        File csv = newFile(".csv", "network,country,asn\n"
+                + "# adjacent ranges with the same values are joined\n"
+                + "192.0.2.0/25,GB,64510\n"
+                + "192.0.2.128-192.0.2.255,GB,AS64510\n"
+                + "\n"
+                + "198.51.100.7,FR,\n"
+                + "2001:db8::/32,,64511\n");
+
+        GeoIpImporter importer = new GeoIpImporter();
+        importer.readCsv(csv);
+        importer.write(database);
+
+        GeoIpDatabase geoIp = GeoIpDatabase.open(database);
+        int range = lookup(geoIp, "192.0.2.200");
+        assertThat(lookup(geoIp, "192.0.2.0"), is(range));
+        assertThat(geoIp.getCountry(range), is("GB"));
+        assertThat(geoIp.getAsn(range), is(64510L));
+        range = lookup(geoIp, "198.51.100.7");
+        assertThat(geoIp.getCountry(range), is("FR"));
+        assertThat(geoIp.getAsn(range), is(0L));
+        assertThat(lookup(geoIp, "198.51.100.8"), is(GeoIpDatabase.NOT_FOUND));
+        assertThat(geoIp.getAsn(lookup(geoIp, "2001:db8::1")), is(64511L));
+    }
+
+    @Test
+    public void testRangeAcrossTheIPv4MappedBlockIsSplit() throws IOException
+    {
+        File csv = newFile(".csv", "::/1,,64511\nffff::-ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff,JP,\n");
+        GeoIpImporter importer = new GeoIpImporter();
+        importer.readCsv(csv);
+        assertThat(importer.write(database), is(4));
+
+        GeoIpDatabase geoIp = GeoIpDatabase.open(database);
+        assertThat(geoIp.getAsn(lookup(geoIp, "::1")), is(64511L));
+        assertThat(geoIp.getAsn(lookup(geoIp, "10.0.0.1")), is(64511L));
+        assertThat(geoIp.getAsn(lookup(geoIp, "::1:0:0:0")), is(64511L));
+        assertThat(geoIp.getAsn(lookup(geoIp, "7fff:ffff:ffff:ffff:ffff:ffff:ffff:ffff")), is(64511L));
+        assertThat(lookup(geoIp, "8000::"), is(GeoIpDatabase.NOT_FOUND));
+        assertThat(geoIp.getCountry(lookup(geoIp, "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff")), is("JP"));
+    }
+
+    @Test
+    public void testOverlappingRanges() throws IOException
+    {
+        File csv = newFile(".csv", "192.0.2.0/24,GB,\n192.0.2.128/25,FR,\n");
+        GeoIpImporter importer = new GeoIpImporter();
+        importer.readCsv(csv);
+        try
+        {
+            importer.write(database);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e.getMessage(), is("Overlapping country ranges at 192.0.2.128"));
+        }
+    }
+
+    @Test
+    public void testBadLine() throws IOException
+    {
+        File csv = newFile(".csv", "192.0.2.0/24,GB,\n192.0.2.300,FR,\n");
+        try
+        {
+            new GeoIpImporter().readCsv(csv);
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertThat(e.getMessage(), containsString("on line 2 of"));
+        }
+
+        csv = newFile(".csv", "192.0.2.9-192.0.2.1,GB,\n");
+        try
+        {
+            new GeoIpImporter().readCsv(csv);
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertThat(e.getMessage(), containsString("Bad range"));
+        }
+    }
+
+    @Test
+    public void testMissingColumn() throws IOException
+    {
+        File asns = newFile(".csv", "network,asn\n192.0.2.0/24,64500\n");
+        try
+        {
+            new GeoIpImporter().readMaxMindAsn(asns);
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertThat(e.getMessage(), containsString("No autonomous_system_number column"));
+        }
+    }
+
+    @Test
+    public void testParseCsv()
+    {
+        assertThat(GeoIpImporter.parseCsv("a, \"b,c\" ,\"d\"\"e\","), is(Arrays.asList("a", "b,c", "d\"e", "")));
+        assertThat(GeoIpImporter.parseCsv("a,\"b"), is(nullValue()));
+    }
+}
@@ -0,0 +1,125 @@
+package com.pingidentity.adapter.idp;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class IpAddressesTest
+{
+
+    @Test
+    public void testParseIPv4()
+    {
+        assertThat(IpAddresses.parseIPv4("192.168.1.10"), is(0xC0A8010AL));
+        assertThat(IpAddresses.parseIPv4("0.0.0.0"), is(0L));
+        assertThat(IpAddresses.parseIPv4("255.255.255.255"), is(0xFFFFFFFFL));
+        assertThat(IpAddresses.parseIPv4("010.001.0.00"), is(0x0A010000L));
+    }
+
+    @Test
+    public void testParseIPv4Range()
+    {
+        assertThat(IpAddresses.parseIPv4("for=10.0.0.1;", 4, 12), is(0x0A000001L));
+    }
+
+    @Test
+    public void testParseIPv4Invalid()
+    {
+        String[] invalid = { "", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1.2.3.1000", "1..2.3", ".1.2.3", "1.2.3.",
+                "1.2.3.a", " 1.2.3.4", "::1", "host.example.com" };
+        for (String s : invalid)
+        {
+            assertThat(s, IpAddresses.parseIPv4(s), is(IpAddresses.INVALID));
+        }
+        assertThat(IpAddresses.parseIPv4(null), is(IpAddresses.INVALID));
+    }
+
+    private static long[] parseIPv6(String s)
+    {
+        long[] out = new long[2];
+        return IpAddresses.parseIPv6(s, out) ? out : null;
+    }
+
+    @Test
+    public void testParseIPv6()
+    {
+        assertThat(parseIPv6("2001:db8:0:0:1:2:3:4"), is(new long[] { 0x20010DB800000000L, 0x0001000200030004L }));
+        assertThat(parseIPv6("2001:DB8::1"), is(new long[] { 0x20010DB800000000L, 1L }));
+        assertThat(parseIPv6("::"), is(new long[] { 0L, 0L }));
+        assertThat(parseIPv6("::1"), is(new long[] { 0L, 1L }));
+        assertThat(parseIPv6("0:0:0:0:0:0:0:1"), is(new long[] { 0L, 1L }));
+        assertThat(parseIPv6("fe80::"), is(new long[] { 0xFE80000000000000L, 0L }));
+        assertThat(parseIPv6("1:2:3:4:5:6:7::"), is(new long[] { 0x0001000200030004L, 0x0005000600070000L }));
+        assertThat(parseIPv6("::2:3:4:5:6:7:8"), is(new long[] { 0x0000000200030004L, 0x0005000600070008L }));
+        assertThat(parseIPv6("1:2:3:4::5:6"), is(new long[] { 0x0001000200030004L, 0x0000000000050006L }));
+    }
+
+    @Test
+    public void testParseIPv6MappedAndZone()
+    {
+        assertThat(parseIPv6("::ffff:192.168.1.10"), is(new long[] { 0L, 0x0000FFFFC0A8010AL }));
+        assertThat(parseIPv6("0:0:0:0:0:ffff:10.0.0.1"), is(new long[] { 0L, 0x0000FFFF0A000001L }));
+        assertThat(parseIPv6("fe80::1%eth0"), is(new long[] { 0xFE80000000000000L, 1L }));
+        assertThat(parseIPv6("fe80::1%25"), is(new long[] { 0xFE80000000000000L, 1L }));
+    }
+
+    @Test
+    public void testParseIPv6Invalid()
+    {
+        String[] invalid = { "", ":", ":1", "1:", ":::", "1:::2", "1::2::3", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+                "1:2:3:4:5:6:7:8::", "12345::", "g::", "::1.2.3", "::1.2.3.4:5", "1:2:3:4:5:6:7:1.2.3.4", "fe80::1%",
+                "192.168.1.1", "[::1]" };
+        for (String s : invalid)
+        {
+            assertThat(s, parseIPv6(s) == null, is(true));
+        }
+        assertThat(IpAddresses.parseIPv6(null, new long[2]), is(false));
+    }
+
+    @Test
+    public void testParseClassifiesLiterals()
+    {
+        long[] out = new long[2];
+        assertThat(IpAddresses.parse("10.0.0.1", out), is(IpAddresses.IPV4));
+        assertThat(out, is(new long[] { 0L, 0x0000FFFF0A000001L }));
+        assertThat(IpAddresses.parse("2001:db8::1", out), is(IpAddresses.IPV6));
+        assertThat(out, is(new long[] { 0x20010DB800000000L, 1L }));
+        assertThat(IpAddresses.parse("[::1]", out), is(IpAddresses.IPV6));
+        assertThat(out, is(new long[] { 0L, 1L }));
+
+        String[] malformed = { "", "localhost", "example.com", "[10.0.0.1]", "[::1", "10.0.0.1 ", "unknown" };
+        for (String s : malformed)
+        {
+            assertThat(s, IpAddresses.parse(s, out), is(IpAddresses.MALFORMED));
+        }
+        assertThat(IpAddresses.parse(null, out), is(IpAddresses.MALFORMED));
+    }
+
+    @Test
+    public void testFormat()
+    {
+        String[][] cases = { { "10.0.0.1", "10.0.0.1" }, { "::ffff:192.168.1.10", "192.168.1.10" },
+                { "2001:DB8:0:0:0:0:0:1", "2001:db8::1" }, { "::", "::" }, { "::1", "::1" }, { "1::", "1::" },
+                { "2001:db8:0:0:1:0:0:1", "2001:db8::1:0:0:1" }, { "2001:0:0:1:0:0:0:1", "2001:0:0:1::1" },
+                { "2001:db8:0:1:1:1:1:1", "2001:db8:0:1:1:1:1:1" }, { "fe80::0001%eth0", "fe80::1" },
+                { "::0.0.0.1", "::1" } };
+        long[] out = new long[2];
+        for (String[] c : cases)
+        {
+            assertThat(c[0], IpAddresses.parse(c[0], out) != IpAddresses.MALFORMED, is(true));
+            assertThat(c[0], IpAddresses.format(out[0], out[1]), is(c[1]));
+        }
+    }
+
+    @Test
+    public void testParsePrefixLength()
+    {
+        assertThat(IpAddresses.parsePrefixLength("/24", 1, 3, 32), is(24));
+        assertThat(IpAddresses.parsePrefixLength("0", 0, 1, 32), is(0));
+        assertThat(IpAddresses.parsePrefixLength("33", 0, 2, 32), is(-1));
+        assertThat(IpAddresses.parsePrefixLength("", 0, 0, 32), is(-1));
+        assertThat(IpAddresses.parsePrefixLength("2x", 0, 2, 32), is(-1));
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class IpDenylistTest
+{
+
+    private static boolean contains(IpDenylist denylist, String address)
+    {
+        long[] parsed = new long[2];
+        IpAddresses.parse(address, parsed);
+        return denylist.contains(parsed[0], parsed[1]);
+    }
+
+    @Test
+    public void testContains()
+    {
+        IpDenylist denylist = new IpDenylist.Builder()
+                .add("198.51.100.7")
+                .add("255.255.255.255")
+                .add("0.0.0.0")
+                .add("2001:db8::1")
+                .add("ffff::1")
+                .add("198.51.100.7")
+                .build();
+        assertThat(denylist.size(), is(5));
+        assertThat(contains(denylist, "198.51.100.7"), is(true));
+        assertThat(contains(denylist, "::ffff:198.51.100.7"), is(true));
+        assertThat(contains(denylist, "255.255.255.255"), is(true));
+        assertThat(contains(denylist, "0.0.0.0"), is(true));
+        assertThat(contains(denylist, "2001:db8::1"), is(true));
+        assertThat(contains(denylist, "ffff::1"), is(true));
+        assertThat(contains(denylist, "198.51.100.8"), is(false));
+        assertThat(contains(denylist, "2001:db8::2"), is(false));
+        assertThat(contains(denylist, "::"), is(false));
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        IpDenylist denylist = new IpDenylist.Builder().build();
+        assertThat(denylist.size(), is(0));
+        assertThat(contains(denylist, "198.51.100.7"), is(false));
+        assertThat(contains(denylist, "2001:db8::1"), is(false));
+    }
+
+    @Test
+    public void testMatchesHashSet()
+    {
+        Random random = new Random(42);
+        Set<String> expected = new HashSet<String>();
+        IpDenylist.Builder builder = new IpDenylist.Builder();
+        long[] address = new long[2];
+        for (int i = 0; i < 100000; i++)
+        {
+            address[0] = random.nextInt(4) == 0 ? 0 : random.nextLong() & 0xFFFF00000000000FL;
+            address[1] = address[0] == 0 ? IpAddresses.IPV4_MAPPED_PREFIX | random.nextInt(1 << 20)
+                    : random.nextInt(1 << 20);
+            expected.add(address[0] + "/" + address[1]);
+            builder.add(address[0], address[1]);
+        }
+        IpDenylist denylist = builder.build();
+        assertThat(denylist.size(), is(expected.size()));
+
+        for (int i = 0; i < 200000; i++)
+        {
+            address[0] = random.nextInt(4) == 0 ? 0 : random.nextLong() & 0xFFFF00000000000FL;
+            address[1] = address[0] == 0 ? IpAddresses.IPV4_MAPPED_PREFIX | random.nextInt(1 << 20)
+                    : random.nextInt(1 << 20);
+            assertThat(denylist.contains(address[0], address[1]), is(expected.contains(address[0] + "/"
+                    + address[1])));
+        }
+    }
+
+    @Test
+    public void testMemoryUsage()
+    {
+        IpDenylist.Builder builder = new IpDenylist.Builder();
+        for (int i = 0; i < 1000000; i++)
+        {
+            builder.add(0, IpAddresses.IPV4_MAPPED_PREFIX | (i * 2654435761L & 0xFFFFFFFFL));
+        }
+        IpDenylist denylist = builder.build();
+        assertThat(denylist.size(), is(1000000));
+        assertThat(denylist.memoryUsage(), lessThan(7L * 1000000));
+    }
+
+    @Test
+    public void testLoad() throws IOException
+    {
+        File feed = File.createTempFile("denylist", ".txt");
+        try
+        {
+            OutputStream out = new FileOutputStream(feed);
+            try
+            {
+                out.write(("# threat feed\nip,first_seen\n198.51.100.7,2016-01-01\n  2001:db8::1  # scanner\r\n\n"
+                        + "203.0.113.9\tmalware\n203.0.113.10").getBytes("US-ASCII"));
+            }
+            finally
+            {
+                out.close();
+            }
+
+            IpDenylist denylist = IpDenylist.load(feed);
+            assertThat(denylist.size(), is(4));
+            assertThat(contains(denylist, "198.51.100.7"), is(true));
+            assertThat(contains(denylist, "2001:db8::1"), is(true));
+            assertThat(contains(denylist, "203.0.113.9"), is(true));
+            assertThat(contains(denylist, "203.0.113.10"), is(true));
+            assertThat(contains(denylist, "203.0.113.11"), is(false));
+        }
+        finally
+        {
+            feed.delete();
+        }
+    }
+}
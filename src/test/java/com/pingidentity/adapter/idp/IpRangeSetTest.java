@@ -0,0 +1,234 @@
+package com.pingidentity.adapter.idp;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class IpRangeSetTest
+{
+
+    private static int ip(int a, int b, int c, int d)
+    {
+        return (a << 24) | (b << 16) | (c << 8) | d;
+    }
+
+    @Test
+    public void testEmptySetMatchesNothing()
+    {
+        IpRangeSet set = new IpRangeSet.Builder().build();
+        assertThat(set.isEmpty(), is(true));
+        assertThat(set.contains(ip(10, 0, 0, 1)), is(false));
+        assertThat(set.longestMatch(ip(10, 0, 0, 1)), is(IpRangeSet.NO_MATCH));
+    }
+
+    @Test
+    public void testContains()
+    {
+        IpRangeSet set = new IpRangeSet.Builder()
+                .add(ip(10, 0, 0, 0), 8)
+                .add(ip(192, 168, 1, 0), 24)
+                .add(ip(172, 16, 5, 4), 32)
+                .build();
+
+        assertThat(set.size(), is(3));
+        assertThat(set.contains(ip(10, 255, 3, 4)), is(true));
+        assertThat(set.contains(ip(11, 0, 0, 0)), is(false));
+        assertThat(set.contains(ip(192, 168, 1, 255)), is(true));
+        assertThat(set.contains(ip(192, 168, 2, 0)), is(false));
+        assertThat(set.contains(ip(172, 16, 5, 4)), is(true));
+        assertThat(set.contains(ip(172, 16, 5, 5)), is(false));
+    }
+
+    @Test
+    public void testLongestMatch()
+    {
+        IpRangeSet set = new IpRangeSet.Builder()
+                .add(ip(10, 0, 0, 0), 8)
+                .add(ip(10, 1, 0, 0), 16)
+                .add(ip(10, 1, 2, 0), 24)
+                .build();
+
+        assertThat(set.longestMatch(ip(10, 1, 2, 3)), is(24));
+        assertThat(set.longestMatch(ip(10, 1, 3, 3)), is(16));
+        assertThat(set.longestMatch(ip(10, 2, 3, 3)), is(8));
+        assertThat(set.longestMatch(ip(11, 1, 2, 3)), is(IpRangeSet.NO_MATCH));
+    }
+
+    @Test
+    public void testHostBitsAreIgnoredAndDuplicatesCollapse()
+    {
+        IpRangeSet set = new IpRangeSet.Builder()
+                .add(ip(192, 168, 1, 77), 24)
+                .add(ip(192, 168, 1, 0), 24)
+                .build();
+
+        assertThat(set.size(), is(1));
+        assertThat(set.contains(ip(192, 168, 1, 1)), is(true));
+    }
+
+    @Test
+    public void testDefaultRouteAndHighAddresses()
+    {
+        IpRangeSet set = new IpRangeSet.Builder().add(0, 0).build();
+        assertThat(set.contains(ip(255, 255, 255, 255)), is(true));
+
+        set = new IpRangeSet.Builder().add(ip(255, 255, 255, 255), 32).add(ip(128, 0, 0, 0), 1).build();
+        assertThat(set.longestMatch(ip(255, 255, 255, 255)), is(32));
+        assertThat(set.longestMatch(ip(200, 0, 0, 0)), is(1));
+        assertThat(set.contains(ip(127, 255, 255, 255)), is(false));
+    }
+
+    @Test
+    public void testPathCompression()
+    {
+        IpRangeSet set = new IpRangeSet.Builder().add(ip(10, 1, 2, 3), 32).build();
+        // One root per address family plus the host itself
+        assertThat(set.nodeCount(), is(3));
+        assertThat(set.contains(ip(10, 1, 2, 3)), is(true));
+        assertThat(set.contains(ip(10, 1, 2, 2)), is(false));
+    }
+
+    @Test
+    public void testIPv6()
+    {
+        IpRangeSet set = new IpRangeSet.Builder()
+                .add("2001:db8::/32")
+                .add("2001:db8:1234::/48")
+                .add("fe80::1/128")
+                .build();
+
+        assertThat(set.size(), is(3));
+        assertThat(set.contains(0x20010DB8FFFF0000L, 0L), is(true));
+        assertThat(set.contains(0x20010DB900000000L, 0L), is(false));
+        assertThat(set.longestMatch(0x20010DB812340001L, 5L), is(48));
+        assertThat(set.longestMatch(0x20010DB812350001L, 5L), is(32));
+        assertThat(set.longestMatch(0xFE80000000000000L, 1L), is(128));
+        assertThat(set.contains(0xFE80000000000000L, 2L), is(false));
+    }
+
+    @Test
+    public void testIPv6PrefixesAcrossTheHalves()
+    {
+        IpRangeSet set = new IpRangeSet.Builder()
+                .add(0x20010DB800000000L, 0x8000000000000000L, 65)
+                .add(0L, 0L, 0)
+                .build();
+
+        assertThat(set.longestMatch(0x20010DB800000000L, 0xFFFFFFFFFFFFFFFFL), is(65));
+        assertThat(set.longestMatch(0x20010DB800000000L, 0x7FFFFFFFFFFFFFFFL), is(0));
+    }
+
+    @Test
+    public void testIPv4MappedAddressesUseTheIPv4Ranges()
+    {
+        IpRangeSet set = new IpRangeSet.Builder().add("10.0.0.0/8").add("::ffff:192.168.0.0/112").build();
+
+        assertThat(set.contains(0L, 0x0000FFFF0A010203L), is(true));
+        assertThat(set.longestMatch(0L, 0x0000FFFFC0A80505L), is(16));
+        assertThat(set.contains(ip(192, 168, 5, 5)), is(true));
+        assertThat(set.contains(0L, 0x000000000A010203L), is(false));
+    }
+
+    @Test
+    public void testIPv4AndIPv6AreSeparate()
+    {
+        IpRangeSet set = new IpRangeSet.Builder().add("0.0.0.0/0").build();
+        assertThat(set.contains(0x20010DB800000000L, 1L), is(false));
+
+        set = new IpRangeSet.Builder().add("::/0").build();
+        assertThat(set.contains(ip(10, 0, 0, 1)), is(false));
+        assertThat(set.contains(0x20010DB800000000L, 1L), is(true));
+    }
+
+    @Test
+    public void testSerialization()
+    {
+        IpRangeSet set = new IpRangeSet.Builder()
+                .add("10.0.0.0/8")
+                .add("10.1.2.0/24")
+                .add("2001:db8::/32")
+                .add("fe80::1")
+                .build();
+
+        ByteBuffer buffer = ByteBuffer.allocate(set.serializedSize());
+        set.writeTo(buffer);
+        assertThat(buffer.remaining(), is(0));
+        buffer.flip();
+        IpRangeSet copy = IpRangeSet.readFrom(buffer);
+
+        assertThat(copy.size(), is(4));
+        assertThat(copy.nodeCount(), is(set.nodeCount()));
+        assertThat(copy.longestMatch(ip(10, 1, 2, 3)), is(24));
+        assertThat(copy.longestMatch(ip(10, 1, 3, 3)), is(8));
+        assertThat(copy.longestMatch(0x20010DB800000000L, 7L), is(32));
+        assertThat(copy.longestMatch(0xFE80000000000000L, 1L), is(128));
+        assertThat(copy.contains(ip(11, 0, 0, 0)), is(false));
+    }
+
+    @Test
+    public void testPrefixLength()
+    {
+        assertThat(IpRangeSet.prefixLength(ip(255, 255, 255, 0)), is(24));
+        assertThat(IpRangeSet.prefixLength(0), is(0));
+        assertThat(IpRangeSet.prefixLength(-1), is(32));
+        assertThat(IpRangeSet.prefixLength(ip(255, 0, 255, 0)), is(-1));
+    }
+
+    @Test
+    public void testAddCidr()
+    {
+        IpRangeSet set = new IpRangeSet.Builder().add("10.0.0.0/8").add(" 192.168.1.5 ").build();
+        assertThat(set.longestMatch(ip(10, 1, 1, 1)), is(8));
+        assertThat(set.longestMatch(ip(192, 168, 1, 5)), is(32));
+    }
+
+    @Test
+    public void testAddList()
+    {
+        IpRangeSet set = new IpRangeSet.Builder().addList(" 10.0.0.0/8,192.168.1.5\n 2001:db8::/32 ,, ").build();
+        assertThat(set.size(), is(3));
+        assertThat(set.longestMatch(ip(10, 1, 1, 1)), is(8));
+        assertThat(set.longestMatch(ip(192, 168, 1, 5)), is(32));
+        assertThat(set.contains(0x20010DB800000000L, 1L), is(true));
+        assertThat(new IpRangeSet.Builder().addList("").build().isEmpty(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadList()
+    {
+        new IpRangeSet.Builder().addList("10.0.0.0/8; 192.168.0.0/16");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadCidr()
+    {
+        new IpRangeSet.Builder().add("10.0.0.0/33");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadIPv6Cidr()
+    {
+        new IpRangeSet.Builder().add("2001:db8::/129");
+    }
+
+    @Test
+    public void testFingerprint()
+    {
+        IpRangeSet a = new IpRangeSet.Builder().addList("10.0.0.0/8, 192.168.1.0/24, 2001:db8::/32").build();
+        IpRangeSet b = new IpRangeSet.Builder().addList("2001:db8::/32 192.168.1.0/24 10.0.0.0/8").build();
+        IpRangeSet c = new IpRangeSet.Builder().addList("10.0.0.0/8, 192.168.2.0/24, 2001:db8::/32").build();
+        assertThat(a.fingerprint(), is(b.fingerprint()));
+        assertThat(a.fingerprint() == c.fingerprint(), is(false));
+        assertThat(new IpRangeSet.Builder().build().fingerprint() == a.fingerprint(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadPrefixLength()
+    {
+        new IpRangeSet.Builder().add(0, 33);
+    }
+
+}
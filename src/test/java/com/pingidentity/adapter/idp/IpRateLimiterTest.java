@@ -0,0 +1,143 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class IpRateLimiterTest
+{
+
+    private static final long MAPPED = IpAddresses.IPV4_MAPPED_PREFIX;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static long ip(int a, int b, int c, int d)
+    {
+        return MAPPED | ((long) a << 24) | (b << 16) | (c << 8) | d;
+    }
+
+    @Test
+    public void testBurstThenRate()
+    {
+        // One request per second with a burst of 3
+        IpRateLimiter limiter = new IpRateLimiter(60, 3, 32, 64, 1024);
+        long client = ip(198, 51, 100, 7);
+        long now = SECOND;
+
+        assertThat(limiter.tryAcquire(0, client, now), is(true));
+        assertThat(limiter.tryAcquire(0, client, now), is(true));
+        assertThat(limiter.tryAcquire(0, client, now), is(true));
+        assertThat(limiter.tryAcquire(0, client, now), is(false));
+        assertThat(limiter.tryAcquire(0, ip(198, 51, 100, 8), now), is(true));
+
+        assertThat(limiter.tryAcquire(0, client, now + SECOND / 2), is(false));
+        assertThat(limiter.tryAcquire(0, client, now + SECOND), is(true));
+        assertThat(limiter.tryAcquire(0, client, now + SECOND), is(false));
+
+        // A long pause refills the bucket, but never beyond the burst
+        now += 100 * SECOND;
+        for (int i = 0; i < 3; i++)
+        {
+            assertThat(limiter.tryAcquire(0, client, now), is(true));
+        }
+        assertThat(limiter.tryAcquire(0, client, now), is(false));
+        assertThat(limiter.getLimited(), is(4L));
+    }
+
+    @Test
+    public void testIPv4Networks()
+    {
+        IpRateLimiter limiter = new IpRateLimiter(60, 2, 24, 64, 1024);
+        assertThat(limiter.tryAcquire(0, ip(203, 0, 113, 1), SECOND), is(true));
+        assertThat(limiter.tryAcquire(0, ip(203, 0, 113, 200), SECOND), is(true));
+        assertThat(limiter.tryAcquire(0, ip(203, 0, 113, 9), SECOND), is(false));
+        assertThat(limiter.tryAcquire(0, ip(203, 0, 114, 9), SECOND), is(true));
+    }
+
+    @Test
+    public void testIPv6Networks()
+    {
+        IpRateLimiter limiter = new IpRateLimiter(60, 1, 32, 64, 1024);
+        assertThat(limiter.tryAcquire(0x20010DB800010002L, 1L, SECOND), is(true));
+        assertThat(limiter.tryAcquire(0x20010DB800010002L, 0xABCDL, SECOND), is(false));
+        assertThat(limiter.tryAcquire(0x20010DB800010003L, 1L, SECOND), is(true));
+
+        // IPv4 clients are keyed by their IPv4 network, not the IPv6 one they are mapped into
+        assertThat(limiter.tryAcquire(0, ip(10, 0, 0, 1), SECOND), is(true));
+        assertThat(limiter.tryAcquire(0, ip(10, 0, 0, 2), SECOND), is(true));
+    }
+
+    @Test
+    public void testTableStaysBoundedUnderFlood()
+    {
+        IpRateLimiter limiter = new IpRateLimiter(60, 1, 32, 64, 64);
+        assertThat(limiter.capacity(), is(64));
+
+        // Far more sources than slots, all active: every first request is allowed and old sources are evicted
+        for (int i = 0; i < 100000; i++)
+        {
+            assertThat(limiter.tryAcquire(0, MAPPED | i, SECOND), is(true));
+        }
+        assertThat(limiter.getEvictions() > 0, is(true));
+
+        // A recent source is still remembered
+        assertThat(limiter.tryAcquire(0, MAPPED | 99999, SECOND), is(false));
+    }
+
+    @Test
+    public void testExpiredBucketsAreReused()
+    {
+        IpRateLimiter limiter = new IpRateLimiter(60, 1, 32, 64, 64);
+        for (int i = 0; i < 64; i++)
+        {
+            limiter.tryAcquire(0, MAPPED | i, SECOND);
+        }
+        long evictions = limiter.getEvictions();
+
+        // Once their buckets are full again the slots are taken over without counting as evictions
+        for (int i = 64; i < 128; i++)
+        {
+            limiter.tryAcquire(0, MAPPED | i, 10 * SECOND);
+        }
+        assertThat(limiter.getEvictions(), is(evictions));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadIPv6PrefixLength()
+    {
+        new IpRateLimiter(60, 1, 32, 65, 1024);
+    }
+
+    @Test
+    public void testConcurrentClientsShareOneBucket() throws InterruptedException
+    {
+        final IpRateLimiter limiter = new IpRateLimiter(1, 1000, 32, 64, 1024);
+        final AtomicInteger allowed = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++)
+                    {
+                        if (limiter.tryAcquire(0, ip(192, 0, 2, 1), SECOND))
+                        {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertThat(allowed.get(), is(1000));
+    }
+}
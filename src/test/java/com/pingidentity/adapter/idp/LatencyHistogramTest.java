@@ -0,0 +1,96 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class LatencyHistogramTest
+{
+
+    @Test
+    public void testBucketsCoverEveryValue()
+    {
+        assertThat(LatencyHistogram.index(0), is(0));
+        assertThat(LatencyHistogram.index(7), is(7));
+        assertThat(LatencyHistogram.index(8), is(8));
+        assertThat(LatencyHistogram.index(15), is(15));
+        assertThat(LatencyHistogram.index(16), is(16));
+        assertThat(LatencyHistogram.index(17), is(16));
+        assertThat(LatencyHistogram.highestValue(16), is(17L));
+        assertThat(LatencyHistogram.highestValue(LatencyHistogram.index(Long.MAX_VALUE)), is(Long.MAX_VALUE));
+
+        // Every value lands in a bucket whose upper bound is at most 12.5% above it
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++)
+        {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int index = LatencyHistogram.index(value);
+            long highest = LatencyHistogram.highestValue(index);
+            assertThat(Long.toString(value), highest >= value, is(true));
+            assertThat(Long.toString(value), index == 0 || LatencyHistogram.highestValue(index - 1) < value, is(true));
+            assertThat(Long.toString(value), highest - value <= value / 8, is(true));
+        }
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+        {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-5);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1001L));
+        assertThat(snapshot.getMean(), is(500500000L / 1001));
+        assertWithin(snapshot.getValueAt(0.5), 500000L);
+        assertWithin(snapshot.getValueAt(0.99), 990000L);
+        assertWithin(snapshot.getMax(), 1000000L);
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertThat(snapshot.getCount(), is(0L));
+        assertThat(snapshot.getMean(), is(0L));
+        assertThat(snapshot.getValueAt(0.99), is(0L));
+        assertThat(snapshot.getMax(), is(0L));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++)
+                    {
+                        histogram.record(j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertThat(histogram.snapshot().getCount(), is(80000L));
+    }
+
+    private static void assertWithin(long actual, long expected)
+    {
+        assertThat(actual + " vs " + expected, actual >= expected && actual - expected <= expected / 8, is(true));
+    }
+}
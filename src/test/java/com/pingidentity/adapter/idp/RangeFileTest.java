@@ -0,0 +1,254 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RangeFileTest
+{
+
+    private File source;
+    private File snapshot;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        source = File.createTempFile("ranges", ".txt");
+        snapshot = new File(source.getPath() + ".snapshot");
+    }
+
+    @After
+    public void tearDown()
+    {
+        source.delete();
+        snapshot.delete();
+    }
+
+    private void write(String text, long lastModified) throws IOException
+    {
+        OutputStream out = new FileOutputStream(source);
+        try
+        {
+            out.write(text.getBytes("US-ASCII"));
+        }
+        finally
+        {
+            out.close();
+        }
+        source.setLastModified(lastModified);
+    }
+
+    private RangeFileWatcher<IpRangeSet> newWatcher()
+    {
+        return new RangeFileWatcher<IpRangeSet>(new RangeFile(source), new IpRangeSet.Builder().build());
+    }
+
+    @Test
+    public void testCompileSkipsCommentsAndBlankLines() throws IOException
+    {
+        write("# corporate\n10.0.0.0/8\n\n  192.168.1.0/24   # office\r\n2001:db8::/32\n198.51.100.7", 1000000L);
+
+        IpRangeSet ranges = new RangeFile(source).load();
+        assertThat(ranges.size(), is(4));
+        assertThat(ranges.contains(0x0A010101), is(true));
+        assertThat(ranges.contains(0xC0A80105), is(true));
+        assertThat(ranges.contains(0xC6336407), is(true));
+        assertThat(ranges.contains(0x20010DB800000000L, 1L), is(true));
+        assertThat(ranges.contains(0x0B000000), is(false));
+    }
+
+    @Test
+    public void testSnapshotIsWrittenAndReused() throws IOException
+    {
+        write("10.0.0.0/8\n2001:db8::/32\n", 1000000L);
+        new RangeFile(source).load();
+        assertThat(snapshot.isFile(), is(true));
+
+        // Same version of the file, so the snapshot is used rather than written again
+        snapshot.setLastModified(5000000L);
+        IpRangeSet ranges = new RangeFile(source).load();
+        assertThat(ranges.contains(0x0A010101), is(true));
+        assertThat(ranges.contains(0x20010DB800000000L, 1L), is(true));
+        assertThat(snapshot.lastModified(), is(5000000L));
+
+        // A new version invalidates it
+        write("11.0.0.0/8\n2001:db8::/32\n", 2000000L);
+        ranges = new RangeFile(source).load();
+        assertThat(ranges.contains(0x0A010101), is(false));
+        assertThat(ranges.contains(0x0B010101), is(true));
+    }
+
+    @Test
+    public void testEditKeepingTimeAndSizeInvalidatesTheSnapshot() throws IOException
+    {
+        write("10.0.0.0/8\n", 1000000L);
+        new RangeFile(source).load();
+
+        write("11.0.0.0/8\n", 1000000L);
+        IpRangeSet ranges = new RangeFile(source).load();
+        assertThat(ranges.contains(0x0A010101), is(false));
+        assertThat(ranges.contains(0x0B010101), is(true));
+    }
+
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws IOException
+    {
+        write("10.0.0.0/8\n", 1000000L);
+        new RangeFile(source).load();
+
+        // Claim an enormous IPv4 trie, then flip a bit in the tries instead
+        RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+        try
+        {
+            file.seek(44);
+            file.writeInt(Integer.MAX_VALUE - 3);
+        }
+        finally
+        {
+            file.close();
+        }
+        assertThat(new RangeFile(source).load().contains(0x0A010101), is(true));
+
+        file = new RandomAccessFile(snapshot, "rw");
+        try
+        {
+            file.seek(file.length() - 4);
+            int last = file.readInt();
+            file.seek(file.length() - 4);
+            file.writeInt(last ^ 1);
+        }
+        finally
+        {
+            file.close();
+        }
+        assertThat(new RangeFile(source).load().contains(0x0A010101), is(true));
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException
+    {
+        write("", 1000000L);
+        assertThat(new RangeFile(source).load().isEmpty(), is(true));
+        assertThat(new RangeFile(source).load().isEmpty(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadLine() throws IOException
+    {
+        write("10.0.0.0/8\n10.0.0.0/40\n", 1000000L);
+        new RangeFile(source).load();
+    }
+
+    @Test
+    public void testWatcherKeepsPreviousRangesWhenReloadFails() throws IOException
+    {
+        write("10.0.0.0/8\n", 1000000L);
+        RangeFileWatcher<IpRangeSet> watcher = RangeFileWatcher.watch(source, 3600);
+        assertThat(watcher.get().contains(0x0A010101), is(true));
+        assertThat(RangeFileWatcher.watch(source, 3600), is(watcher));
+
+        write("10.0.0.0/8\n172.16.0.0/12\n", 2000000L);
+        watcher.check();
+        assertThat(watcher.get().contains(0xAC100001), is(true));
+
+        write("10.0.0.0/8\nnot a range\n", 3000000L);
+        watcher.check();
+        assertThat(watcher.get().contains(0xAC100001), is(true));
+        watcher.release();
+        watcher.release();
+    }
+
+    @Test
+    public void testSameSizeEditWithinTheTimestampResolutionIsReloaded() throws IOException
+    {
+        // A modification time ahead of the clock is always within the resolution of the time it was read at
+        long modified = (System.currentTimeMillis() / 1000 + 60) * 1000;
+        write("10.0.0.0/8\n", modified);
+        RangeFileWatcher<IpRangeSet> watcher = newWatcher();
+        assertThat(watcher.check(), is(true));
+        assertThat(watcher.check(), is(false));
+
+        write("11.0.0.0/8\n", modified);
+        assertThat(watcher.check(), is(true));
+        assertThat(watcher.get().contains(0x0A010101), is(false));
+        assertThat(watcher.get().contains(0x0B010101), is(true));
+    }
+
+    @Test
+    public void testConcurrentWatchersSeeTheFirstLoad() throws Exception
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+        {
+            text.append("10.").append(i >> 8).append('.').append(i & 0xFF).append(".0/24\n");
+        }
+        write(text.toString(), 1000000L);
+
+        final AtomicInteger seen = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    RangeFileWatcher<IpRangeSet> watcher = RangeFileWatcher.watch(source, 3600);
+                    if (watcher.get().contains(0x0A4E1F01))
+                    {
+                        seen.incrementAndGet();
+                    }
+                    watcher.release();
+                }
+            });
+        }
+        // One thread loads the file, the others must wait for it rather than see the empty ranges
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertThat(seen.get(), is(threads.length));
+    }
+
+    @Test
+    public void testMissingFileIsReportedOnTheFirstCheck()
+    {
+        source.delete();
+        RangeFileWatcher<IpRangeSet> watcher = newWatcher();
+        assertThat(watcher.check(), is(true));
+        assertThat(watcher.check(), is(false));
+        assertThat(watcher.get().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testWatcherStopsWhenReleasedByEveryUser() throws IOException
+    {
+        write("10.0.0.0/8\n", 1000000L);
+        RangeFileWatcher<IpRangeSet> watcher = RangeFileWatcher.watch(source, 3600);
+        assertThat(RangeFileWatcher.watch(source, 3600), is(watcher));
+
+        watcher.release();
+        assertThat(RangeFileWatcher.watch(source, 3600), is(watcher));
+        watcher.release();
+        watcher.release();
+
+        RangeFileWatcher<IpRangeSet> restarted = RangeFileWatcher.watch(source, 3600);
+        assertThat(restarted == watcher, is(false));
+        assertThat(restarted.get().contains(0x0A010101), is(true));
+        restarted.release();
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.pingidentity.adapter.idp;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RangeSetCompilerTest
+{
+
+    private static boolean contains(IpRangeSet ranges, String address)
+    {
+        long[] parsed = new long[2];
+        IpAddresses.parse(address, parsed);
+        return ranges.contains(parsed[0], parsed[1]);
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        IpRangeSet ranges = new RangeSetCompiler().compile();
+        assertThat(ranges.isEmpty(), is(true));
+        assertThat(ranges.contains(0x0A000001), is(false));
+    }
+
+    @Test
+    public void testDuplicatesAndNestedRangesCollapse()
+    {
+        RangeSetCompiler compiler = new RangeSetCompiler()
+                .add("10.0.0.0/8")
+                .add("10.0.0.0/8")
+                .add("10.1.2.3/8")
+                .add("10.20.0.0/16")
+                .add("10.20.30.40");
+        IpRangeSet ranges = compiler.compile();
+        assertThat(compiler.getEntries(), is(5));
+        assertThat(ranges.size(), is(1));
+        assertThat(ranges.longestMatch(0x0A141E28), is(8));
+    }
+
+    @Test
+    public void testAdjacentRangesMerge()
+    {
+        // Two halves make a /23, and the next /24 and two hosts after it cannot merge into an aligned prefix
+        IpRangeSet ranges = new RangeSetCompiler()
+                .add("192.168.0.0/24")
+                .add("192.168.1.0/24")
+                .add("192.168.2.0/24")
+                .add("192.168.3.0")
+                .add("192.168.3.1")
+                .compile();
+        assertThat(ranges.size(), is(3));
+        assertThat(ranges.longestMatch(0xC0A80005), is(23));
+        assertThat(ranges.longestMatch(0xC0A80105), is(23));
+        assertThat(ranges.longestMatch(0xC0A80205), is(24));
+        assertThat(ranges.longestMatch(0xC0A80301), is(31));
+        assertThat(ranges.contains(0xC0A80302), is(false));
+        assertThat(ranges.contains(0xC0A7FFFF), is(false));
+    }
+
+    @Test
+    public void testOverlappingRangesAreSplitIntoAlignedPrefixes()
+    {
+        // 10.0.0.128-10.0.2.255 is 10.0.0.128/25, 10.0.1.0/24 and 10.0.2.0/24
+        IpRangeSet ranges = new RangeSetCompiler()
+                .add("10.0.0.128/25")
+                .add("10.0.1.0/24")
+                .add("10.0.1.128/25")
+                .add("10.0.2.0/24")
+                .compile();
+        assertThat(ranges.size(), is(3));
+        assertThat(ranges.contains(0x0A000080), is(true));
+        assertThat(ranges.contains(0x0A0002FF), is(true));
+        assertThat(ranges.contains(0x0A00007F), is(false));
+        assertThat(ranges.contains(0x0A000300), is(false));
+    }
+
+    @Test
+    public void testList()
+    {
+        RangeSetCompiler compiler = new RangeSetCompiler()
+                .addList(" 10.0.0.0/25,10.0.0.128/25\n 2001:db8::/32 ,, ")
+                .addList("");
+        IpRangeSet ranges = compiler.compile();
+        assertThat(compiler.getEntries(), is(3));
+        assertThat(ranges.size(), is(2));
+        assertThat(ranges.longestMatch(0x0A0000FF), is(24));
+        assertThat(contains(ranges, "2001:db8::1"), is(true));
+        assertThat(ranges.contains(0x0A000100), is(false));
+    }
+
+    @Test
+    public void testNumericRangesAndEdgesOfTheSpace()
+    {
+        IpRangeSet ranges = new RangeSetCompiler()
+                .add(0x00000000, 1)
+                .add("128.0.0.0/1")
+                .add("255.255.255.255")
+                .compile();
+        assertThat(ranges.size(), is(1));
+        assertThat(ranges.longestMatch(0xFFFFFFFF), is(0));
+        assertThat(ranges.longestMatch(0), is(0));
+    }
+
+    @Test
+    public void testIPv6()
+    {
+        IpRangeSet ranges = new RangeSetCompiler()
+                .add("2001:db8::/33")
+                .add("2001:db8:8000::/33")
+                .add("2001:db8::1")
+                .add("2001:db9::/48")
+                .add("ffff:ffff:ffff:ffff:ffff:ffff:ffff:fffe/127")
+                .add("::ffff:10.0.0.0/104")
+                .add("10.0.0.0/8")
+                .compile();
+        assertThat(ranges.size(), is(4));
+        assertThat(ranges.longestMatch(0x20010DB8FFFFFFFFL, 0L), is(32));
+        assertThat(contains(ranges, "2001:db9::1"), is(true));
+        assertThat(contains(ranges, "2001:db9:1::"), is(false));
+        assertThat(contains(ranges, "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"), is(true));
+        assertThat(contains(ranges, "10.1.2.3"), is(true));
+        assertThat(ranges.longestMatch(0x0A010203), is(8));
+    }
+
+    @Test
+    public void testIPv6IntervalsAcrossTheHalves()
+    {
+        // ::ffff:ffff:ffff:fffe - ::1:0:0:0:1 crosses from the low to the high half
+        IpRangeSet ranges = new RangeSetCompiler()
+                .add("0:0:0:0:ffff:ffff:ffff:fffe/127")
+                .add("0:0:0:1::/127")
+                .compile();
+        assertThat(ranges.size(), is(2));
+        assertThat(ranges.contains(0L, 0xFFFFFFFFFFFFFFFEL), is(true));
+        assertThat(ranges.contains(1L, 1L), is(true));
+        assertThat(ranges.contains(1L, 2L), is(false));
+    }
+
+    @Test
+    public void testLargeListsMatchTheBuilder()
+    {
+        // Enough ranges to be split between tasks, many of them overlapping
+        Random random = new Random(17);
+        RangeSetCompiler compiler = new RangeSetCompiler();
+        IpRangeSet.Builder builder = new IpRangeSet.Builder();
+        for (int i = 0; i < 20000; i++)
+        {
+            String cidr;
+            if (i % 4 == 0)
+            {
+                cidr = String.format("2001:db8:%x::/%d", random.nextInt(256), 40 + random.nextInt(25));
+            }
+            else
+            {
+                cidr = String.format("10.%d.%d.0/%d", random.nextInt(64), random.nextInt(256), 12 + random.nextInt(21));
+            }
+            compiler.add(cidr);
+            builder.add(cidr);
+        }
+
+        IpRangeSet expected = builder.build();
+        IpRangeSet ranges = compiler.compile();
+        assertThat(ranges.size() < expected.size(), is(true));
+        for (int i = 0; i < 100000; i++)
+        {
+            int address = 0x0A000000 | random.nextInt(1 << 22);
+            assertThat(ranges.contains(address), is(expected.contains(address)));
+            long high = 0x20010DB800000000L | ((long) random.nextInt(256) << 16) | random.nextInt(1 << 16);
+            long low = random.nextLong();
+            assertThat(ranges.contains(high, low), is(expected.contains(high, low)));
+        }
+    }
+
+    @Test
+    public void testFirstBadRangeIsReported()
+    {
+        RangeSetCompiler compiler = new RangeSetCompiler();
+        for (int i = 0; i < 5000; i++)
+        {
+            compiler.add("10.0.0." + (i % 256));
+        }
+        compiler.add("10.0.0.0/40");
+        compiler.add("not a range");
+        try
+        {
+            compiler.compile();
+            assertThat("compiled", is("failed"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e.getMessage(), is("Bad CIDR '10.0.0.0/40'"));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.pingidentity.adapter.idp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class RiskServiceClientTest
+{
+
+    private static final long ADDRESS = IpAddresses.IPV4_MAPPED_PREFIX | 0xC6336407L;
+
+    private HttpServer server;
+    private String url;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int status = 200;
+    private volatile String body = "{\"allow\": true}";
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private volatile String lastQuery;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/reputation", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                requests.incrementAndGet();
+                lastQuery = exchange.getRequestURI().getQuery();
+                try
+                {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] response = body.getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/reputation";
+    }
+
+    @After
+    public void tearDown()
+    {
+        release.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testVerdicts()
+    {
+        RiskServiceClient client = new RiskServiceClient(url, 2000, 0, 16);
+        assertThat(client.check(0, ADDRESS, "198.51.100.7"), is(RiskServiceClient.Verdict.ALLOW));
+        assertThat(lastQuery, is("ip=198.51.100.7"));
+
+        body = "{\"allow\": false, \"score\": 97}";
+        assertThat(client.check(0, ADDRESS, "198.51.100.7"), is(RiskServiceClient.Verdict.DENY));
+
+        body = "{\"score\": 97}";
+        assertThat(client.check(0, ADDRESS, "198.51.100.7"), is(RiskServiceClient.Verdict.UNKNOWN));
+        body = "not json";
+        assertThat(client.check(0, ADDRESS, "198.51.100.7"), is(RiskServiceClient.Verdict.UNKNOWN));
+        assertThat(requests.get(), is(4));
+    }
+
+    @Test
+    public void testCache()
+    {
+        RiskServiceClient client = new RiskServiceClient(url, 2000, 60, 16);
+        body = "{\"allow\": false}";
+        assertThat(client.check(0, ADDRESS, "198.51.100.7"), is(RiskServiceClient.Verdict.DENY));
+        body = "{\"allow\": true}";
+        assertThat(client.check(0, ADDRESS, "198.51.100.7"), is(RiskServiceClient.Verdict.DENY));
+        assertThat(client.check(0, ADDRESS + 1, "198.51.100.8"), is(RiskServiceClient.Verdict.ALLOW));
+        assertThat(requests.get(), is(2));
+        assertThat(client.getCacheHits(), is(1L));
+    }
+
+    @Test
+    public void testDeadline()
+    {
+        release = new CountDownLatch(1);
+        RiskServiceClient client = new RiskServiceClient(url, 100, 60, 16);
+
+        long start = System.nanoTime();
+        assertThat(client.check(0, ADDRESS, "198.51.100.7"), is(RiskServiceClient.Verdict.UNKNOWN));
+        assertThat(System.nanoTime() - start, lessThan(TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Test
+    public void testConcurrentChecksShareOneCall() throws Exception
+    {
+        release = new CountDownLatch(1);
+        final RiskServiceClient client = new RiskServiceClient(url, 5000, 60, 16);
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<RiskServiceClient.Verdict>> verdicts = new ArrayList<Future<RiskServiceClient.Verdict>>();
+            for (int i = 0; i < 8; i++)
+            {
+                verdicts.add(threads.submit(new Callable<RiskServiceClient.Verdict>()
+                {
+                    public RiskServiceClient.Verdict call()
+                    {
+                        return client.check(0, ADDRESS, "198.51.100.7");
+                    }
+                }));
+            }
+
+            // Let the checks pile up behind the first call before it is answered
+            while (requests.get() == 0)
+            {
+                Thread.sleep(5);
+            }
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<RiskServiceClient.Verdict> verdict : verdicts)
+            {
+                assertThat(verdict.get(), is(RiskServiceClient.Verdict.ALLOW));
+            }
+            assertThat(requests.get(), is(1));
+            assertThat(client.getCalls(), is(1L));
+        }
+        finally
+        {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker()
+    {
+        status = 503;
+        RiskServiceClient client = new RiskServiceClient(url, 2000, 60, 16);
+        for (int i = 0; i < 5; i++)
+        {
+            assertThat(client.check(0, ADDRESS + i, "198.51.100.7"), is(RiskServiceClient.Verdict.UNKNOWN));
+        }
+        assertThat(client.isOpen(), is(true));
+
+        status = 200;
+        assertThat(client.check(0, ADDRESS + 5, "198.51.100.12"), is(RiskServiceClient.Verdict.UNKNOWN));
+        assertThat(requests.get(), is(5));
+    }
+
+    @Test
+    public void testServiceDown()
+    {
+        server.stop(0);
+        RiskServiceClient client = new RiskServiceClient(url, 500, 60, 16);
+        assertThat(client.check(0, ADDRESS, "198.51.100.7"), is(RiskServiceClient.Verdict.UNKNOWN));
+        assertThat(client.getCalls(), is(1L));
+    }
+}
@@ -1,18 +1,561 @@
 package com.pingidentity.adapter.idp;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.saml20.adapter.conf.Configuration;
+import org.sourceid.saml20.adapter.conf.Row;
+import org.sourceid.saml20.adapter.conf.Table;
+
+import com.pingidentity.sdk.AuthnAdapterResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.pingidentity.sdk.AuthnAdapterResponse.AUTHN_STATUS;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SampleSubnetAdapterTest
 {
 
+    @Mock
+    private Configuration configuration;
+    @Mock
+    private Table networksTable;
+    @Mock
+    private Row networkRow;
+    @Mock
+    private Table proxiesTable;
+    @Mock
+    private Row proxyRow;
+    @Mock
+    private Table spPoliciesTable;
+    @Mock
+    private Row vpnSpRow;
+    @Mock
+    private Row openSpRow;
+    @Mock
+    private HttpServletRequest req;
+    @Mock
+    private HttpServletResponse resp;
+
+    private SampleSubnetAdapter adapter;
+
+    @Before
+    public void setUp()
+    {
+        when(configuration.getId()).thenReturn("adapter1");
+        when(configuration.getFieldValue("Network Base Address")).thenReturn("192.168.1.0");
+        when(configuration.getFieldValue("Subnet Mask")).thenReturn("255.255.255.0");
+        when(configuration.getTable("Networks")).thenReturn(networksTable);
+        when(networksTable.getRows()).thenReturn(Arrays.asList(networkRow));
+        when(networkRow.getFieldValue("CIDR")).thenReturn("10.0.0.0/8");
+        when(configuration.getTable("Trusted Proxies")).thenReturn(proxiesTable);
+        when(proxiesTable.getRows()).thenReturn(Arrays.asList(proxyRow));
+        when(proxyRow.getFieldValue("Proxy CIDR")).thenReturn("172.16.0.0/12");
+        when(configuration.getTable("SP Policies")).thenReturn(spPoliciesTable);
+        when(spPoliciesTable.getRows()).thenReturn(Arrays.asList(vpnSpRow, openSpRow));
+        when(vpnSpRow.getFieldValue("SP Entity ID")).thenReturn("https://vpn-only.example.com");
+        when(vpnSpRow.getFieldValue("SP Networks")).thenReturn("10.8.0.0/16, 2001:db8:8::/48");
+        when(vpnSpRow.getFieldValue("SP Role")).thenReturn("Default");
+        when(openSpRow.getFieldValue("SP Entity ID")).thenReturn(" https://open.example.com ");
+        when(openSpRow.getFieldValue("SP Networks")).thenReturn("");
+        when(openSpRow.getFieldValue("SP Role")).thenReturn("GUEST");
+
+        adapter = new SampleSubnetAdapter();
+        adapter.configure(configuration);
+    }
+
+    private AuthnAdapterResponse lookup(String remoteAddr) throws Exception
+    {
+        return lookup(remoteAddr, "https://sp.example.com", null);
+    }
+
+    private AuthnAdapterResponse lookup(String remoteAddr, String spEntityId, String chainedUsername)
+            throws Exception
+    {
+        when(req.getRemoteAddr()).thenReturn(remoteAddr);
+        Map<String, Object> inParameters = new HashMap<String, Object>();
+        inParameters.put(SampleSubnetAdapter.IN_PARAMETER_NAME_PARTNER_ENTITYID, spEntityId);
+        if (chainedUsername != null)
+        {
+            Map<String, AttributeValue> chainedAttributes = new HashMap<String, AttributeValue>();
+            chainedAttributes.put("username", new AttributeValue(chainedUsername));
+            inParameters.put(SampleSubnetAdapter.IN_PARAMETER_NAME_CHAINED_ATTRIBUTES, chainedAttributes);
+        }
+        return adapter.lookupAuthN(req, resp, inParameters);
+    }
+
+    @Test
+    public void testBaseNetworkIsAuthenticated() throws Exception
+    {
+        AuthnAdapterResponse response = lookup("192.168.1.20");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((String) response.getAttributeMap().get("ip_address"), is("192.168.1.20"));
+        assertThat((String) response.getAttributeMap().get("role"), is("GUEST"));
+    }
+
+    @Test
+    public void testTableNetworkIsAuthenticated() throws Exception
+    {
+        assertThat(lookup("10.20.30.40").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+    }
+
+    @Test
+    public void testIPv6LoopbackIsTreatedAsIPv4Loopback() throws Exception
+    {
+        when(networkRow.getFieldValue("CIDR")).thenReturn("127.0.0.0/8");
+        adapter.configure(configuration);
+
+        AuthnAdapterResponse response = lookup("::1");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((String) response.getAttributeMap().get("ip_address"), is("127.0.0.1"));
+    }
+
+    @Test
+    public void testIPv6Networks() throws Exception
+    {
+        when(networkRow.getFieldValue("CIDR")).thenReturn("2001:db8::/32");
+        adapter.configure(configuration);
+
+        assertThat(lookup("2001:db8::1").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat(lookup("2001:db8:0:0:0:0:0:2%eth0").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat(lookup("2001:db9::1").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+        assertThat(lookup("::ffff:192.168.1.7").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+    }
+
+    @Test
+    public void testHostNamesFailWithoutResolution() throws Exception
+    {
+        String[] malformed = { "localhost", "sso.example.com", "unknown", "", "192.168.1.1.nip.io" };
+        for (String remoteAddr : malformed)
+        {
+            long start = System.nanoTime();
+            assertThat(remoteAddr, lookup(remoteAddr).getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+            assertThat(remoteAddr, System.nanoTime() - start < 1000000000L, is(true));
+        }
+    }
+
+    @Test
+    public void testRequestPathNeverReferencesTheResolver() throws Exception
+    {
+        Class<?>[] requestPath = { SampleSubnetAdapter.class, IpAddresses.class, IpRangeSet.class,
+                ForwardedHeaders.class };
+        for (Class<?> type : requestPath)
+        {
+            assertThat(type.getName(), classFile(type), not(containsString("java/net/InetAddress")));
+        }
+    }
+
+    private static String classFile(Class<?> type) throws IOException
+    {
+        InputStream in = type.getResourceAsStream(type.getSimpleName() + ".class");
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+            {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toString("ISO-8859-1");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testClientIsTakenFromForwardingHeadersOfTrustedProxies() throws Exception
+    {
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(
+                Collections.enumeration(Arrays.asList("203.0.113.9, 192.168.1.33", "172.16.0.4")));
+
+        AuthnAdapterResponse response = lookup("172.16.0.1");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((String) response.getAttributeMap().get("ip_address"), is("192.168.1.33"));
+
+        when(req.getHeaders("Forwarded")).thenReturn(
+                Collections.enumeration(Arrays.asList("for=192.168.1.34, for=198.51.100.2;proto=https")));
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(Collections.enumeration(Arrays.asList("192.168.1.33")));
+        assertThat(lookup("172.16.0.1").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+    }
+
+    @Test
+    public void testOnlyTheConfiguredForwardingHeaderIsRead() throws Exception
+    {
+        when(configuration.getFieldValue("Forwarding Header")).thenReturn("Forwarded");
+        adapter.configure(configuration);
+
+        // The proxy writes Forwarded, so an X-Forwarded-For header came from the client
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(Collections.enumeration(Arrays.asList("192.168.1.33")));
+        when(req.getHeaders("Forwarded")).thenReturn(
+                Collections.enumeration(Arrays.asList("for=192.168.1.34, for=198.51.100.2;proto=https")));
+        AuthnAdapterResponse response = lookup("172.16.0.1");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+
+        when(req.getHeaders("Forwarded")).thenReturn(
+                Collections.enumeration(Arrays.asList("for=198.51.100.2, for=\"192.168.1.34:443\"")));
+        response = lookup("172.16.0.1");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((String) response.getAttributeMap().get("ip_address"), is("192.168.1.34"));
+    }
+
+    @Test
+    public void testForwardingHeadersOfUntrustedClientsAreIgnored() throws Exception
+    {
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(Collections.enumeration(Arrays.asList("192.168.1.33")));
+        assertThat(lookup("198.51.100.2").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+    }
+
+    @Test
+    public void testMalformedForwardingHeaderFails() throws Exception
+    {
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(Collections.enumeration(Arrays.asList("unknown")));
+        assertThat(lookup("172.16.0.1").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+    }
+
+    @Test
+    public void testForwardedClientIsPassedOnInCanonicalForm() throws Exception
+    {
+        when(networkRow.getFieldValue("CIDR")).thenReturn("fe80::/10");
+        adapter.configure(configuration);
+
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(
+                Collections.enumeration(Arrays.asList("fe80::1%x decision=ALLOWED sp=evil")));
+        AuthnAdapterResponse response = lookup("172.16.0.1");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+        assertThat((Long) adapter.getAdapterInfo().get("malformedCount"), is(1L));
+
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(
+                Collections.enumeration(Arrays.asList("[FE80:0:0::0001]:443")));
+        response = lookup("172.16.0.1");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((String) response.getAttributeMap().get("ip_address"), is("fe80::1"));
+    }
+
+    @Test
+    public void testTrustedProxyWithoutForwardingHeaderFails() throws Exception
+    {
+        // The proxy itself is on an authenticated network, but must not stand in for an unknown client
+        when(proxyRow.getFieldValue("Proxy CIDR")).thenReturn("192.168.1.0/28");
+        adapter.configure(configuration);
+        assertThat(lookup("192.168.1.2").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(Collections.enumeration(Arrays.asList(" ")));
+        assertThat(lookup("192.168.1.2").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+        assertThat((Long) adapter.getAdapterInfo().get("malformedCount"), is(2L));
+
+        when(req.getHeaders("X-Forwarded-For")).thenReturn(Collections.enumeration(Arrays.asList("192.168.1.33")));
+        assertThat(lookup("192.168.1.2").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+    }
+
+    @Test
+    public void testSpPolicyReplacesNetworks() throws Exception
+    {
+        String sp = "https://vpn-only.example.com";
+        assertThat(lookup("10.8.1.1", sp, null).getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat(lookup("2001:db8:8::1", sp, null).getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat(lookup("10.20.30.40", sp, null).getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+        assertThat(lookup("192.168.1.20", sp, null).getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+
+        AuthnAdapterResponse response = lookup("10.8.1.1", sp, "jdoe");
+        assertThat((String) response.getAttributeMap().get("role"), is("CORP_USER"));
+    }
+
+    @Test
+    public void testSpPolicyWithoutNetworksAllowsAnyClientWithItsRole() throws Exception
+    {
+        AuthnAdapterResponse response = lookup("198.51.100.2", "https://open.example.com", "jdoe");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((String) response.getAttributeMap().get("role"), is("GUEST"));
+
+        assertThat(lookup("unknown", "https://open.example.com", null).getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+    }
+
+    @Test
+    public void testRateLimit() throws Exception
+    {
+        when(configuration.getFieldValue("Rate Limit")).thenReturn("60");
+        when(configuration.getFieldValue("Rate Limit Burst")).thenReturn("2");
+        when(configuration.getFieldValue("Rate Limit IPv4 Prefix Length")).thenReturn("24");
+        adapter.configure(configuration);
+
+        assertThat(lookup("192.168.1.20").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat(lookup("192.168.1.21").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat(lookup("192.168.1.22").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+        assertThat(lookup("10.20.30.40").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((Long) adapter.getAdapterInfo().get("rateLimitedCount"), is(1L));
+        assertThat((Long) adapter.getAdapterInfo().get("rateLimiterRefusedCount"), is(1L));
+        assertThat((Long) adapter.getAdapterInfo().get("rateLimiterEvictionCount"), is(0L));
+
+        // A new rate limiter counts from 0, the decisions are still counted
+        adapter.configure(configuration);
+        assertThat((Long) adapter.getAdapterInfo().get("rateLimitedCount"), is(1L));
+        assertThat((Long) adapter.getAdapterInfo().get("rateLimiterRefusedCount"), is(0L));
+    }
+
+    @Test
+    public void testAssertionCookie() throws Exception
+    {
+        when(configuration.getFieldValue("Assertion Cookie Lifetime")).thenReturn("300");
+        when(configuration.getFieldValue("Assertion Cookie Secret")).thenReturn("s3cret");
+        adapter.configure(configuration);
+
+        lookup("192.168.1.20");
+        ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+        verify(resp).addCookie(cookie.capture());
+        assertThat(cookie.getValue().getName(), is(AssertionCookie.NAME));
+        assertThat(cookie.getValue().getMaxAge(), is(300));
+
+        when(req.getCookies()).thenReturn(new Cookie[] { cookie.getValue() });
+        AuthnAdapterResponse response = lookup("192.168.1.20");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((String) response.getAttributeMap().get("ip_address"), is("192.168.1.20"));
+        assertThat((String) response.getAttributeMap().get("role"), is("GUEST"));
+        assertThat((Long) adapter.getAdapterInfo().get("assertedCount"), is(1L));
+        assertThat((Long) adapter.getAdapterInfo().get("matchLatencyCount"), is(1L));
+
+        // A cookie for another address, role or SP policy is ignored
+        assertThat(lookup("192.168.2.1").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+        lookup("192.168.1.20", "https://sp.example.com", "jdoe");
+        lookup("192.168.1.20", "https://open.example.com", null);
+        assertThat((Long) adapter.getAdapterInfo().get("assertedCount"), is(1L));
+
+        // Changing the networks invalidates the cookie
+        when(networkRow.getFieldValue("CIDR")).thenReturn("10.0.0.0/16");
+        adapter.configure(configuration);
+        lookup("192.168.1.20");
+        assertThat((Long) adapter.getAdapterInfo().get("assertedCount"), is(1L));
+    }
+
+    @Test
+    public void testAssertionCookieDisabled() throws Exception
+    {
+        lookup("192.168.1.20");
+        verify(resp, never()).addCookie(any(Cookie.class));
+    }
+
+    @Test
+    public void testGeoIpAttributes() throws Exception
+    {
+        File database = File.createTempFile("geoip", ".db");
+        try
+        {
+            new GeoIpDatabase.Builder().add("192.168.1.0/25", "US", 64500).add("10.0.0.0/8", null, 64501)
+                    .write(database);
+            when(configuration.getFieldValue("GeoIP Database")).thenReturn(database.getPath());
+            adapter.configure(configuration);
+
+            Map<String, Object> attributes = lookup("192.168.1.20").getAttributeMap();
+            assertThat((String) attributes.get("country"), is("US"));
+            assertThat((String) attributes.get("asn"), is("64500"));
+
+            attributes = lookup("10.20.30.40").getAttributeMap();
+            assertThat(attributes.containsKey("country"), is(false));
+            assertThat((String) attributes.get("asn"), is("64501"));
+
+            attributes = lookup("192.168.1.200").getAttributeMap();
+            assertThat(attributes.containsKey("country"), is(false));
+            assertThat(attributes.containsKey("asn"), is(false));
+        }
+        finally
+        {
+            database.delete();
+        }
+        assertThat(adapter.getAdapterDescriptor().getAttributeContract().contains("country"), is(true));
+    }
+
+    @Test
+    public void testMissingGeoIpDatabase() throws Exception
+    {
+        when(configuration.getFieldValue("GeoIP Database")).thenReturn("/nonexistent/geoip.db");
+        adapter.configure(configuration);
+        AuthnAdapterResponse response = lookup("192.168.1.20");
+        assertThat(response.getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat(response.getAttributeMap().containsKey("country"), is(false));
+    }
+
+    @Test
+    public void testDenylist() throws Exception
+    {
+        File feed = File.createTempFile("denylist", ".txt");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(feed);
+            try
+            {
+                out.write("192.168.1.66\n10.8.1.1\n".getBytes("US-ASCII"));
+            }
+            finally
+            {
+                out.close();
+            }
+            when(configuration.getFieldValue("Denylist File")).thenReturn(feed.getPath());
+            adapter.configure(configuration);
+
+            assertThat(lookup("192.168.1.66").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+            assertThat(lookup("192.168.1.67").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+            assertThat(lookup("10.8.1.1", "https://vpn-only.example.com", null).getAuthnStatus(),
+                    is(AUTHN_STATUS.FAILURE));
+            assertThat((Long) adapter.getAdapterInfo().get("denylistedCount"), is(2L));
+
+            // A new version of the feed is picked up without reconfiguring
+            out = new FileOutputStream(feed);
+            try
+            {
+                out.write("192.168.1.67\n".getBytes("US-ASCII"));
+            }
+            finally
+            {
+                out.close();
+            }
+            feed.setLastModified(feed.lastModified() - 10000);
+            RangeFileWatcher<IpDenylist> watcher = RangeFileWatcher.watchDenylist(feed, 3600);
+            assertThat(watcher.check(), is(true));
+            watcher.release();
+            assertThat(lookup("192.168.1.66").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+            assertThat(lookup("192.168.1.67").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+        }
+        finally
+        {
+            feed.delete();
+        }
+    }
+
+    @Test
+    public void testUnreadableDenylistRefusesEveryClient() throws Exception
+    {
+        when(configuration.getFieldValue("Denylist File")).thenReturn("/nonexistent/denylist.txt");
+        adapter.configure(configuration);
+        assertThat(lookup("192.168.1.20").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+        assertThat((Long) adapter.getAdapterInfo().get("denylistedCount"), is(1L));
+
+        when(configuration.getFieldValue("Denylist File")).thenReturn("");
+        adapter.configure(configuration);
+        assertThat(lookup("192.168.1.20").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+    }
+
+    @Test
+    public void testRiskService() throws Exception
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/reputation", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                boolean allow = !exchange.getRequestURI().getQuery().equals("ip=192.168.1.66");
+                byte[] response = ("{\"allow\": " + allow + "}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.start();
+        try
+        {
+            when(configuration.getFieldValue("Risk Service URL")).thenReturn(
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/reputation");
+            when(configuration.getFieldValue("Risk Service Timeout")).thenReturn("2000");
+            adapter.configure(configuration);
+
+            assertThat(lookup("192.168.1.66").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+            assertThat(lookup("192.168.1.67").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+            assertThat(lookup("192.168.2.66").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
+            assertThat(lookup("192.168.1.67").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+            assertThat((Long) adapter.getAdapterInfo().get("riskDeniedCount"), is(1L));
+            assertThat((Long) adapter.getAdapterInfo().get("riskFallbackCount"), is(0L));
+            assertThat((Long) adapter.getAdapterInfo().get("riskServiceCallCount"), is(2L));
+            assertThat((Long) adapter.getAdapterInfo().get("riskServiceCacheHitCount"), is(1L));
+        }
+        finally
+        {
+            server.stop(0);
+        }
+
+        // Without an answer the networks decide, until the circuit opens and the service is no longer called
+        assertThat(lookup("192.168.1.68").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((Long) adapter.getAdapterInfo().get("riskFallbackCount"), is(1L));
+        assertThat((Boolean) adapter.getAdapterInfo().get("riskServiceCircuitOpen"), is(false));
+        for (int i = 69; i < 73; i++)
+        {
+            assertThat(lookup("192.168.1." + i).getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        }
+        assertThat((Boolean) adapter.getAdapterInfo().get("riskServiceCircuitOpen"), is(true));
+        assertThat(lookup("192.168.1.73").getAuthnStatus(), is(AUTHN_STATUS.SUCCESS));
+        assertThat((Long) adapter.getAdapterInfo().get("riskFallbackCount"), is(6L));
+        assertThat((Long) adapter.getAdapterInfo().get("riskServiceCallCount"), is(7L));
+    }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        lookup("192.168.1.20");
+        lookup("10.8.1.1", "https://vpn-only.example.com", "jdoe");
+        lookup("2001:db9::1");
+        lookup("unknown");
+
+        Map<String, Object> info = adapter.getAdapterInfo();
+        assertThat((Long) info.get("successCount"), is(2L));
+        assertThat((Long) info.get("failureCount"), is(2L));
+        assertThat((Long) info.get("ipv6RejectedCount"), is(1L));
+        assertThat((Long) info.get("malformedCount"), is(1L));
+        assertThat((Long) info.get("guestRoleCount"), is(1L));
+        assertThat((Long) info.get("corpUserRoleCount"), is(1L));
+        assertThat((Long) info.get("totalLatencyCount"), is(4L));
+        assertThat((Long) info.get("parseLatencyCount"), is(4L));
+        assertThat((Long) info.get("matchLatencyCount"), is(3L));
+        assertThat((Long) info.get("auditDroppedCount"), is(0L));
+        assertThat((Long) info.get("rateLimiterRefusedCount"), is(0L));
+        assertThat((Long) info.get("rateLimiterEvictionCount"), is(0L));
+        assertThat((Long) info.get("riskServiceCallCount"), is(0L));
+        assertThat((Boolean) info.get("riskServiceCircuitOpen"), is(false));
+
+        ObjectName name = new ObjectName("com.pingidentity.adapter.idp:type=SampleSubnetAdapter,name=\"adapter1\"");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertThat((Long) server.getAttribute(name, "SuccessCount"), is(2L));
+        assertThat((Long) server.getAttribute(name, "AuditDroppedCount"), is(0L));
+        assertThat((Long) server.getAttribute(name, "RateLimiterEvictionCount"), is(0L));
+        assertThat((Boolean) server.getAttribute(name, "RiskServiceCircuitOpen"), is(false));
+        assertThat(server.getAttribute(name, "TotalLatency") instanceof TabularData, is(true));
+    }
+
     @Test
-    public void testSample() {
-        assertThat("Test not implemented", true);
+    public void testOtherNetworkFails() throws Exception
+    {
+        assertThat(lookup("192.168.2.1").getAuthnStatus(), is(AUTHN_STATUS.FAILURE));
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+package com.pingidentity.adapter.idp;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SpPolicyTableTest
+{
+
+    private static final long MAPPED = IpAddresses.IPV4_MAPPED_PREFIX;
+
+    @Test
+    public void testEmpty()
+    {
+        SpPolicyTable table = new SpPolicyTable.Builder().build();
+        assertThat(table.size(), is(0));
+        assertThat(table.get("https://sp.example.com"), is(nullValue()));
+        assertThat(table.get(null), is(nullValue()));
+    }
+
+    @Test
+    public void testLookup()
+    {
+        SpPolicyTable.Builder builder = new SpPolicyTable.Builder();
+        SpPolicyTable.Policy[] policies = new SpPolicyTable.Policy[1000];
+        for (int i = 0; i < policies.length; i++)
+        {
+            policies[i] = new SpPolicyTable.Policy(null, null);
+            builder.put("https://sp" + i + ".example.com/saml", policies[i]);
+        }
+
+        SpPolicyTable table = builder.build();
+        assertThat(table.size(), is(1000));
+        for (int i = 0; i < policies.length; i++)
+        {
+            assertThat(table.get(new String("https://sp" + i + ".example.com/saml")), sameInstance(policies[i]));
+        }
+        assertThat(table.get("https://sp1000.example.com/saml"), is(nullValue()));
+        assertThat(table.get(null), is(nullValue()));
+    }
+
+    @Test
+    public void testCollidingHashCodes()
+    {
+        // "Aa" and "BB" have the same hash code
+        SpPolicyTable.Policy aa = new SpPolicyTable.Policy(null, "GUEST");
+        SpPolicyTable.Policy bb = new SpPolicyTable.Policy(null, "CORP_USER");
+        SpPolicyTable table = new SpPolicyTable.Builder().put("Aa", aa).put("BB", bb).build();
+        assertThat(table.get("Aa"), sameInstance(aa));
+        assertThat(table.get("BB"), sameInstance(bb));
+        assertThat(table.get("C#"), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateEntityId()
+    {
+        new SpPolicyTable.Builder().put("sp", new SpPolicyTable.Policy(null, null))
+                .put("sp", new SpPolicyTable.Policy(null, null));
+    }
+
+    @Test
+    public void testPolicy()
+    {
+        SpPolicyTable.Policy vpnOnly = new SpPolicyTable.Policy(new IpRangeSet.Builder().addList("10.8.0.0/16")
+                .build(), null);
+        assertThat(vpnOnly.allows(0, MAPPED | 0x0A080101L), is(true));
+        assertThat(vpnOnly.allows(0, MAPPED | 0x0A090101L), is(false));
+        assertThat(vpnOnly.getRole(), is(nullValue()));
+
+        SpPolicyTable.Policy anyone = new SpPolicyTable.Policy(null, "GUEST");
+        assertThat(anyone.allows(0x20010DB800000000L, 1L), is(true));
+        assertThat(anyone.getRole(), is("GUEST"));
+    }
+}